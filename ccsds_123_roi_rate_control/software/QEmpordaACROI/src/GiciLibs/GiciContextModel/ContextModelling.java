@@ -26,6 +26,12 @@ public class ContextModelling implements Serializable{
 	 */
 	private boolean contextWindow [];
 	
+	/**
+	 * Distance between the contexts of consecutive bitplanes, 2 to the number of bits of
+	 * the context window. It is computed with the context window.
+	 */
+	private int bitplaneContexts = 0;
+	
 	/**
 	 * Bit masks (employed when coding integers).
 	 * <p>
@@ -48,471 +54,226 @@ public class ContextModelling implements Serializable{
 	
 
 	
+/**
+ * Returns the context of a bit of a sample of a band. Each bit of the context is the
+ * significance of a neighbour, tested with shifts and masks, so the context is built
+ * directly without the context window.
+ * 
+ * @param samples the band
+ * @param y the line of the sample
+ * @param x the position of the sample in the line
+ * @param bit the bitplane
+ * @return the context
+ */
 public int getContext(int[][] samples, int y, int x, int bit){
-		
-		//initialitize contexts
-		if(contextModel != 0) for(int i = 0; i < contextWindow.length; i++) contextWindow[i] = false;
-		
-		switch(contextModel){
-			case 0:
-				contextWindow[0] = false;
-				break;
-			case 1:
-				if(y > 0){
-					if(hasBeenSignificant(samples[y-1][x], bit)) contextWindow[0] = true;
-				}
-				break;
-			case 2:
-				if(x > 0){
-					if(hasBeenSignificant(samples[y][x-1], bit)) contextWindow[0] = true;
-				}
-				break;
-			case 3:
-				if(y > 0){
-					if(hasBeenSignificant(samples[y-1][x], bit)) contextWindow[0] = true;
-				}
-				if(x > 0){
-					if(hasBeenSignificant(samples[y][x-1], bit)) contextWindow[1] = true;
-				}
-				break;
-			case 4:
-				if(x > 0){
-					if(hasBeenSignificant(samples[y][x-1], bit)) contextWindow[0] = true;
-				}
-				if(y > 0){
-					if(hasBeenSignificant(samples[y-1][x], bit)) contextWindow[1] = true;
-					if(x > 0){
-						if(hasBeenSignificant(samples[y-1][x-1], bit)) contextWindow[2] = true;
-					}
-				}
-				break;
-			case 6:
-				if(y > 0){
-					if(hasBeenSignificant(samples[y-1][x], bit)) contextWindow[0] = true;
-				}
-				break;
-			case 7:
-				if(x > 0){
-					if(isSignificant(samples[y][x-1], bit)) contextWindow[0] = true;
-				}
-				break;
-			case 8:
-				if(y > 0){
-					if(hasBeenSignificant(samples[y-1][x], bit)) contextWindow[0] = true;
-				}
-				if(x > 0){
-					if(hasBeenSignificant(samples[y][x-1], bit)) contextWindow[1] = true;
-				}
-				break;
-			case 9:
-				if(x > 0){
-					if(hasBeenSignificant(samples[y][x-1], bit)) contextWindow[0] = true;
-				}
-				if(y > 0){
-					if(hasBeenSignificant(samples[y-1][x], bit)) contextWindow[1] = true;
-					if(x > 0){
-						if(hasBeenSignificant(samples[y-1][x-1], bit)) contextWindow[2] = true;
-					}
-				}
-				break;
-			default:
-				throw new Error();
-		}
-		
-		int context = 0;
-		for(int i = 0; i < contextWindow.length; i++){
-			context += contextWindow[i] == true ? BIT_MASKS2[i] : 0;
-		}
-		if(contextModel != 0){
-			context = context + (bit * BIT_MASKS2[contextWindow.length]);
-		}
-	
-		return context;
-	}
-
-
-public int getContext(int[][][] samples, int z, int y, int x, int bit){
-	
-	//initialitize contexts
-	if(contextModel != 0) for(int i = 0; i < contextWindow.length; i++) contextWindow[i] = false;
-	
+	int context;
 	switch(contextModel){
 		case 0:
-			contextWindow[0] = false;
-			break;
+			return 0;
 		case 1:
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
+		case 6:
+			context = y > 0 ? significance(samples[y-1][x], bit) : 0;
 			break;
 		case 2:
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[0] = true;
-			}
+		case 7:
+			context = x > 0 ? significance(samples[y][x-1], bit) : 0;
 			break;
 		case 3:
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[1] = true;
-			}
+		case 8:
+			context = y > 0 ? significance(samples[y-1][x], bit) : 0;
+			if(x > 0) context |= significance(samples[y][x-1], bit) << 1;
 			break;
 		case 4:
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[0] = true;
-			}
+		case 9:
+			context = x > 0 ? significance(samples[y][x-1], bit) : 0;
 			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[1] = true;
-				if(x > 0){
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit)) contextWindow[2] = true;
-				}
+				context |= significance(samples[y-1][x], bit) << 1;
+				if(x > 0) context |= significance(samples[y-1][x-1], bit) << 2;
 			}
 			break;
+		default:
+			throw new Error();
+	}
+	return context + bit * bitplaneContexts;
+}
+
+
+/**
+ * Returns the context of a bit of a sample of a line of a band. Each bit of the context
+ * is the significance of a neighbour, tested with shifts and masks, so the context is
+ * built directly without the context window. The bounds of the neighbourhood are
+ * the same as in the other context functions, taken from the dimensions of samples.
+ * 
+ * @param samples the lines of the bands
+ * @param z the band of the sample
+ * @param y the line of the sample
+ * @param x the position of the sample in the line
+ * @param bit the bitplane
+ * @return the context
+ */
+public int getContext(int[][][] samples, int z, int y, int x, int bit){
+	int[][] band = samples[z];
+	int width = samples[0].length;
+	int context;
+	switch(contextModel){
+		case 0:
+			return 0;
+		case 1:
 		case 6:
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
+			context = y > 0 ? significance(band[y-1][x], bit) : 0;
 			break;
+		case 2:
 		case 7:
-			if(x > 0){
-				if(isSignificant(samples[z][y][x-1], bit)) contextWindow[0] = true;
-			}
+			context = x > 0 ? significance(band[y][x-1], bit) : 0;
 			break;
+		case 3:
 		case 8:
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[1] = true;
-			}
+			context = y > 0 ? significance(band[y-1][x], bit) : 0;
+			if(x > 0) context |= significance(band[y][x-1], bit) << 1;
 			break;
+		case 4:
 		case 9:
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[0] = true;
-			}
+			context = x > 0 ? significance(band[y][x-1], bit) : 0;
 			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[1] = true;
-				if(x > 0){
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit)) contextWindow[2] = true;
-				}
+				context |= significance(band[y-1][x], bit) << 1;
+				if(x > 0) context |= significance(band[y-1][x-1], bit) << 2;
 			}
 			break;
 		case 10:
-			//gain = 0.07
-			//vertical dist = -1
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
-
-			//gain = 0.06
-			//horitzontal dist = -1
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[1] = true;
-			}
-			
-			//gain = 0.04
-			//diagonal dist = -1
-			if(y > 0 & x > 0){
-				if(hasBeenSignificant(samples[z][y-1][x-1], bit)) contextWindow[2] = true;
-			}
-			
-			if(y > 0 & x < samples[0].length - 1){
-				if(hasBeenSignificant(samples[z][y-1][x+1], bit)) contextWindow[3] = true;
-			}
-
-			
-
+			context = getNeighbourContext(band, y, x, bit, width);
 			if(bit < 15){
-				
-				//horitzontal dist = -1
-				if(x > 0 & y == 0){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+1)) contextWindow[4] = true;
-				}
-				
-				
-				//vertical dist = -1
-				if(y > 0 & x == 0){
-					if(hasBeenSignificant(samples[z][y-1][x], bit+1)) contextWindow[4] = true;
-				}
-				
-				if(y > 0 & x > 0 & y < samples.length - 1 & x < samples[0].length - 1){
-				
-					if(hasBeenSignificant(samples[z][y][x-1], bit+1)) contextWindow[4] = true;
-					if(hasBeenSignificant(samples[z][y-1][x], bit+1))contextWindow[4] = true;
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit+1)) contextWindow[5] = true;
-					if(hasBeenSignificant(samples[z][y-1][x+1], bit+1)) contextWindow[5] = true;
-					if(hasBeenSignificant(samples[z][y][x+1], bit+1)) contextWindow[4] = true;
-					if(hasBeenSignificant(samples[z][y][x], bit+1)) contextWindow[6] = true;
-					
-				}	
-				
+				context |= getRefinementContext(band, y, x, bit + 1, width, samples.length) << 4;
 			}
-			
-		break;	
+			break;
 		case 11:
-			//gain = 0.07
-			//vertical dist = -1
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
-
-			//gain = 0.06
-			//horitzontal dist = -1
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[1] = true;
-			}
-			
-			//gain = 0.04
-			//diagonal dist = -1
-			if(y > 0 & x > 0){
-				if(hasBeenSignificant(samples[z][y-1][x-1], bit)) contextWindow[2] = true;
-			}
-			
-			if(y > 0 & x < samples[0].length - 1){
-				if(hasBeenSignificant(samples[z][y-1][x+1], bit)) contextWindow[3] = true;
-			}
-
-			if(y > 1){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[4] = true;
-			}
-			
-			if(y > 1 & x > 0 ){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[4] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[4] = true;
-			}
-		
-			if(y > 1 & x > 0 & x < samples[0].length - 1){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[4] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[4] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+1], bit)) contextWindow[4] = true;
-			}
-				
-			if(y > 1 & x > 0 & x < samples[0].length - 2){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+2], bit)) contextWindow[5] = true;
-			}
-			
-			if(y > 1 & x > 1 & x < samples[0].length - 2){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-2], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+2], bit)) contextWindow[5] = true;
-			}
-
+			context = getNeighbourContext(band, y, x, bit, width) | getSecondLineContext(band, y, x, bit, width) << 4;
 			if(bit < 15){
-				//horitzontal dist = -1
-				if(x > 0 & y == 0){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+1)) contextWindow[6] = true;
-				}
-				
-				
-				//vertical dist = -1
-				if(y > 0 & x == 0){
-					if(isSignificant(samples[z][y-1][x], bit+1)) contextWindow[6] = true;
-				}
-				
-				if(y > 0 & x > 0 & y < samples.length - 1 & x < samples[0].length - 1){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+1)) contextWindow[6] = true;
-					if(hasBeenSignificant(samples[z][y-1][x], bit+1))contextWindow[6] = true;
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit+1)) contextWindow[7] = true;
-					if(hasBeenSignificant(samples[z][y-1][x+1], bit+1)) contextWindow[7] = true;
-					if(hasBeenSignificant(samples[z][y][x+1], bit+1)) contextWindow[6] = true;
-					if(hasBeenSignificant(samples[z][y][x], bit+1)) contextWindow[8] = true;
-				}	
-				
-				
+				context |= getRefinementContext(band, y, x, bit + 1, width, samples.length) << 6;
 			}
-			
 			if(bit < 14){
-				
-				if(hasBeenSignificant(samples[z][y][x], bit+2)){ 
-					contextWindow[12] = true;
-				}
-				
-				if(y > 1){
-					if(hasBeenSignificant(samples[z][y-1][x], bit+2)){ 
-						contextWindow[12] = true;
-					}
-				}
-				
-				if(x > 0){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+2)){ 
-						contextWindow[12] = true;
-					}
-				}
-				
-				if(y > 0 & x > 0){
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit+2)) contextWindow[12] = true;
-				}
-				
-				if(y > 0 & x < samples[0].length - 1){
-					if(hasBeenSignificant(samples[z][y-1][x+1], bit+2)) contextWindow[12] = true;
-				}
-				
-				
-			}
-			
-			if(bit < 13){
-				
-				if(hasBeenSignificant(samples[z][y][x], bit+3)){ 
-					contextWindow[13] = true;
-				}
-			}
-			
-			if(bit < 12){
-				
-				if(hasBeenSignificant(samples[z][y][x], bit+4)){ 
-					contextWindow[14] = true;
-				}
-			}
-			
-			if(bit < 11){
-				
-				if(hasBeenSignificant(samples[z][y][x], bit+5)){ 
-					contextWindow[15] = true;
-				}
-			}
-			
-		break;
-		
+				int significant = significance(band[y][x], bit + 2);
+				if(y > 1) significant |= significance(band[y-1][x], bit + 2);
+				if(x > 0) significant |= significance(band[y][x-1], bit + 2);
+				if(y > 0 & x > 0) significant |= significance(band[y-1][x-1], bit + 2);
+				if(y > 0 & x < width - 1) significant |= significance(band[y-1][x+1], bit + 2);
+				context |= significant << 12;
+			}
+			if(bit < 13) context |= significance(band[y][x], bit + 3) << 13;
+			if(bit < 12) context |= significance(band[y][x], bit + 4) << 14;
+			if(bit < 11) context |= significance(band[y][x], bit + 5) << 15;
+			break;
 		case 12:
-			//gain = 0.07
-			//vertical dist = -1
-			if(y > 0){
-				if(hasBeenSignificant(samples[z][y-1][x], bit)) contextWindow[0] = true;
-			}
-
-			//gain = 0.06
-			//horitzontal dist = -1
-			if(x > 0){
-				if(hasBeenSignificant(samples[z][y][x-1], bit)) contextWindow[1] = true;
-			}
-			
-			//gain = 0.04
-			//diagonal dist = -1
-			if(y > 0 & x > 0){
-				if(hasBeenSignificant(samples[z][y-1][x-1], bit)) contextWindow[2] = true;
-			}
-			
-			if(y > 0 & x < samples[0].length - 1){
-				if(hasBeenSignificant(samples[z][y-1][x+1], bit)) contextWindow[3] = true;
-			}
-
-			if(y > 1){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[4] = true;
-			}
-			
-			if(y > 1 & x > 0 ){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[4] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[4] = true;
-			}
-		
-			if(y > 1 & x > 0 & x < samples[0].length - 1){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[4] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[4] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+1], bit)) contextWindow[4] = true;
-			}
-				
-			if(y > 1 & x > 0 & x < samples[0].length - 2){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+2], bit)) contextWindow[5] = true;
-			}
-			
-			if(y > 1 & x > 1 & x < samples[0].length - 2){
-				if(hasBeenSignificant(samples[z][y-2][x], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x-2], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+1], bit)) contextWindow[5] = true;
-				if(hasBeenSignificant(samples[z][y-2][x+2], bit)) contextWindow[5] = true;
-			}
-
+			context = getNeighbourContext(band, y, x, bit, width) | getSecondLineContext(band, y, x, bit, width) << 4;
 			if(bit < 15){
-				//horitzontal dist = -1
-				if(x > 0 & y == 0){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+1)) contextWindow[6] = true;
-				}
-				
-				
-				//vertical dist = -1
-				if(y > 0 & x == 0){
-					if(isSignificant(samples[z][y-1][x], bit+1)) contextWindow[6] = true;
-				}
-				
-				if(y > 0 & x > 0 & y < samples.length - 1 & x < samples[0].length - 1){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+1)) contextWindow[6] = true;
-					if(hasBeenSignificant(samples[z][y-1][x], bit+1))contextWindow[6] = true;
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit+1)) contextWindow[7] = true;
-					if(hasBeenSignificant(samples[z][y-1][x+1], bit+1)) contextWindow[7] = true;
-					if(hasBeenSignificant(samples[z][y][x+1], bit+1)) contextWindow[6] = true;
-					if(hasBeenSignificant(samples[z][y][x], bit+1)) contextWindow[8] = true;
-				}	
-				
-				
+				context |= getRefinementContext(band, y, x, bit + 1, width, samples.length) << 6;
 			}
-			
-			
 			if(bit < 14){
-				
-				if(hasBeenSignificant(samples[z][y][x], bit+2)){ 
-					contextWindow[9] = true;
-				}
-				
+				int significant = significance(band[y][x], bit + 2);
 				if(y > 0){
-					if(hasBeenSignificant(samples[z][y-1][x], bit+2)){ 
-						contextWindow[9] = true;
-					}
-				}
-				
-				if(x > 0){
-					if(hasBeenSignificant(samples[z][y][x-1], bit+2)){ 
-						contextWindow[9] = true;
-					}
-				}
-				
-				if(y > 0 & x > 0){
-					if(hasBeenSignificant(samples[z][y-1][x-1], bit+2)) contextWindow[9] = true;
-				}
-				
-				if(y > 0 & x < samples[0].length - 1){
-					if(hasBeenSignificant(samples[z][y-1][x+1], bit+2)) contextWindow[9] = true;
-				}
-				
-				
-			}
-
-			if(z > 0){
-				if(hasBeenSignificant(samples[z-1][y][x], bit)){ 
-					contextWindow[10] = true;
-				}
-			}
-			
-			if(z > 1){
-				if(hasBeenSignificant(samples[z-2][y][x], bit)){ 
-					contextWindow[11] = true;
+					significant |= significance(band[y-1][x], bit + 2);
+					if(x > 0) significant |= significance(band[y-1][x-1], bit + 2);
+					if(x < width - 1) significant |= significance(band[y-1][x+1], bit + 2);
 				}
+				if(x > 0) significant |= significance(band[y][x-1], bit + 2);
+				context |= significant << 9;
 			}
+			if(z > 0) context |= significance(samples[z-1][y][x], bit) << 10;
+			if(z > 1) context |= significance(samples[z-2][y][x], bit) << 11;
 			break;
-		
 		default:
 			throw new Error();
 	}
-	
+	return context + bit * bitplaneContexts;
+}
+
+/**
+ * Returns the significance in a bitplane of the vertical, horizontal and both upper
+ * diagonal neighbours, in the first 4 bits.
+ * 
+ * @param band the lines of the band
+ * @param y the line of the sample
+ * @param x the position of the sample in the line
+ * @param bit the bitplane
+ * @param width the bound of the positions of the neighbours
+ * @return the significances
+ */
+private int getNeighbourContext(int[][] band, int y, int x, int bit, int width){
 	int context = 0;
-	for(int i = 0; i < contextWindow.length; i++){
-		context += contextWindow[i] == true ? BIT_MASKS2[i] : 0;
+	if(y > 0){
+		context = significance(band[y-1][x], bit);
+		if(x > 0) context |= significance(band[y-1][x-1], bit) << 2;
+		if(x < width - 1) context |= significance(band[y-1][x+1], bit) << 3;
 	}
-	
-	if(contextModel != 0){
-		context = context + (bit * BIT_MASKS2[contextWindow.length]);
+	if(x > 0) context |= significance(band[y][x-1], bit) << 1;
+	return context;
+}
+
+/**
+ * Returns the significance in a bitplane of the neighbours two lines above, the
+ * closest ones in the first bit and the wider neighbourhood in the second one.
+ * 
+ * @param band the lines of the band
+ * @param y the line of the sample
+ * @param x the position of the sample in the line
+ * @param bit the bitplane
+ * @param width the bound of the positions of the neighbours
+ * @return the significances
+ */
+private int getSecondLineContext(int[][] band, int y, int x, int bit, int width){
+	if(y <= 1){
+		return 0;
+	}
+	int[] line = band[y-2];
+	int closest = significance(line[x], bit);
+	if(x > 0){
+		closest |= significance(line[x-1], bit);
+		if(x < width - 1) closest |= significance(line[x+1], bit);
 	}
+	int wide = 0;
+	if(x > 0 & x < width - 2){
+		wide = significance(line[x], bit) | significance(line[x-1], bit) | significance(line[x+1], bit) | significance(line[x+2], bit);
+		if(x > 1) wide |= significance(line[x-2], bit);
+	}
+	return closest | wide << 1;
+}
 
-	return context;
+/**
+ * Returns the significance in the previous bitplane of the sample and its neighbours,
+ * the causal neighbours and the next one in the first bit, the upper diagonal ones in
+ * the second bit and the sample itself in the third bit.
+ * 
+ * @param band the lines of the band
+ * @param y the line of the sample
+ * @param x the position of the sample in the line
+ * @param bit the previous bitplane
+ * @param width the bound of the positions of the neighbours
+ * @param height the bound of the lines of the neighbours
+ * @return the significances
+ */
+private int getRefinementContext(int[][] band, int y, int x, int bit, int width, int height){
+	if(x > 0 & y == 0){
+		return significance(band[y][x-1], bit);
+	}
+	if(y > 0 & x == 0){
+		return significance(band[y-1][x], bit);
+	}
+	if(y > 0 & x > 0 & y < height - 1 & x < width - 1){
+		int context = significance(band[y][x-1], bit) | significance(band[y-1][x], bit) | significance(band[y][x+1], bit);
+		context |= (significance(band[y-1][x-1], bit) | significance(band[y-1][x+1], bit)) << 1;
+		return context | significance(band[y][x], bit) << 2;
+	}
+	return 0;
+}
+
+/**
+ * Returns 1 if the value has the bit set and 0 otherwise.
+ * 
+ * @param value the value
+ * @param bit the bit
+ * @return the significance of the value in the bitplane bit
+ */
+private static int significance(int value, int bit){
+	return value >>> bit & 1;
 }
 
 public int getContext(int[][] samples, int[][] predictedSamplesPrevious, int[][]predictedSamplesPrevious2, int z, int y, int x, int bit){
@@ -1781,6 +1542,7 @@ public int getContext(int[][] samples, int[][] predictedSamplesPrevious, int[][]
 		//this.numberOfContextsMagnitud = (numOfContexts*MAXBITS)+1;
 		//this.numberOfContextsSign = 5;
 		//numberOfContexts = numberOfContextsMagnitud + numberOfContextsSign;
+		bitplaneContexts = BIT_MASKS2[contextWindow.length];
 		// TODO check this
 		numberOfContexts = (numOfContexts*16)+1; 
 		return numberOfContexts;
@@ -1,6 +1,7 @@
 package GiciContextModel;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import GiciEntropyCoder.ArithmeticCoder.ArithmeticCoderFLW;
 
@@ -30,67 +31,82 @@ public class ContextProbability implements Serializable{
 	private int numContexts = -1;
 
 	/**
-	 * Current probability of each context.
-	 * <p>
-	 * Each index corresponds to one context. The probability is computed via {@link #prob0ToFLW}.
+	 * Position of the current probability in the state of a context. The probability is computed
+	 * via {@link #prob0ToFLW}.
 	 */
-	private int[] contextProb0FLW = null;
+	private static final int PROB0 = 0;
 	
 	/**
-	 * Current probability of each context.
-	 * <p>
-	 * Each index corresponds to one context. The probability is computed via {@link #prob0ToFLW}.
+	 * Position of the number of 0s coded in the state of a context.
 	 */
-	private int[] contextProb0FLWPreviousState = null;
-
+	private static final int ZEROS = 1;
+	
 	/**
-	 * Number of 0s coded in this context.
-	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * Position of the total number of symbols coded in the state of a context.
 	 */
-	private int[] context0s = null;
+	private static final int TOTAL = 2;
 	
 	/**
-	 * Previous state of the number of 0s coded in this context.
-	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * Position of the number of 0s coded in the last WINDOW_PROB symbols in the state of a context.
+	 */
+	private static final int WINDOW = 3;
+	
+	/**
+	 * Number of values of the state of a context.
 	 */
-	private int[] context0sPreviousState = null;
+	private static final int STATE_SIZE = 4;
+	
+	/**
+	 * Position of the state of the state machine in the state of a context, only for
+	 * probabilityModel = 4. It takes the place of the number of 0s.
+	 */
+	private static final int MACHINE_STATE = ZEROS;
+	
+	/**
+	 * Position of the most probable symbol (0 or 1) in the state of a context, only for
+	 * probabilityModel = 4. It takes the place of the total number of symbols.
+	 */
+	private static final int MPS = TOTAL;
 
 	/**
-	 * Number of 0s coded in the last WINDOW_PROB symbols coded.
+	 * State of each context.
 	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * The {@link #STATE_SIZE} values of a context are consecutive, starting at
+	 * <code>context * STATE_SIZE</code>, so that coding a symbol only touches one cache line.
+	 * They are the probability ({@link #PROB0}), the number of 0s ({@link #ZEROS}), the total
+	 * number of symbols ({@link #TOTAL}) and the number of 0s at the last window mark
+	 * ({@link #WINDOW}). They are initialized in the <code>reset</code> function.
+	 */
+	private int[] contextState = null;
+	
+	/**
+	 * Previous state of each context, with the same layout as {@link #contextState}.
 	 */
-	private int[] context0sWindow = null;
+	private int[] contextStatePreviousState = null;
 
 	/**
-	 * Number of 0s coded in the last WINDOW_PROB symbols coded.
+	 * Last WINDOW_PROB symbols coded in each context, only for probabilityModel = 3.
 	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * Each context keeps a ring buffer of {@link #slidingWindowWords} words starting at
+	 * <code>context * slidingWindowWords</code>, with one bit per symbol that is set for the
+	 * symbols 1 (or true). The oldest symbol is at {@link #slidingWindowPosition}.
 	 */
-	private boolean[][] context0sSlidingWindow = null;
+	private long[] context0sSlidingWindow = null;
 	
 	/**
-	 * Number of 0s coded in the last WINDOW_PROB symbols coded.
-	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * Number of words of the sliding window of each context.
 	 */
-	private int[] context0sWindowPreviousState = null;
+	private int slidingWindowWords = 0;
 	
 	/**
-	 * Total number of symbols coded in this context.
-	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * Position of the oldest symbol in the sliding window of each context.
 	 */
-	private int[] contextTotal = null;
+	private int[] slidingWindowPosition = null;
 	
 	/**
-	 * Previous state of the total number of symbols coded in this context.
-	 * <p>
-	 * It is initialized to 0 in the <code>reset</code> function.
+	 * Number of 0s in the sliding window of each context, all the symbols are 0 initially.
 	 */
-	private int[] contextTotalPreviousState = null;
+	private int[] slidingWindow0s = null;
 	
 	/**
 	 * Number of bits to represent the probability employed to code the symbols. Note that to use fewer
@@ -108,10 +124,49 @@ public class ContextProbability implements Serializable{
 	 * <li>0: The probability is computed using a full division is computed. Max Precision.</li>
 	 * <li>1: The probability is computed using a division implemented through a quantized Look Up Table.</li>
 	 * <li>2: The probability is computed using a the Arithmetic Mean.</li>
+	 * <li>3: The probability is computed using a full division in a symbol-by-symbol fashion.</li>
+	 * <li>4: The probability is given by a state machine, without divisions.</li>
 	 * </ul>
 	 */
 	private int probabilityModel = 0;
 	
+	/**
+	 * Fixed-point reciprocals of the totals for probabilityModel = 0, so that the probability is
+	 * computed with a multiplication and a shift instead of a division.
+	 * <p>
+	 * <code>reciprocals[t]</code> is 2^{@link #reciprocalShift} / t rounded up. The shift is large
+	 * enough for the result to be the same as the division when the number of 0s is smaller than
+	 * the total. The totals out of the table use the division.
+	 */
+	private long[] reciprocals = new long[0];
+	
+	/**
+	 * Number of fractional bits of the {@link #reciprocals}.
+	 */
+	private int reciprocalShift = 0;
+	
+	/**
+	 * Probability of the least probable symbol in each state of the state machine of
+	 * probabilityModel = 4, represented with precisionBits bits.
+	 * <p>
+	 * The probability of state s is 0.5 * alpha^s, with alpha = 1 - 1 / WINDOW_PROB, so the
+	 * estimation adapts to about the last WINDOW_PROB symbols as the other models. The last state
+	 * has the smallest probability that can be represented.
+	 */
+	private int[] stateProbLPS = null;
+	
+	/**
+	 * Transition of the state machine when coding the least probable symbol. When coding the most
+	 * probable symbol the state is increased by one, up to the last state. As in the MQ coder, the
+	 * most probable symbol is swapped when coding the least probable symbol in state 0.
+	 */
+	private int[] stateNextLPS = null;
+	
+	/**
+	 * State of the state machine of the contexts when they are reset.
+	 */
+	private int initialMachineState = 0;
+	
 	/**
 	 * Look Up Table that stores the precomputed probabilities.
 	 * <p>
@@ -137,16 +192,16 @@ public class ContextProbability implements Serializable{
 			this.WINDOW_PROB = WINDOW_PROB;
 			this.UPDATE_PROB0 = UPDATE_PROB0 = WINDOW_PROB;
 		}
+		if(probabilityModel == 4) {
+			this.WINDOW_PROB = WINDOW_PROB;
+		}
 		
-		contextProb0FLW = new int[numContexts];
-		context0s = new int[numContexts];
-		contextTotal = new int[numContexts];
-		context0sPreviousState = new int[numContexts];
-		contextTotalPreviousState = new int[numContexts];
-		context0sWindowPreviousState = new int[numContexts];
-		contextProb0FLWPreviousState = new int[numContexts];
-		context0sWindow = new int[numContexts];
-		context0sSlidingWindow = new boolean[numContexts][this.WINDOW_PROB];
+		contextState = new int[numContexts * STATE_SIZE];
+		contextStatePreviousState = new int[numContexts * STATE_SIZE];
+		if(probabilityModel == 3){ //the sliding window is only used by this model
+			setSlidingWindow(numContexts);
+			Arrays.fill(slidingWindow0s, this.WINDOW_PROB);
+		}
 		this.probabilityModel = probabilityModel;
 		this.precisionBits = precisionBits;
 		this.numContexts = numContexts;
@@ -157,6 +212,12 @@ public class ContextProbability implements Serializable{
 			this.UPDATE_PROB0--;
 		}*/
 		symbolCounter = new int[numContexts];
+		if(probabilityModel == 0){
+			setReciprocals();
+		}
+		if(probabilityModel == 4){
+			setStateMachine();
+		}
 		reset();
 		
 		if(probabilityModel == 1){
@@ -174,84 +235,94 @@ public class ContextProbability implements Serializable{
 	public int getProbability(int context){
 		
 		int prob = 0;
+		int state = context * STATE_SIZE;
 		
 		switch(probabilityModel){
 			case 0:
-				if((contextTotal[context] & UPDATE_PROB0) == UPDATE_PROB0){
-					if(context0s[context] == 0){
-						contextProb0FLW[context] = 1;
-					}else if(context0s[context] == contextTotal[context]){
-						contextProb0FLW[context] = (1 << precisionBits) - 1;
+				if((contextState[state + TOTAL] & UPDATE_PROB0) == UPDATE_PROB0){
+					if(contextState[state + ZEROS] == 0){
+						contextState[state + PROB0] = 1;
+					}else if(contextState[state + ZEROS] == contextState[state + TOTAL]){
+						contextState[state + PROB0] = (1 << precisionBits) - 1;
 					}else{
-						assert(context0s[context] * (double) (1 << precisionBits) <= Integer.MAX_VALUE);
+						assert(contextState[state + ZEROS] * (double) (1 << precisionBits) <= Integer.MAX_VALUE);
 						
-						contextProb0FLW[context] = (context0s[context] << precisionBits) / contextTotal[context];
+						int total = contextState[state + TOTAL];
+						if(total < reciprocals.length){
+							contextState[state + PROB0] = (int) (((long) contextState[state + ZEROS] << precisionBits) * reciprocals[total] >>> reciprocalShift);
+						}else{
+							contextState[state + PROB0] = (contextState[state + ZEROS] << precisionBits) / total;
+						}
 					}
 					
-					assert((contextProb0FLW[context] > 0) && (contextProb0FLW[context] < (1 << precisionBits)));
+					assert((contextState[state + PROB0] > 0) && (contextState[state + PROB0] < (1 << precisionBits)));
 					
-					if((contextTotal[context] & WINDOW_PROB) == WINDOW_PROB){
-						if(context0sWindow[context] != -1){
-							contextTotal[context] -= WINDOW_PROB;
-							context0s[context] -= context0sWindow[context];
+					if((contextState[state + TOTAL] & WINDOW_PROB) == WINDOW_PROB){
+						if(contextState[state + WINDOW] != -1){
+							contextState[state + TOTAL] -= WINDOW_PROB;
+							contextState[state + ZEROS] -= contextState[state + WINDOW];
 						}
-						context0sWindow[context] = context0s[context];
+						contextState[state + WINDOW] = contextState[state + ZEROS];
 					}
 				}
-				prob = contextProb0FLW[context];
+				prob = contextState[state + PROB0];
 				
-				//System.out.println(contextProb0FLW[context]);
+				//System.out.println(contextState[state + PROB0]);
 				
 				break;
 	
 					
 			case 1:
-				if((contextTotal[context] & UPDATE_PROB0) == UPDATE_PROB0){
-					if(context0s[context] == 0){
-						contextProb0FLW[context] = 1;
-					}else if(context0s[context] == contextTotal[context]){
-						contextProb0FLW[context] = (1 << precisionBits) - 1;
+				if((contextState[state + TOTAL] & UPDATE_PROB0) == UPDATE_PROB0){
+					if(contextState[state + ZEROS] == 0){
+						contextState[state + PROB0] = 1;
+					}else if(contextState[state + ZEROS] == contextState[state + TOTAL]){
+						contextState[state + PROB0] = (1 << precisionBits) - 1;
 					}else{
-						contextProb0FLW[context] = LUTProbs[context0s[context] >> LUTProbQuantizer ][contextTotal[context] >> LUTProbQuantizer];
+						contextState[state + PROB0] = LUTProbs[contextState[state + ZEROS] >> LUTProbQuantizer ][contextState[state + TOTAL] >> LUTProbQuantizer];
 					}
-					assert((contextProb0FLW[context] > 0) && (contextProb0FLW[context] < (1 << precisionBits)));
-					if((contextTotal[context] & WINDOW_PROB) == WINDOW_PROB){
-						if(context0sWindow[context] != -1){
-							contextTotal[context] -= WINDOW_PROB;
-							context0s[context] -= context0sWindow[context];
+					assert((contextState[state + PROB0] > 0) && (contextState[state + PROB0] < (1 << precisionBits)));
+					if((contextState[state + TOTAL] & WINDOW_PROB) == WINDOW_PROB){
+						if(contextState[state + WINDOW] != -1){
+							contextState[state + TOTAL] -= WINDOW_PROB;
+							contextState[state + ZEROS] -= contextState[state + WINDOW];
 						}
-						context0sWindow[context] = context0s[context];
+						contextState[state + WINDOW] = contextState[state + ZEROS];
 					}
 				}
 				// TODO check prob != 0 i != max?
-				if(contextProb0FLW[context] == 0)contextProb0FLW[context] = 1;
-				prob = contextProb0FLW[context];
+				if(contextState[state + PROB0] == 0)contextState[state + PROB0] = 1;
+				prob = contextState[state + PROB0];
 				break;
 	
 			case 2:
 				assert(UPDATE_PROB0 <= WINDOW_PROB);
 				
-				if((contextTotal[context] & UPDATE_PROB0) == UPDATE_PROB0){
+				if((contextState[state + TOTAL] & UPDATE_PROB0) == UPDATE_PROB0){
 					
-					if(context0s[context] == 0){
-						contextProb0FLW[context] = 1;
-					}else if(context0s[context] == contextTotal[context]){
-						contextProb0FLW[context] = (1 << precisionBits) - 1;
+					if(contextState[state + ZEROS] == 0){
+						contextState[state + PROB0] = 1;
+					}else if(contextState[state + ZEROS] == contextState[state + TOTAL]){
+						contextState[state + PROB0] = (1 << precisionBits) - 1;
 					}else{
-						contextProb0FLW[context] = (int) (((long)context0s[context] << (long)precisionBits) >> (long)(Integer.SIZE - Integer.numberOfLeadingZeros(UPDATE_PROB0 - 1)));
-						if(contextProb0FLW[context] == 0) contextProb0FLW[context] = 1;
+						contextState[state + PROB0] = (int) (((long)contextState[state + ZEROS] << (long)precisionBits) >> (long)(Integer.SIZE - Integer.numberOfLeadingZeros(UPDATE_PROB0 - 1)));
+						if(contextState[state + PROB0] == 0) contextState[state + PROB0] = 1;
 					}
-					context0s[context] = context0s[context] >> 1;
-					contextTotal[context] = contextTotal[context] >> 1;
+					contextState[state + ZEROS] = contextState[state + ZEROS] >> 1;
+					contextState[state + TOTAL] = contextState[state + TOTAL] >> 1;
 
 				}
 				
 				// TODO check prob != 0 i != max?
 				
-				if(contextProb0FLW[context] == 0){
-					contextProb0FLW[context] = 1;
+				if(contextState[state + PROB0] == 0){
+					contextState[state + PROB0] = 1;
 				}				
-				prob = contextProb0FLW[context];
+				prob = contextState[state + PROB0];
+				break;
+				
+			case 4:
+				prob = contextState[state + PROB0];
 				break;
 				
 			default:
@@ -271,6 +342,7 @@ public class ContextProbability implements Serializable{
 	public int getProbability(boolean bit, int context){
 		
 		int prob = 0;
+		int state = context * STATE_SIZE;
 		int numOfZeros = 0;
 		symbolCounter[context]++;
 		if(symbolCounter[context] == WINDOW_PROB){
@@ -279,39 +351,63 @@ public class ContextProbability implements Serializable{
 			numOfZeros = get0sFromcontext0sSlidingWindowAndUpdate(bit, context);
 			symbolCounter[context]--;
 			if(numOfZeros == 0){
-				contextProb0FLW[context] = 1;
-			}else if(numOfZeros == contextTotal[context]){
-				contextProb0FLW[context] = (1 << precisionBits) - 1;
+				contextState[state + PROB0] = 1;
+			}else if(numOfZeros == contextState[state + TOTAL]){
+				contextState[state + PROB0] = (1 << precisionBits) - 1;
 			}else{
-				assert(context0s[context] * (double) (1 << precisionBits) <= Integer.MAX_VALUE);
+				assert(contextState[state + ZEROS] * (double) (1 << precisionBits) <= Integer.MAX_VALUE);
 				
 				
-				contextProb0FLW[context] = (numOfZeros << precisionBits) / contextTotal[context];
+				contextState[state + PROB0] = (numOfZeros << precisionBits) / contextState[state + TOTAL];
 			}
 			
-			assert((contextProb0FLW[context] > 0) && (contextProb0FLW[context] < (1 << precisionBits)));
+			assert((contextState[state + PROB0] > 0) && (contextState[state + PROB0] < (1 << precisionBits)));
 			
-				contextTotal[context]--;
+				contextState[state + TOTAL]--;
 			
 				
 			
 		}
-		prob = contextProb0FLW[context];
+		prob = contextState[state + PROB0];
 		//if(prob == 0)System.out.println(symbolCounter[context]+" "+numOfZeros+" "+(prob / (double) (1 << 15)));
 				
 		
 		return(prob);
 	}
 		
+	/**
+	 * Returns the number of 0s in the sliding window of a context and replaces its oldest
+	 * symbol with the new one. The count is kept with the window, so it does not depend on
+	 * the window size.
+	 * 
+	 * @param bit the new symbol
+	 * @param context of the symbol
+	 * @return the number of 0s in the window before adding the symbol
+	 */
 	private int get0sFromcontext0sSlidingWindowAndUpdate(boolean bit, int context) {
-		int count = 0;
-		for(int symbol = 0; symbol < WINDOW_PROB; symbol++){
-			if(!context0sSlidingWindow[context][symbol]) count++;
-			if(symbol < WINDOW_PROB-1)context0sSlidingWindow[context][symbol] = context0sSlidingWindow[context][symbol+1];
+		int count = slidingWindow0s[context];
+		int position = slidingWindowPosition[context];
+		int word = context * slidingWindowWords + (position >>> 6);
+		long mask = 1L << position;
+		if(((context0sSlidingWindow[word] & mask) != 0) != bit){
+			context0sSlidingWindow[word] ^= mask;
+			slidingWindow0s[context] = bit ? count - 1 : count + 1;
 		}
-		context0sSlidingWindow[context][WINDOW_PROB-1] = bit;
+		slidingWindowPosition[context] = position + 1 == WINDOW_PROB ? 0 : position + 1;
 		return count;
 	}
+	
+	/**
+	 * Allocates the sliding windows of the contexts.
+	 * 
+	 * @param numContexts number of contexts
+	 */
+	private void setSlidingWindow(int numContexts){
+		slidingWindowWords = (WINDOW_PROB + Long.SIZE - 1) / Long.SIZE;
+		context0sSlidingWindow = new long[numContexts * slidingWindowWords];
+		slidingWindowPosition = new int[numContexts];
+		slidingWindow0s = new int[numContexts];
+	}
 
 	/**
 	 * Updates the number of symbols coded for this context.
@@ -320,28 +416,76 @@ public class ContextProbability implements Serializable{
 	 * @param context of the symbol
 	 */
 	public void updateSymbols(boolean bit, int context){
+		int state = context * STATE_SIZE;
+		if(probabilityModel == 4){
+			updateStateMachine(bit, state);
+			return;
+		}
 		//Updates the number of symbols coded for this context
 		if(bit == false){
-			context0s[context]++;
+			contextState[state + ZEROS]++;
+		}
+		contextState[state + TOTAL]++;	
+	}
+	
+	/**
+	 * Returns the probability of a context and updates the number of symbols coded for it with
+	 * the symbol, as {@link #getProbability(int)} followed by {@link #updateSymbols}. It can only
+	 * be used when the symbol is known before getting its probability, i.e., in the coder.
+	 * 
+	 * @param bit input
+	 * @param context of the symbol
+	 * @return the probability of the symbol 0 (or false) employed to code the symbol
+	 */
+	public int codeAndUpdate(boolean bit, int context){
+		int prob = getProbability(context);
+		int state = context * STATE_SIZE;
+		if(probabilityModel == 4){
+			updateStateMachine(bit, state);
+			return(prob);
+		}
+		if(bit == false){
+			contextState[state + ZEROS]++;
 		}
-		contextTotal[context]++;	
+		contextState[state + TOTAL]++;
+		return(prob);
+	}
+	
+	/**
+	 * Moves the state machine of a context to its next state and sets the probability of the
+	 * new state.
+	 * 
+	 * @param bit input
+	 * @param state position of the state of the context in {@link #contextState}
+	 */
+	private void updateStateMachine(boolean bit, int state){
+		int machineState = contextState[state + MACHINE_STATE];
+		int mps = contextState[state + MPS];
+		if((bit ? 1 : 0) == mps){
+			if(machineState < stateProbLPS.length - 1){
+				machineState++;
+			}
+		}else{
+			if(machineState == 0){
+				mps = 1 - mps;
+				contextState[state + MPS] = mps;
+			}
+			machineState = stateNextLPS[machineState];
+		}
+		contextState[state + MACHINE_STATE] = machineState;
+		contextState[state + PROB0] = mps == 0 ? (1 << precisionBits) - stateProbLPS[machineState] : stateProbLPS[machineState];
 	}
 	
 	/**
 	 * Saves the current ocntext State
 	 */
 	public void saveContextCurrentState(){
-		for(int c = 0; c < numContexts; c++){
-			context0sPreviousState[c] = context0s[c];
-			contextTotalPreviousState[c] = contextTotal[c];
-			context0sWindowPreviousState[c] = context0sWindow[c];
-			contextProb0FLWPreviousState[c] = contextProb0FLW[c];
-		}
+		System.arraycopy(contextState, 0, contextStatePreviousState, 0, contextState.length);
 	}
 	
 	public void printContextState(){
-		for(int c = 0; c < numContexts; c++){
-			if(context0s[c] != 2 )System.out.println("Context: "+c+" "+context0s[c]+" "+contextTotal[c]+" "+context0sWindow[c]+" "+(contextProb0FLW[c])/ (double) (1 << 15));
+		for(int c = 0, state = 0; c < numContexts; c++, state += STATE_SIZE){
+			if(contextState[state + ZEROS] != 2 )System.out.println("Context: "+c+" "+contextState[state + ZEROS]+" "+contextState[state + TOTAL]+" "+contextState[state + WINDOW]+" "+(contextState[state + PROB0])/ (double) (1 << 15));
 		}	
 	}
 	
@@ -349,23 +493,28 @@ public class ContextProbability implements Serializable{
 	 * Loads the current context State
 	 */
 	public void loadContextStatePreviousState(){
-		for(int c = 0; c < numContexts; c++){
-			context0s[c] = context0sPreviousState[c];
-			contextTotal[c] = contextTotalPreviousState[c];
-			context0sWindow[c]  = context0sWindowPreviousState[c];
-			contextProb0FLW[c] = contextProb0FLWPreviousState[c];
-		}
+		System.arraycopy(contextStatePreviousState, 0, contextState, 0, contextState.length);
 	}
 	
 	/**
 	 * Resets the state of all contexts.
 	 */
 	public void reset(){
-		for(int c = 0; c < numContexts; c++){
-			contextProb0FLW[c] = prob0ToFLW(0.66f, precisionBits); //Slightly biased towards 0
-			context0s[c] = 2;
-			context0sWindow[c] = -1;
-			contextTotal[c] = 3;
+		int prob0 = prob0ToFLW(0.66f, precisionBits); //Slightly biased towards 0
+		if(probabilityModel == 4){
+			for(int state = 0; state < contextState.length; state += STATE_SIZE){
+				contextState[state + PROB0] = (1 << precisionBits) - stateProbLPS[initialMachineState];
+				contextState[state + MACHINE_STATE] = initialMachineState;
+				contextState[state + MPS] = 0;
+				contextState[state + WINDOW] = -1;
+			}
+			return;
+		}
+		for(int state = 0; state < contextState.length; state += STATE_SIZE){
+			contextState[state + PROB0] = prob0;
+			contextState[state + ZEROS] = 2;
+			contextState[state + TOTAL] = 3;
+			contextState[state + WINDOW] = -1;
 		}
 	}
 	
@@ -407,13 +556,99 @@ public class ContextProbability implements Serializable{
 		}}
 	}
 	
+	/**
+	 * Sets the reciprocals of the totals of probabilityModel = 0. The totals are smaller than
+	 * 2 * (WINDOW_PROB + 1), since they are decreased by WINDOW_PROB once they reach
+	 * 2 * WINDOW_PROB + 1. With a shift of 2 * totalBits + precisionBits bits, the error of the
+	 * reciprocal times any numerator smaller than total * 2^precisionBits is below 1, so the
+	 * result is exact. When the products do not fit in a long the table is left empty.
+	 */
+	private void setReciprocals(){
+		int maxTotal = 2 * (WINDOW_PROB + 1);
+		int totalBits = Integer.SIZE - Integer.numberOfLeadingZeros(maxTotal);
+		reciprocalShift = 2 * totalBits + precisionBits;
+		if(reciprocalShift + precisionBits >= Long.SIZE - 1){
+			return;
+		}
+		reciprocals = new long[maxTotal + 1];
+		for(int total = 1; total <= maxTotal; total++){
+			reciprocals[total] = ((1L << reciprocalShift) + total - 1) / total;
+		}
+	}
+	
+	/**
+	 * Sets the state machine of probabilityModel = 4. The transitions when coding the least
+	 * probable symbol go to the state whose probability is the closest to the updated one,
+	 * alpha * p + (1 - alpha), as in the derivation of the CABAC state tables.
+	 */
+	private void setStateMachine(){
+		double alpha = 1 - 1d / Math.max(WINDOW_PROB, 2);
+		double minProb = 1d / (1 << precisionBits);
+		int numStates = (int) Math.ceil(Math.log(2 * minProb) / Math.log(alpha)) + 1;
+		stateProbLPS = new int[numStates];
+		stateNextLPS = new int[numStates];
+		for(int machineState = 0; machineState < numStates; machineState++){
+			double prob = 0.5 * Math.pow(alpha, machineState);
+			stateProbLPS[machineState] = Math.max(1, (int) Math.round(prob * (1 << precisionBits)));
+			stateNextLPS[machineState] = getMachineState(alpha * prob + (1 - alpha), alpha);
+		}
+		initialMachineState = getMachineState(0.34, alpha); //Slightly biased towards 0
+	}
+	
+	/**
+	 * Returns the state of the state machine whose probability is the closest to a given one.
+	 * 
+	 * @param probLPS the probability of the least probable symbol, in the range (0,0.5]
+	 * @param alpha the ratio between the probabilities of consecutive states
+	 * @return the state
+	 */
+	private int getMachineState(double probLPS, double alpha){
+		int machineState = (int) Math.round(Math.log(probLPS / 0.5) / Math.log(alpha));
+		return(Math.max(0, Math.min(machineState, stateProbLPS.length - 1)));
+	}
+	
+	/**
+	 * Builds a ContextProbability with the same configuration and state as another one. The
+	 * look up table of probabilities, the reciprocals and the state machine are shared, since
+	 * they are never modified.
+	 * 
+	 * @param another is the ContextProbability to copy from
+	 */
+	private ContextProbability(ContextProbability another){
+		this.UPDATE_PROB0 = another.UPDATE_PROB0;
+		this.WINDOW_PROB = another.WINDOW_PROB;
+		this.numContexts = another.numContexts;
+		this.precisionBits = another.precisionBits;
+		this.LUTProbs = another.LUTProbs;
+		this.reciprocals = another.reciprocals;
+		this.reciprocalShift = another.reciprocalShift;
+		this.stateProbLPS = another.stateProbLPS;
+		this.stateNextLPS = another.stateNextLPS;
+		this.initialMachineState = another.initialMachineState;
+		this.LUTProbQuantizer = another.LUTProbQuantizer;
+		
+		contextState = new int[numContexts * STATE_SIZE];
+		contextStatePreviousState = new int[numContexts * STATE_SIZE];
+		if(another.probabilityModel == 3){
+			setSlidingWindow(numContexts);
+		}
+		symbolCounter = new int[numContexts];
+		copy(another);
+	}
+	
+	/**
+	 * Copies the state of another ContextProbability, which must have the same number of contexts.
+	 * 
+	 * @param another is the ContextProbability to copy from
+	 */
 	public void copy (ContextProbability another){
 		
-		for(int c = 0; c < numContexts; c++){
-			this.context0s[c] = another.context0s[c];
-			this.contextTotal[c] = another.contextTotal[c]; 
-			this.context0sWindow[c]  = another.context0sWindow[c];
-			this.contextProb0FLW[c] = another.contextProb0FLW[c];
+		System.arraycopy(another.contextState, 0, this.contextState, 0, contextState.length);
+		System.arraycopy(another.symbolCounter, 0, this.symbolCounter, 0, numContexts);
+		if(another.probabilityModel == 3){
+			System.arraycopy(another.context0sSlidingWindow, 0, this.context0sSlidingWindow, 0, context0sSlidingWindow.length);
+			System.arraycopy(another.slidingWindowPosition, 0, this.slidingWindowPosition, 0, numContexts);
+			System.arraycopy(another.slidingWindow0s, 0, this.slidingWindow0s, 0, numContexts);
 		}
 		this.probabilityModel = another.probabilityModel;
 	}
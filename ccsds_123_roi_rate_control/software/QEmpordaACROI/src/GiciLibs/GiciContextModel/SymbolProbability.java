@@ -0,0 +1,223 @@
+package GiciContextModel;
+
+import java.io.Serializable;
+
+/**
+ * This class keeps the adaptive frequencies of a small alphabet in several contexts, to code
+ * each symbol with a single step of {@link GiciEntropyCoder.ArithmeticCoder.ArithmeticCoderFLW#encodeSymbol}.
+ * <p>
+ * It is employed to code the mapped prediction residuals with one symbol per sample. The low
+ * magnitudes are the symbols 0 to {@link #ESCAPE} - 1, whereas the larger ones are coded with the
+ * symbol {@link #ESCAPE} followed by a tail. The context of a sample is given by the magnitude of its
+ * causal neighbours, and the residuals of the contexts with large magnitudes are shifted so that
+ * their most significant part fits in the alphabet.
+ */
+public class SymbolProbability implements Serializable{
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of symbols of the alphabet.
+	 */
+	public static final int NUM_SYMBOLS = 16;
+
+	/**
+	 * Symbol that indicates that the magnitude does not fit in the alphabet.
+	 */
+	public static final int ESCAPE = NUM_SYMBOLS - 1;
+
+	/**
+	 * Number of contexts, one for each bit length of the magnitude of the neighbours.
+	 */
+	public static final int NUM_CONTEXTS = 33;
+
+	/**
+	 * Bit length of the magnitude of the neighbours from which the residuals are shifted.
+	 */
+	private static final int SHIFT_OFFSET = 2;
+
+	/**
+	 * Maximum number of symbols coded in a context before updating its cumulative frequencies.
+	 */
+	private static final int MAX_UPDATE_INTERVAL = 32;
+
+	/**
+	 * Maximum number of symbols counted in a context. When it is reached, the counts of the
+	 * context are halved.
+	 */
+	private int WINDOW_PROB = 2048;
+
+	/**
+	 * Number of bits of the cumulative frequencies, which sum 2^precisionBits.
+	 */
+	private int precisionBits = 0;
+
+	/**
+	 * Number of times that each symbol has been coded in each context, starting at
+	 * <code>context * NUM_SYMBOLS</code>.
+	 */
+	private int[] symbolCounts = null;
+
+	/**
+	 * Sum of the counts of each context.
+	 */
+	private int[] contextTotals = null;
+
+	/**
+	 * Cumulative frequencies of each context, starting at <code>context * (NUM_SYMBOLS + 1)</code>.
+	 */
+	private int[] cumulativeFrequencies = null;
+
+	/**
+	 * Number of symbols to code in each context before updating its cumulative frequencies.
+	 */
+	private int[] symbolsToUpdate = null;
+
+	/**
+	 * Current update interval of each context. It starts at 1 and it is doubled up to
+	 * {@link #MAX_UPDATE_INTERVAL}, so the contexts adapt fast at the beginning.
+	 */
+	private int[] updateIntervals = null;
+
+	/**
+	 * Frequencies of a context while its cumulative frequencies are computed.
+	 */
+	private int[] frequencies = new int[NUM_SYMBOLS];
+
+	/**
+	 * Constructor of SymbolProbability.
+	 *
+	 * @param precisionBits number of bits of the cumulative frequencies, the same ones of the arithmetic coder
+	 * @param WINDOW_PROB maximum number of symbols counted in a context
+	 */
+	public SymbolProbability(int precisionBits, int WINDOW_PROB){
+		assert(precisionBits > 4 && precisionBits < 31);
+		this.precisionBits = precisionBits;
+		if(WINDOW_PROB > NUM_SYMBOLS){
+			this.WINDOW_PROB = WINDOW_PROB;
+		}
+		symbolCounts = new int[NUM_CONTEXTS * NUM_SYMBOLS];
+		contextTotals = new int[NUM_CONTEXTS];
+		cumulativeFrequencies = new int[NUM_CONTEXTS * (NUM_SYMBOLS + 1)];
+		symbolsToUpdate = new int[NUM_CONTEXTS];
+		updateIntervals = new int[NUM_CONTEXTS];
+		reset();
+	}
+
+	/**
+	 * Sets all the symbols of all the contexts as equiprobable.
+	 */
+	public void reset(){
+		for(int context = 0; context < NUM_CONTEXTS; context++){
+			for(int symbol = 0; symbol < NUM_SYMBOLS; symbol++){
+				symbolCounts[context * NUM_SYMBOLS + symbol] = 1;
+			}
+			contextTotals[context] = NUM_SYMBOLS;
+			updateIntervals[context] = 1;
+			symbolsToUpdate[context] = 1;
+			computeCumulativeFrequencies(context);
+		}
+	}
+
+	/**
+	 * Returns the context of a sample, given by the bit length of the mean magnitude of its
+	 * left and upper neighbours.
+	 *
+	 * @param line mapped residuals of the current line
+	 * @param previousLine mapped residuals of the previous line
+	 * @param x position of the sample in the line
+	 * @return the context, in the range [0, NUM_CONTEXTS)
+	 */
+	public static int getContext(int[] line, int[] previousLine, int x){
+		int up = previousLine[x];
+		int left = x > 0 ? line[x - 1] : up;
+		return(32 - Integer.numberOfLeadingZeros((left + up + 1) >>> 1));
+	}
+
+	/**
+	 * Returns the number of low bits of the residuals of a context that are coded out of the alphabet.
+	 *
+	 * @param context the context of the sample
+	 * @return the number of bits
+	 */
+	public static int getShift(int context){
+		return(context > SHIFT_OFFSET ? context - SHIFT_OFFSET : 0);
+	}
+
+	/**
+	 * Returns the cumulative frequencies of all the contexts. The ones of a context start at
+	 * {@link #getOffset}.
+	 *
+	 * @return the array of cumulative frequencies, it must not be modified
+	 */
+	public int[] getCumulativeFrequencies(){
+		return(cumulativeFrequencies);
+	}
+
+	/**
+	 * Returns the position of the cumulative frequencies of a context.
+	 *
+	 * @param context the context
+	 * @return the position in the array given by {@link #getCumulativeFrequencies}
+	 */
+	public int getOffset(int context){
+		return(context * (NUM_SYMBOLS + 1));
+	}
+
+	/**
+	 * Updates the counts of a context with the symbol just coded. Its cumulative frequencies are
+	 * recomputed when the update interval of the context expires.
+	 *
+	 * @param context the context
+	 * @param symbol the coded symbol
+	 */
+	public void update(int context, int symbol){
+		symbolCounts[context * NUM_SYMBOLS + symbol]++;
+		if(++contextTotals[context] > WINDOW_PROB){
+			int total = 0;
+			for(int s = context * NUM_SYMBOLS; s < (context + 1) * NUM_SYMBOLS; s++){
+				symbolCounts[s] = (symbolCounts[s] + 1) >> 1;
+				total += symbolCounts[s];
+			}
+			contextTotals[context] = total;
+		}
+		if(--symbolsToUpdate[context] == 0){
+			computeCumulativeFrequencies(context);
+			if(updateIntervals[context] < MAX_UPDATE_INTERVAL){
+				updateIntervals[context] <<= 1;
+			}
+			symbolsToUpdate[context] = updateIntervals[context];
+		}
+	}
+
+	/**
+	 * Computes the cumulative frequencies of a context from its counts. Each symbol gets a
+	 * frequency of at least 1, and the rounding remainder is given to the most frequent symbol.
+	 *
+	 * @param context the context
+	 */
+	private void computeCumulativeFrequencies(int context){
+		int countsOffset = context * NUM_SYMBOLS;
+		long free = (1 << precisionBits) - NUM_SYMBOLS;
+		int total = contextTotals[context];
+		int sum = 0;
+		int mostFrequent = 0;
+		for(int symbol = 0; symbol < NUM_SYMBOLS; symbol++){
+			int count = symbolCounts[countsOffset + symbol];
+			frequencies[symbol] = 1 + (int) (count * free / total);
+			sum += frequencies[symbol];
+			if(count > symbolCounts[countsOffset + mostFrequent]){
+				mostFrequent = symbol;
+			}
+		}
+		frequencies[mostFrequent] += (1 << precisionBits) - sum;
+
+		int offset = getOffset(context);
+		sum = 0;
+		for(int symbol = 0; symbol < NUM_SYMBOLS; symbol++){
+			cumulativeFrequencies[offset + symbol] = sum;
+			sum += frequencies[symbol];
+		}
+		cumulativeFrequencies[offset + NUM_SYMBOLS] = sum;
+	}
+}
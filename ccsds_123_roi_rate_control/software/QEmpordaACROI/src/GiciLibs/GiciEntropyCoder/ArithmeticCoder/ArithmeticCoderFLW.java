@@ -14,6 +14,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 import GiciEntropyCoder.EntropyIntegerCoder.EntropyIntegerCoder;
 import GiciEntropyCoder.Interface.EntropyCoder;
@@ -210,6 +211,45 @@ public final class ArithmeticCoderFLW implements EntropyCoder, EntropyDecoder{
 	 * number of bits written to the stream for the current segment size
 	 */
 	private long numBitsWritten = 0;
+
+	/**
+	 * Number of fractional bits of the costs kept in the accounting buckets.
+	 */
+	private static final int ACCOUNTING_FRACTION_BITS = 16;
+
+	/**
+	 * Number of bits of the mantissa used to index LOG2_TABLE.
+	 */
+	private static final int LOG2_TABLE_BITS = 10;
+
+	/**
+	 * log2(1 + i / 2^LOG2_TABLE_BITS) with ACCOUNTING_FRACTION_BITS fractional bits.
+	 */
+	private static final int[] LOG2_TABLE = new int[1 << LOG2_TABLE_BITS];
+	static{
+		for(int i = 0; i < LOG2_TABLE.length; i++){
+			LOG2_TABLE[i] = (int) Math.round(Math.log1p(i / (double) LOG2_TABLE.length) / Math.log(2) * (1 << ACCOUNTING_FRACTION_BITS));
+		}
+	}
+
+	/**
+	 * Cost of the bits coded with <code>encodeBitProb</code> in each accounting bucket, with
+	 * ACCOUNTING_FRACTION_BITS fractional bits. Each bit costs the log2 of the reduction of the
+	 * interval that it causes, so the costs of the bits of a codeword add up to the length of the
+	 * codeword. The bits stuffed after 0xFF bytes are attributed to the current bucket. Null when
+	 * the accounting is disabled.
+	 */
+	private long[] bucketCosts = null;
+
+	/**
+	 * Bucket to which the bits coded are attributed.
+	 */
+	private int bucket = 0;
+
+	/**
+	 * log2 of the current intervalSize, with ACCOUNTING_FRACTION_BITS fractional bits.
+	 */
+	private long intervalLog = 0;
 	
 	/**
 	 * Initializes internal registers. Before using the coder, a stream has to be set
@@ -448,13 +488,208 @@ public final class ArithmeticCoderFLW implements EntropyCoder, EntropyDecoder{
 			intervalMin += tmp;
 			intervalSize -= tmp;
 		}
+		finishStep();
+	}
+
+	/**
+	 * Accounts the bits of the last coding step and transfers the codeword when the interval
+	 * is exhausted (for encoding only).
+	 */
+	private void finishStep(){
+		if(bucketCosts != null){
+			long log = intervalSize == 0 ? 0 : log2(intervalSize);
+			bucketCosts[bucket] += intervalLog - log;
+			intervalLog = log;
+		}
 
 		if(intervalSize == 0){
 			interval = intervalMin;
 			transferInterval(codewordLength);
 			intervalMin = 0;
 			intervalSize = codewordMax;
+			intervalLog = (long) codewordLength << ACCOUNTING_FRACTION_BITS;
+		}
+	}
+
+	/**
+	 * Encodes a symbol of a multi-symbol alphabet in a single step, using the cumulative
+	 * frequencies of the alphabet. Each symbol is given one value of the interval plus a share
+	 * of the rest proportional to its frequency, so that the step needs no division and all
+	 * the symbols can be coded while the interval has at least numSymbols values. With fewer
+	 * values, the symbol is coded with binary decisions.
+	 *
+	 * @param symbol input, in the range [0, numSymbols)
+	 * @param cumulativeFrequencies the frequency of symbol s is <code>cumulativeFrequencies[offset + s + 1]
+	 * - cumulativeFrequencies[offset + s]</code>, which must be greater than 0. The first one is 0 and the
+	 * last one is 2^precisionBits
+	 * @param offset position of the cumulative frequencies of the alphabet in the array
+	 * @param numSymbols number of symbols of the alphabet
+	 */
+	public void encodeSymbol(int symbol, int[] cumulativeFrequencies, int offset, int numSymbols){
+		assert(cumulativeFrequencies[offset] == 0 && cumulativeFrequencies[offset + numSymbols] == (1 << precisionBits));
+		assert(intervalSize >= 1);
+
+		long range = intervalSize + 1 - numSymbols;
+		if(range < 0){
+			int low = 0;
+			int high = numSymbols;
+			while(high - low > 1){
+				int mid = (low + high) >>> 1;
+				boolean bit = symbol >= mid;
+				encodeBitProb(bit, getSplitProb(cumulativeFrequencies, offset, low, mid, high));
+				if(bit){
+					low = mid;
+				}else{
+					high = mid;
+				}
+			}
+			return;
+		}
+		long start = ((cumulativeFrequencies[offset + symbol] * range) >> precisionBits) + symbol;
+		long end = ((cumulativeFrequencies[offset + symbol + 1] * range) >> precisionBits) + symbol + 1;
+		intervalMin += start;
+		intervalSize = end - start - 1;
+		finishStep();
+	}
+
+	/**
+	 * Returns the probability of the symbols in [low, mid) among the symbols in [low, high),
+	 * used when a symbol is coded with binary decisions.
+	 *
+	 * @param cumulativeFrequencies cumulative frequencies of the alphabet
+	 * @param offset position of the cumulative frequencies of the alphabet in the array
+	 * @param low first symbol
+	 * @param mid first symbol of the second half
+	 * @param high last symbol plus one
+	 * @return probability of the bit false, as given by {@link #prob0ToFLW}
+	 */
+	private int getSplitProb(int[] cumulativeFrequencies, int offset, int low, int mid, int high){
+		long lowFrequency = cumulativeFrequencies[offset + mid] - cumulativeFrequencies[offset + low];
+		long frequency = cumulativeFrequencies[offset + high] - cumulativeFrequencies[offset + low];
+		int prob0FLW = (int) ((lowFrequency << precisionBits) / frequency);
+		if(prob0FLW == 0){
+			prob0FLW = 1;
+		}else if(prob0FLW == (1 << precisionBits)){
+			prob0FLW = (1 << precisionBits) - 1;
 		}
+		return(prob0FLW);
+	}
+
+	/**
+	 * Encodes an integer of numBits equiprobable bits in a single step. When the interval has
+	 * fewer than 2^numBits values, the bits are coded one by one. Integers of more than
+	 * precisionBits bits are coded in several steps.
+	 *
+	 * @param num input
+	 * @param numBits number of bits of the integer
+	 */
+	public void encodeUniform(int num, int numBits){
+		assert(numBits < 32 && (num >>> numBits) == 0);
+
+		if(numBits > precisionBits){
+			encodeUniform(num >>> precisionBits, numBits - precisionBits);
+			num &= BIT_MASKS2[precisionBits] - 1;
+			numBits = precisionBits;
+		}
+		long size = intervalSize + 1;
+		if(size < (1L << numBits)){
+			for(int bit = numBits - 1; bit >= 0; bit--){
+				encodeBitProb((num & BIT_MASKS2[bit]) != 0, precisionMid);
+			}
+			return;
+		}
+		long start = getUniformBound(num, size, numBits);
+		long end = getUniformBound(num + 1, size, numBits);
+		intervalMin += start;
+		intervalSize = end - start - 1;
+		finishStep();
+	}
+
+	/**
+	 * Computes the first value of the subinterval of an integer coded with {@link #encodeUniform},
+	 * (num * size) / 2^numBits rounded down. The product is split in the quotient and the remainder
+	 * of size / 2^numBits, since num * size does not fit in a long for the largest intervals.
+	 *
+	 * @param num the integer, up to 2^numBits
+	 * @param size number of values of the interval
+	 * @param numBits number of bits of the integer
+	 * @return the first value of the subinterval, relative to the interval
+	 */
+	private static long getUniformBound(long num, long size, int numBits){
+		long quotient = size >>> numBits;
+		long remainder = size & ((1L << numBits) - 1);
+		return(num * quotient + ((num * remainder) >>> numBits));
+	}
+
+	/**
+	 * Encodes a non-negative integer with an Exp-Golomb code of order 0, with the bit length of
+	 * num + 1 in unary and the rest of its bits with {@link #encodeUniform}.
+	 *
+	 * @param num input
+	 */
+	public void encodeExpGolomb(int num){
+		assert(num >= 0 && num < Integer.MAX_VALUE);
+
+		int numBits = 31 - Integer.numberOfLeadingZeros(num + 1);
+		for(int bit = 0; bit < numBits; bit++){
+			encodeBitProb(true, precisionMid);
+		}
+		encodeBitProb(false, precisionMid);
+		if(numBits > 0){
+			encodeUniform(num + 1 - BIT_MASKS2[numBits], numBits);
+		}
+	}
+
+	/**
+	 * Computes the log2 of a positive value with ACCOUNTING_FRACTION_BITS fractional bits.
+	 *
+	 * @param value the value
+	 * @return log2 of value
+	 */
+	private static long log2(long value){
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int mantissa = msb >= LOG2_TABLE_BITS?
+			(int) (value >>> (msb - LOG2_TABLE_BITS)): (int) (value << (LOG2_TABLE_BITS - msb));
+		return ((long) msb << ACCOUNTING_FRACTION_BITS) + LOG2_TABLE[mantissa & (LOG2_TABLE.length - 1)];
+	}
+
+	/**
+	 * Enables the accounting of the bits coded with <code>encodeBitProb</code> in several buckets.
+	 * The caller selects the bucket of the following bits with <code>setAccountingBucket</code>
+	 * and reads the bits spent in each bucket with <code>getAccountedBits</code>.
+	 *
+	 * @param numBuckets number of buckets, 0 disables the accounting
+	 */
+	public void setAccountingBuckets(int numBuckets){
+		bucketCosts = numBuckets > 0? new long[numBuckets]: null;
+		bucket = 0;
+		intervalLog = intervalSize == codewordMax? (long) codewordLength << ACCOUNTING_FRACTION_BITS: log2(intervalSize);
+	}
+
+	/**
+	 * Selects the bucket to which the following bits are attributed.
+	 *
+	 * @param bucket the bucket
+	 */
+	public void setAccountingBucket(int bucket){
+		this.bucket = bucket;
+	}
+
+	/**
+	 * Returns the bits spent in a bucket since the last <code>resetAccountedBits</code>.
+	 *
+	 * @param bucket the bucket
+	 * @return the number of bits, with its fractional part
+	 */
+	public float getAccountedBits(int bucket){
+		return (float) (bucketCosts[bucket] / (double) (1 << ACCOUNTING_FRACTION_BITS));
+	}
+
+	/**
+	 * Sets the bits spent in all the buckets to 0.
+	 */
+	public void resetAccountedBits(){
+		Arrays.fill(bucketCosts, 0);
 	}
 
 	
@@ -496,6 +731,114 @@ public final class ArithmeticCoderFLW implements EntropyCoder, EntropyDecoder{
 		return(bit);
 	}
 
+	/**
+	 * Decodes a symbol coded with {@link #encodeSymbol}.
+	 *
+	 * @param cumulativeFrequencies cumulative frequencies of the alphabet, the same ones employed to encode the symbol
+	 * @param offset position of the cumulative frequencies of the alphabet in the array
+	 * @param numSymbols number of symbols of the alphabet
+	 * @return output symbol
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	public int decodeSymbol(int[] cumulativeFrequencies, int offset, int numSymbols) throws Exception{
+		if(intervalSize == 0){
+			fillInterval();
+			intervalMin = 0;
+			intervalSize = codewordMax;
+		}
+
+		int low = 0;
+		int high = numSymbols;
+		long range = intervalSize + 1 - numSymbols;
+		if(range < 0){
+			while(high - low > 1){
+				int mid = (low + high) >>> 1;
+				if(decodeBitProb(getSplitProb(cumulativeFrequencies, offset, low, mid, high))){
+					low = mid;
+				}else{
+					high = mid;
+				}
+			}
+			return(low);
+		}
+		long value = interval - intervalMin;
+		while(high - low > 1){
+			int mid = (low + high) >>> 1;
+			if(((cumulativeFrequencies[offset + mid] * range) >> precisionBits) + mid <= value){
+				low = mid;
+			}else{
+				high = mid;
+			}
+		}
+		long start = ((cumulativeFrequencies[offset + low] * range) >> precisionBits) + low;
+		long end = ((cumulativeFrequencies[offset + low + 1] * range) >> precisionBits) + low + 1;
+		intervalMin += start;
+		intervalSize = end - start - 1;
+		return(low);
+	}
+
+	/**
+	 * Decodes an integer coded with {@link #encodeUniform}.
+	 *
+	 * @param numBits number of bits of the integer
+	 * @return output integer
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	public int decodeUniform(int numBits) throws Exception{
+		if(numBits > precisionBits){
+			int high = decodeUniform(numBits - precisionBits);
+			return((high << precisionBits) | decodeUniform(precisionBits));
+		}
+		if(intervalSize == 0){
+			fillInterval();
+			intervalMin = 0;
+			intervalSize = codewordMax;
+		}
+
+		long size = intervalSize + 1;
+		if(size < (1L << numBits)){
+			int num = 0;
+			for(int bit = numBits - 1; bit >= 0; bit--){
+				if(decodeBitProb(precisionMid)){
+					num += BIT_MASKS2[bit];
+				}
+			}
+			return(num);
+		}
+		long value = interval - intervalMin;
+		//value << numBits only fits in a long for the smaller intervals, for the larger ones the
+		//estimate of the quotient is off by less than one
+		int num = (int) Math.min(value < (1L << (63 - numBits))? (value << numBits) / size: value / (size >>> numBits), (1 << numBits) - 1);
+		while(num > 0 && getUniformBound(num, size, numBits) > value){
+			num--;
+		}
+		while(num < (1 << numBits) - 1 && getUniformBound(num + 1, size, numBits) <= value){
+			num++;
+		}
+		long start = getUniformBound(num, size, numBits);
+		long end = getUniformBound(num + 1, size, numBits);
+		intervalMin += start;
+		intervalSize = end - start - 1;
+		return(num);
+	}
+
+	/**
+	 * Decodes an integer coded with {@link #encodeExpGolomb}.
+	 *
+	 * @return output integer
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	public int decodeExpGolomb() throws Exception{
+		int numBits = 0;
+		while(decodeBitProb(precisionMid)){
+			numBits++;
+		}
+		if(numBits == 0){
+			return(0);
+		}
+		return(BIT_MASKS2[numBits] + decodeUniform(numBits) - 1);
+	}
+
 	/**
 	 * Encodes an integer without using any probability model.
 	 *
@@ -555,6 +898,9 @@ public final class ArithmeticCoderFLW implements EntropyCoder, EntropyDecoder{
 				numBitsWritten += 8;
 				if(Tr == 0xFF){
 					t = 7;
+					if(bucketCosts != null){
+						bucketCosts[bucket] += 1 << ACCOUNTING_FRACTION_BITS; //stuffed bit
+					}
 				}else{
 					t = 8;
 				}
@@ -649,6 +995,7 @@ public final class ArithmeticCoderFLW implements EntropyCoder, EntropyDecoder{
 	public void restartEncoding(){
 		intervalMin = 0;
 		intervalSize = codewordMax;
+		intervalLog = (long) codewordLength << ACCOUNTING_FRACTION_BITS;
 		Tr = 0;
 		t = 8;
 		L = -1;
@@ -834,6 +1181,13 @@ public final class ArithmeticCoderFLW implements EntropyCoder, EntropyDecoder{
 		this.t = another.t;
 		this.Tr = another.Tr;
 		this.L = another.L;
+		this.intervalLog = another.intervalLog;
+		this.bucket = another.bucket;
+		if(another.bucketCosts != null){
+			this.bucketCosts = another.bucketCosts.clone();
+		}else{
+			this.bucketCosts = null;
+		}
 		
 		for(int c = 0; c < numContexts; c++){
 			this.contextProb0FLW[c] = another.contextProb0FLW[c];
@@ -53,6 +53,13 @@ public class RawImage {
 	 */
 	public final static int RW = 3; //RW == READ | WRITE
 
+	/**
+	 * Indicates that the iterators access the file through a memory mapped buffer instead of
+	 * seeking the file for each line (or each sample). It is combined with the other modes,
+	 * for example, READ | MAPPED.
+	 */
+	public final static int MAPPED = 4;
+
 	/**
 	 * Represents the geometry of a image in BSQ mode.
 	 * @see Geometry
@@ -27,6 +27,8 @@
 package GiciFile.RawImage;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
@@ -100,6 +102,29 @@ public class RawImageIterator <T> implements ListIterator <T> {
 	 * The largest possible index.
 	 */
 	private int max;
+
+	/**
+	 * The memory mapped content of the file when the iterator is built with the mode
+	 * RawImage.MAPPED, or null if the file is accessed with seek operations.
+	 */
+	private MappedByteBuffer mapped = null;
+
+	/**
+	 * A view of mapped with its own position, used to copy the samples of a line without moving
+	 * the position of the buffer returned by next().
+	 */
+	private ByteBuffer mappedCopy = null;
+
+	/**
+	 * A reusable line in the original sample type, used to gather the samples of a line
+	 * when they are not consecutive in the file.
+	 */
+	private byte[] lineBytes = null;
+
+	/**
+	 * A ByteBuffer that wraps lineBytes with the byte order of the image.
+	 */
+	private ByteBuffer lineBuffer = null;
 	
 	/**
 	 * Constructor that built a iterator over all lines of image.
@@ -231,6 +256,35 @@ public class RawImageIterator <T> implements ListIterator <T> {
 		max = (finalBand+1)*linesPerBand;
 		index = min;
 		lastIndex = -1;
+
+		if((mode & RawImage.MAPPED) == RawImage.MAPPED && (long) length*size <= Integer.MAX_VALUE) {
+			FileChannel.MapMode mapMode = ((mode & RawImage.WRITE) == RawImage.WRITE) ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+			mapped = file.getChannel().map(mapMode, 0, (long) length*size);
+			mapped.order(ty.getByteOrder());
+			mappedCopy = mapped.duplicate();
+			lineBytes = new byte[x_length*size];
+			lineBuffer = ByteBuffer.wrap(lineBytes).order(ty.getByteOrder());
+		}
+	}
+
+	/**
+	 * Places the samples of the line at the current index in a ByteBuffer with the byte order of
+	 * the image, reading them from the memory mapped file. The returned buffer is reused by the
+	 * next call.
+	 * @return a ByteBuffer positioned at the first byte of the line.
+	 */
+	private ByteBuffer getMappedElement() {
+		int address = oc.getAddress(index*x_length);
+		if(offset < 1) {
+			mapped.position(address*size);
+			return mapped;
+		}
+		for(int i=0;i<x_length;i++) {
+			mappedCopy.position((address+i*offset)*size);
+			mappedCopy.get(lineBytes, size*i, size);
+		}
+		lineBuffer.clear();
+		return lineBuffer;
 	}
 
 	/**
@@ -273,6 +327,10 @@ public class RawImageIterator <T> implements ListIterator <T> {
 		}
 		int address;
 		byte b[] = new byte[x_length*size];
+		if(mapped != null) {
+			getMappedElement().get(b);
+			return b;
+		}
 		address = oc.getAddress(index*x_length);
 		try {
 			file.seek(address*size);
@@ -307,6 +365,33 @@ public class RawImageIterator <T> implements ListIterator <T> {
 		return b == null ? null : ty.bytetoT(b);
 	}
 
+	/**
+	 * Return the next element without building a new array. The samples are read into the given
+	 * array, which must have the length of a line, so the same array can be reused for every
+	 * call. When the iterator has been built with RawImage.MAPPED no file operation is needed.
+	 * @param line is the array that will contain the next element.
+	 * @return the array line or null if read is not allowed.
+	 * @exception NoSuchElementException is the index is greatest than max index.
+	 */
+	public T next(T line) throws NoSuchElementException {
+		if(!hasNext()) {
+			throw new NoSuchElementException("Image has no next element");
+		}
+		if((mode & RawImage.READ) == 0) {
+			return null;
+		}
+		ByteBuffer buffer;
+		if(mapped != null) {
+			buffer = getMappedElement();
+		}else {
+			buffer = ByteBuffer.wrap(getElement()).order(ty.getByteOrder());
+		}
+		ty.bytetoT(buffer, line);
+		lastIndex = index;
+		index++;
+		return line;
+	}
+
 	/**
 	 * Return the next index.
 	 * @return the next index or null if read is not allowed.
@@ -367,6 +452,18 @@ public class RawImageIterator <T> implements ListIterator <T> {
 		int address;
 		byte b[] = ty.TtoByte(t);
 		address = oc.getAddress(lastIndex*x_length);
+		if(mapped != null) {
+			if(offset < 1) {
+				mappedCopy.position(address*size);
+				mappedCopy.put(b);
+			}else {
+				for(int i=0;i<x_length;i++) {
+					mappedCopy.position((address+i*offset)*size);
+					mappedCopy.put(b, size*i, size);
+				}
+			}
+			return;
+		}
 		try {
 			file.seek(address*size);
 			if(offset < 1) {
@@ -388,6 +485,11 @@ public class RawImageIterator <T> implements ListIterator <T> {
 	 * @exception IOException if there are any problems closing the file associated.
 	 */
 	public void close() throws IOException {
+		if(mapped != null && (mode & RawImage.WRITE) == RawImage.WRITE) {
+			mapped.force();
+		}
+		mapped = null;
+		mappedCopy = null;
 		file.close();
 		image = null;
 	}
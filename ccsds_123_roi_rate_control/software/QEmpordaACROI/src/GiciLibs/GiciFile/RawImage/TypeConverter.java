@@ -803,4 +803,37 @@ public class TypeConverter <T> {
 		return line;
 	}
 
+	/**
+	 * Cast the elements of a ByteBuffer, from its current position, into an existing array. The buffer
+	 * must already be set to the byte order of the image (see getByteOrder()), and the number of
+	 * elements read is the length of the array.
+	 * @param buffer is the buffer that contains the elements.
+	 * @param line is the int[], long[] or float[] that will contain the elements.
+	 * @return the array line.
+	 */
+	public T bytetoT(ByteBuffer buffer, T line) {
+		BufferReader reader = null;
+		switch(type) {
+			case INT_ARRAY:
+				reader = new IntReader((int[])line, lossless);
+				break;
+			case LONG_ARRAY:
+				reader = new LongReader((long[])line, lossless);
+				break;
+			case FLOAT_ARRAY:
+				reader = new FloatReader((float[])line, lossless);
+				break;
+		}
+		reader.readBuffer(buffer, geo[Geometry.SAMPLE_TYPE]);
+		return line;
+	}
+
+	/**
+	 * Return the byte order in which the samples of the image are stored.
+	 * @return the byte order of the image.
+	 */
+	public ByteOrder getByteOrder() {
+		return geo[Geometry.BYTE_ORDER] == Geometry.LITTLE_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	}
+
 }
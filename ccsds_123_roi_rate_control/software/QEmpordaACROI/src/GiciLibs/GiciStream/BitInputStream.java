@@ -27,21 +27,29 @@ import java.io.EOFException;
 
 /**
  * This Class implements a FilterInputStream for reading from the output one bit at a time.
+ * The input is read in large chunks and the bits are served from a 64-bit accumulator
+ * that is refilled with up to 8 bytes at a time.
  */
 public class BitInputStream extends FilterInputStream {
 
-	private static final int BITS_PER_BYTE = 8;
+	private static final int BUFFER_SIZE = 1 << 16;
 
-	private static final int bmask[] = {
-		0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff,
-		0x1ff,0x3ff,0x7ff,0xfff,0x1fff,0x3fff,0x7fff,0xffff,
-		0x1ffff,0x3ffff,0x7ffff,0xfffff,0x1fffff,0x3fffff,
-		0x7fffff,0xffffff,0x1ffffff,0x3ffffff,0x7ffffff,
-		0xfffffff,0x1fffffff,0x3fffffff,0x7fffffff,0xffffffff
-	};
+	/**
+	 * Bits not yet read. The next bit to read is the leftmost one.
+	 */
+	private long accumulator = 0;
 
-	private int buffer = 0;
-	private int bitCount = 0;
+	/**
+	 * Number of bits kept in accumulator.
+	 */
+	private int accumulatorBits = 0;
+
+	/**
+	 * Bytes read from the input and not yet moved to the accumulator.
+	 */
+	private final byte[] chunk = new byte[BUFFER_SIZE];
+	private int chunkPosition = 0;
+	private int chunkLength = 0;
 
 
 	/**
@@ -61,36 +69,26 @@ public class BitInputStream extends FilterInputStream {
 	 * @param howManyBits is the number of bits to read and return (0-32).
 	 *
 	 * @return the value read. Only rightmost <code>howManyBits</code>
-	 * are valid.
+	 * are valid. -1 if there are not enough bits left.
 	 * 
-	 * @throws IOException if there are not enough bits left.
+	 * @throws IOException if the input can not be read.
 	 */
 	public int read(int howManyBits) throws IOException {
 		if (howManyBits > 32 || howManyBits < 0) {
 			throw new RuntimeException("BitInputStream can only return from 0 to 32 bits.");
 		}
 
-		int retval = 0;
-
-		while (howManyBits > bitCount) {
-			retval |= buffer << (howManyBits - bitCount);
-			howManyBits -= bitCount;
-
-			buffer = in.read();
-			if (buffer == -1) {
-				retval = -1;
+		if (howManyBits > accumulatorBits) {
+			refill();
+			if (howManyBits > accumulatorBits) {
+				accumulatorBits = 0;
+				return -1;
 				//throw new EOFException();
 			}
-
-			bitCount = BITS_PER_BYTE;
 		}
 
-		if (howManyBits > 0) {
-			retval |= buffer >>> (bitCount - howManyBits);
-			buffer &= bmask[bitCount - howManyBits];
-			bitCount -= howManyBits;
-		}
-		return retval;
+		accumulatorBits -= howManyBits;
+		return (int) ((accumulator >>> accumulatorBits) & (0xffffffffL >>> (32 - howManyBits)));
 	}
 
 
@@ -120,4 +118,49 @@ public class BitInputStream extends FilterInputStream {
 		return read(values, 0, values.length);
 	}
 
+	/**
+	 * @return the number of whole bytes that can be read without blocking
+	 */
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, (long) in.available() + (chunkLength - chunkPosition) + (accumulatorBits >> 3));
+	}
+
+	/**
+	 * Moves bytes from the chunk to the accumulator until it has more than 56 bits
+	 * or the input ends. When the accumulator is empty 8 bytes are moved at once.
+	 */
+	private void refill() throws IOException {
+		if (chunkLength - chunkPosition < 8) {
+			fillChunk();
+		}
+		if (accumulatorBits == 0 && chunkLength - chunkPosition >= 8) {
+			long word = 0;
+			for (int i = 0; i < 8; i++) {
+				word = (word << 8) | (chunk[chunkPosition + i] & 0xff);
+			}
+			chunkPosition += 8;
+			accumulator = word;
+			accumulatorBits = 64;
+			return;
+		}
+		while (accumulatorBits <= 56 && chunkPosition < chunkLength) {
+			accumulator = (accumulator << 8) | (chunk[chunkPosition++] & 0xff);
+			accumulatorBits += 8;
+		}
+	}
+
+	/**
+	 * Moves the unread bytes of the chunk to its beginning and fills the rest from the input.
+	 */
+	private void fillChunk() throws IOException {
+		int remaining = chunkLength - chunkPosition;
+		System.arraycopy(chunk, chunkPosition, chunk, 0, remaining);
+		chunkPosition = 0;
+		chunkLength = remaining;
+		int read;
+		while (chunkLength < 8 && (read = in.read(chunk, chunkLength, chunk.length - chunkLength)) != -1) {
+			chunkLength += read;
+		}
+	}
+
 }
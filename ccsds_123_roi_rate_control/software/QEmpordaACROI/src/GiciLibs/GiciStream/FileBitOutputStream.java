@@ -19,32 +19,46 @@ package GiciStream;
  */
 
 
-
+import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 
 
 /**
  * This Class implements a FilterOutputStream for writing to the output one bit at a time.
+ * The bits are packed in a 64-bit accumulator that spills 32-bit words into a large buffer,
+ * which is written to the output when it is full or when the stream is flushed. When the
+ * output is a FileOutputStream the buffer is written through its FileChannel.
  */
 public class FileBitOutputStream extends FilterOutputStream implements BitOutputStream {
 
-	private static final int BITS_PER_BYTE = 8;
+	private static final int BITS_PER_WORD = 32;
 
-	private static final int bmask[] = {
-		0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff,
-		0x1ff,0x3ff,0x7ff,0xfff,0x1fff,0x3fff,0x7fff,0xffff,
-		0x1ffff,0x3ffff,0x7ffff,0xfffff,0x1fffff,0x3fffff,
-		0x7fffff,0xffffff,0x1ffffff,0x3ffffff,0x7ffffff,
-		0xfffffff,0x1fffffff,0x3fffffff,0x7fffffff,0xffffffff
-	};
+	private static final int BUFFER_SIZE = 1 << 16;
 
-	private int buffer = 0;
-	private int bitsToGo = BITS_PER_BYTE;
+	/**
+	 * Bits not yet moved to words. The last written bit is the rightmost one.
+	 */
+	private long accumulator = 0;
+
+	/**
+	 * Number of bits kept in accumulator (always smaller than BITS_PER_WORD between writes).
+	 */
+	private int accumulatorBits = 0;
+
+	/**
+	 * Words waiting to be written to the output.
+	 */
+	private final ByteBuffer words = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Channel of the output when it is a FileOutputStream, null otherwise.
+	 */
+	private final FileChannel channel;
 
 
 	/**
@@ -54,23 +68,20 @@ public class FileBitOutputStream extends FilterOutputStream implements BitOutput
 	 */
 	public FileBitOutputStream(OutputStream out) {
 		super(out);
+		channel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
 	}
 
 	/**
 	 * Flushes bits not yet written. Either this function or
 	 * <code>close</code> must be called to ensure that all bits will be
-	 * written.
+	 * written. The last byte is completed with 0s.
 	 *
 	 * @throws IOException if there's a problem writing bits.
 	 */
 	public void flush() throws IOException {
-
-		if (bitsToGo != BITS_PER_BYTE) {
-			out.write(buffer << bitsToGo);
-			buffer = 0;
-			bitsToGo = BITS_PER_BYTE;
-		}
-
+		alignToByte();
+		spillBytes();
+		writeWords();
 		out.flush();
 	}
 
@@ -100,21 +111,15 @@ public class FileBitOutputStream extends FilterOutputStream implements BitOutput
 			throw new RuntimeException("BitInputStream can only write from 0 to 32 bits.");
 		}
 
-		value &= bmask[howManyBits]; // only right most bits valid
-
-		while (howManyBits >= bitsToGo) {
-			buffer = (buffer << bitsToGo) | (value >>> (howManyBits - bitsToGo));
-			out.write(buffer);
+		accumulator = (accumulator << howManyBits) | (value & (0xffffffffL >>> (32 - howManyBits)));
+		accumulatorBits += howManyBits;
 
-			value &= bmask[howManyBits - bitsToGo];
-			howManyBits -= bitsToGo;
-			bitsToGo = BITS_PER_BYTE;
-			buffer = 0;
-		}
-
-		if (howManyBits > 0) {
-			buffer = (buffer << howManyBits) | value;
-			bitsToGo -= howManyBits;
+		if (accumulatorBits >= BITS_PER_WORD) {
+			accumulatorBits -= BITS_PER_WORD;
+			if (words.remaining() < 4) {
+				writeWords();
+			}
+			words.putInt((int) (accumulator >>> accumulatorBits));
 		}
 	}
 
@@ -124,9 +129,25 @@ public class FileBitOutputStream extends FilterOutputStream implements BitOutput
 		write(8,value);
 	}
 
+	/**
+	 * Writes len bytes. When the stream is aligned to a byte they are copied to the
+	 * buffer, or written directly to the output if they do not fit in it.
+	 */
 	public void write(byte[] values, int off, int len) throws IOException {
-		for (int i = off; i < off + len; i++) {
-			write(values[i]);
+		if ((accumulatorBits & 7) != 0) {
+			for (int i = off; i < off + len; i++) {
+				write(values[i]);
+			}
+			return;
+		}
+		spillBytes();
+		if (len > words.remaining()) {
+			writeWords();
+		}
+		if (len > words.remaining()) {
+			writeBytes(ByteBuffer.wrap(values, off, len));
+		} else {
+			words.put(values, off, len);
 		}
 	}
 
@@ -147,5 +168,50 @@ public class FileBitOutputStream extends FilterOutputStream implements BitOutput
 		
 	}
 
+	/**
+	 * Completes the current byte with 0s.
+	 */
+	private void alignToByte() {
+		int padding = (8 - (accumulatorBits & 7)) & 7;
+		accumulator <<= padding;
+		accumulatorBits += padding;
+	}
+
+	/**
+	 * Moves the whole bytes of the accumulator to the buffer.
+	 */
+	private void spillBytes() throws IOException {
+		if (words.remaining() < 4) {
+			writeWords();
+		}
+		while (accumulatorBits >= 8) {
+			accumulatorBits -= 8;
+			words.put((byte) (accumulator >>> accumulatorBits));
+		}
+	}
+
+	/**
+	 * Writes the buffer to the output and empties it.
+	 */
+	private void writeWords() throws IOException {
+		words.flip();
+		writeBytes(words);
+		words.clear();
+	}
+
+	/**
+	 * Writes all the remaining bytes of a buffer to the output.
+	 */
+	private void writeBytes(ByteBuffer bytes) throws IOException {
+		if (channel != null) {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		} else {
+			out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			bytes.position(bytes.limit());
+		}
+	}
+
 
 }
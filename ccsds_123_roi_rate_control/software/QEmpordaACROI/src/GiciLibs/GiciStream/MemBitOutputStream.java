@@ -1,23 +1,47 @@
 package GiciStream;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 /**
- * This Class implements a BitOutputStream for writing to an ArrayList buffer.
+ * This Class implements a BitOutputStream for writing to a memory buffer. The bits are
+ * packed in a 64-bit accumulator and moved to a growable byte array as bytes are completed,
+ * so the buffer can be copied to another stream in bulk.
  */
 public class MemBitOutputStream implements BitOutputStream {
-	private List<Integer> buffer = new ArrayList<Integer>();
+
+	private static final int INITIAL_SIZE = 1024;
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+
+	/**
+	 * Number of bytes of buffer completed.
+	 */
+	private int numBytes = 0;
+
+	/**
+	 * Bits not yet moved to buffer. The last written bit is the rightmost one.
+	 */
+	private long accumulator = 0;
+
+	/**
+	 * Number of bits kept in accumulator (always smaller than 8 between writes).
+	 */
+	private int accumulatorBits = 0;
 	
 	public MemBitOutputStream(){
 		
 	}
 
+	/**
+	 * Discards all the bits written.
+	 *
+	 * @throws IOException never
+	 */
 	public void flush() throws IOException {
-		buffer.clear();
-		//buffer = null;
-		//buffer = new ArrayList<Integer>();
+		numBytes = 0;
+		accumulator = 0;
+		accumulatorBits = 0;
 	}
 
 	public void close() throws IOException {
@@ -36,8 +60,17 @@ public class MemBitOutputStream implements BitOutputStream {
 		if (howManyBits > 32 || howManyBits < 0) {
 			throw new RuntimeException("BitInputStream can only write from 0 to 32 bits.");
 		}
-		buffer.add(howManyBits);
-		buffer.add(value);
+		accumulator = (accumulator << howManyBits) | (value & (0xffffffffL >>> (32 - howManyBits)));
+		accumulatorBits += howManyBits;
+		if (accumulatorBits >= 8) {
+			if (numBytes + 4 > buffer.length) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			while (accumulatorBits >= 8) {
+				accumulatorBits -= 8;
+				buffer[numBytes++] = (byte) (accumulator >>> accumulatorBits);
+			}
+		}
 	}
 	
 	public void write(int value) throws IOException {
@@ -56,13 +89,66 @@ public class MemBitOutputStream implements BitOutputStream {
 		write(values, 0, values.length);
 	}
 	
+	/**
+	 * Writes all the bits of this stream to another stream. The completed bytes are written
+	 * with a single call.
+	 *
+	 * @param fbos the destination stream
+	 *
+	 * @throws IOException if there's an I/O problem writing bits
+	 */
 	public void writeToOutputStream(BitOutputStream fbos)throws IOException {
-		for (int i = 0; i < buffer.size();  i+=2){
-			fbos.write(buffer.get(i), buffer.get(i+1));
+		fbos.write(buffer, 0, numBytes);
+		if (accumulatorBits > 0) {
+			fbos.write(accumulatorBits, (int) accumulator & ((1 << accumulatorBits) - 1));
 		}
 	}
-	public List<Integer> getBuffer(){
-		return buffer;
+
+	/**
+	 * @return the number of bits written since the last flush
+	 */
+	public long getNumBits(){
+		return ((long) numBytes << 3) + accumulatorBits;
+	}
+
+	/**
+	 * Returns the position of the stream, to be used with <code>rewind</code>.
+	 *
+	 * @return the number of bits written since the last flush
+	 */
+	public long mark(){
+		return getNumBits();
+	}
+
+	/**
+	 * Discards the bits written after a position returned by <code>mark</code>.
+	 *
+	 * @param position the number of bits to keep
+	 */
+	public void rewind(long position){
+		if (position < 0 || position > getNumBits()) {
+			throw new RuntimeException("MemBitOutputStream can not rewind to bit " + position + ".");
+		}
+		int bits = (int) (position & 7);
+		if ((position >>> 3) == numBytes) {
+			accumulator >>>= accumulatorBits - bits;
+		} else {
+			numBytes = (int) (position >>> 3);
+			accumulator = (buffer[numBytes] & 0xff) >>> (8 - bits);
+		}
+		accumulator &= (1 << bits) - 1;
+		accumulatorBits = bits;
+	}
+
+	/**
+	 * @return the completed bytes of the stream, followed by the remaining bits aligned to the left
+	 */
+	public byte[] getBuffer(){
+		byte[] bytes = Arrays.copyOf(buffer, numBytes + (accumulatorBits > 0 ? 1 : 0));
+		if (accumulatorBits > 0) {
+			bytes[numBytes] = (byte) (accumulator << (8 - accumulatorBits));
+		}
+		return bytes;
 	}
 
 	@Override
@@ -94,6 +94,9 @@ public class App {
 		int encoderWP = parser.getEncoderWP();
 		int encoderUP = parser.getEncoderUP();
 		int RCStrategy = parser.getRCStrategy();
+		float[] classTargetRates = parser.getClassTargetRates();
+		int lookAhead = parser.getLookAhead();
+		int qstepGroups = parser.getQstepGroups();
 		int windowsize = parser.getWindowSize();
 		int samplePrediction = parser.getSamplePrediction();
 		int bufferSize = parser.getBufferSize();
@@ -148,7 +151,7 @@ public class App {
 			}
 						
 			// argument to control the type of encoder added ---------------------------------------------------------------------------------------
-			encoder = new Coder(outputFile, inputFile, sampleOrder, parameters, debugMode, uq, quantizer, quantizationMode, windowsize, targetRate, segmentSize, contextModel, probabilityModel, quantizerProbabilityLUT, encoderWP, encoderUP, RCStrategy, samplePrediction, bufferSize, maskFile, quantizationSteps);	
+			encoder = new Coder(outputFile, inputFile, sampleOrder, parameters, debugMode, uq, quantizer, quantizationMode, windowsize, targetRate, segmentSize, contextModel, probabilityModel, quantizerProbabilityLUT, encoderWP, encoderUP, RCStrategy, samplePrediction, bufferSize, maskFile, quantizationSteps, classTargetRates, lookAhead, qstepGroups);	
 			// -------------------------------------------------------------------------------------------------------------------------------------
 			if(debugMode) {
 				System.out.println("debug info: writting image header");
@@ -0,0 +1,219 @@
+/*
+ * EMPORDA Software - More than an implementation of MHDC Recommendation for Image Data Compression
+ * Copyright (C) 2011  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * http://sourceforge.net/projects/emporda
+ * gici-info@deic.uab.es
+ */
+
+package emporda;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * This class predicts the bands of one BI line in a staggered wavefront. The
+ * bands are distributed among the workers, and band z works on column x once
+ * band z-1 has finished it, so band z+1 works some columns behind band z. The
+ * workers hand off the columns through the progress counter of each band,
+ * without locks. Since each band keeps its own weight and difference vectors
+ * in the predictor, the result is the same as predicting the bands in order.
+ * <p>
+ * The caller codes band z as soon as awaitBand(z) returns, so the entropy
+ * coding of a band overlaps with the prediction of the next ones.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class BandWavefront {
+
+	/**
+	 * Number of times a counter is polled before yielding the processor.
+	 */
+	private static final int SPINS = 1 << 10;
+
+	/**
+	 * Predictor and quantizer shared by all the bands.
+	 */
+	private final Predictor predictor;
+	private final Quantizer uq;
+
+	/**
+	 * Number of bands and number of columns of a line.
+	 */
+	private final int bands;
+	private final int width;
+
+	/**
+	 * Number of columns of each band of the current line already predicted.
+	 */
+	private final AtomicIntegerArray progress;
+
+	/**
+	 * Workers and the tasks predicting the current line, task w predicts the bands w, w+workers, ...
+	 */
+	private final ForkJoinPool pool;
+	private final BandTask[] tasks;
+
+	/**
+	 * Current line: the samples, the predicted samples and the line number.
+	 */
+	private int[][][] lines;
+	private int[][][] predictedLines;
+	private int y;
+
+	/**
+	 * Set when a worker fails, so that the ones waiting for it do not wait forever.
+	 */
+	private volatile boolean aborted = false;
+
+	/**
+	 * Constructor of BandWavefront.
+	 *
+	 * @param predictor the predictor of the image
+	 * @param uq the quantizer of the image
+	 * @param bands the number of bands of the image
+	 * @param width the number of columns of the image
+	 * @param workers the number of threads predicting the bands
+	 */
+	public BandWavefront(Predictor predictor, Quantizer uq, int bands, int width, int workers) {
+		this.predictor = predictor;
+		this.uq = uq;
+		this.bands = bands;
+		this.width = width;
+		progress = new AtomicIntegerArray(bands);
+		workers = Math.max(1, Math.min(workers, bands));
+		pool = new ForkJoinPool(workers);
+		tasks = new BandTask[workers];
+	}
+
+	/**
+	 * Starts the prediction of a line. As in the sequential coder, for each band
+	 * predictedLines[z][1] is moved to predictedLines[z][0] and the mapped residuals
+	 * of the line are left in predictedLines[z][1].
+	 *
+	 * @param lines the previous and the current line of each band, with the current line in position 1
+	 * @param predictedLines the predicted samples of the previous two lines of each band
+	 * @param y the line number
+	 */
+	public void startLine(int[][][] lines, int[][][] predictedLines, int y) {
+		this.lines = lines;
+		this.predictedLines = predictedLines;
+		this.y = y;
+		for (int z = 0; z < bands; z++) {
+			progress.set(z, 0);
+		}
+		for (int w = 0; w < tasks.length; w++) {
+			tasks[w] = new BandTask(w);
+			pool.execute(tasks[w]);
+		}
+	}
+
+	/**
+	 * Waits until all the columns of a band of the current line have been predicted.
+	 *
+	 * @param z the band
+	 */
+	public void awaitBand(int z) {
+		await(z, width);
+	}
+
+	/**
+	 * Waits until the workers have finished the current line.
+	 */
+	public void finishLine() {
+		for (int w = 0; w < tasks.length; w++) {
+			tasks[w].join();
+			tasks[w] = null;
+		}
+	}
+
+	/**
+	 * Stops the workers.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	/**
+	 * Waits until a band of the current line has been predicted up to a column.
+	 *
+	 * @param z the band
+	 * @param columns the number of columns that have to be predicted
+	 */
+	private void await(int z, int columns) {
+		for (int spins = 0; progress.get(z) < columns; spins++) {
+			if (aborted) {
+				throw new Error("Unexpected exception ocurred predicting band " + z);
+			}
+			if (spins >= SPINS) {
+				Thread.yield();
+			}
+		}
+	}
+
+	/**
+	 * Predicts the bands of the current line assigned to one worker.
+	 */
+	private class BandTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * First band of the worker.
+		 */
+		private final int firstBand;
+
+		/**
+		 * Constructor of BandTask.
+		 *
+		 * @param firstBand the first band predicted by this task
+		 */
+		BandTask(int firstBand) {
+			this.firstBand = firstBand;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				for (int z = firstBand; z < bands; z += tasks.length) {
+					int[] previous = predictedLines[z][0];
+					int[] current = predictedLines[z][1];
+					for (int x = 0; x < width; x++) {
+						if (z > 0) {
+							//column x of band z-1 is needed by the prediction, so bands z-2... have it too
+							await(z - 1, x + 1);
+						}
+						previous[x] = current[x];
+						current[x] = predictor.compress(lines, z, y, x, z, 1, uq);
+						progress.lazySet(z, x + 1);
+					}
+				}
+			} catch (RuntimeException | Error e) {
+				aborted = true;
+				throw e;
+			}
+		}
+	}
+}
@@ -30,29 +30,30 @@ package emporda;
 
 import GiciStream.FileBitOutputStream;
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 
 import GiciContextModel.ContextModelling;
 import GiciContextModel.ContextProbability;
 import GiciContextModel.ContextSymbolModelling;
+import GiciContextModel.SymbolProbability;
 import GiciContextModel.IntegerContextProbability;
 import GiciContextModel.IntegerContextModelling;
 import GiciEntropyCoder.EntropyBlockCoder.EntropyBlockCoder;
@@ -62,9 +63,7 @@ import GiciEntropyCoder.ArithmeticCoder.DumbMQCoder;
 import GiciEntropyCoder.InterleavedEntropycoder.*;
 import GiciEntropyCoder.Interface.EntropyCoder;
 import GiciException.ParameterException;
-import GiciException.WarningException;
 import GiciFile.*;
-import GiciFile.RawImage.LoadFile;
 import GiciFile.RawImage.OrderConverter;
 import GiciFile.RawImage.RawImage;
 import GiciFile.RawImage.RawImageIterator;
@@ -84,6 +83,35 @@ import GiciPredictor.*;
 public class Coder {
 
 	private final int MAXQSTEP = 1024;
+	
+	/**
+	 * Accounting buckets of the arithmetic coder for the bits of the ROI and the BG.
+	 */
+	private static final int ROI_BUCKET = 0;
+	private static final int BG_BUCKET = 1;
+	
+	/**
+	 * Bounds of the ratio between the coded bits of a class of a priority mask and the bits estimated
+	 * by the rate table. The ratio is bounded to [MIN_CLASS_RATE_RATIO, 1 / MIN_CLASS_RATE_RATIO].
+	 */
+	private static final float MIN_CLASS_RATE_RATIO = 0.25f;
+	
+	/**
+	 * Weight of the previous lines in the ratio between the coded and the estimated bits of a class.
+	 */
+	private static final float CLASS_RATE_RATIO_DECAY = 0.75f;
+	
+	/**
+	 * Maximum change of the base 2 logarithm of the lambda of the rate-distortion rate control
+	 * from one line to the next.
+	 */
+	private static final double MAX_LOG2_LAMBDA_STEP = 0.25;
+	
+	/**
+	 * Quantization steps signalled in the stream for the previous line.
+	 */
+	private int[] lastQsteps;
+	private final ValsesiaRateTable rateTable = new ValsesiaRateTable(MAXQSTEP + 1);
 	private final File file;
 	private final FileOutputStream fileStream;
 	private final BitOutputStream fbos;
@@ -101,7 +129,11 @@ public class Coder {
 	private List<BitOutputStream> mbos;
 	private List<Predictor> predictorList;
 	
-	private double entropy = 0;
+	/**
+	 * Estimates the bits of the arithmetic coder without coding them. It is used by the
+	 * entropy estimation modes and by the rate control.
+	 */
+	private RateEstimator rateEstimator = null;
 	
 	private Parameters parameters;
 	private int[] geo;
@@ -109,13 +141,18 @@ public class Coder {
 	private ContextModelling cmRC;
 	private ContextProbability cpRC;
 	
-	
 	private Predictor predictor;
 	private EntropyCoder ec;
 	private ContextModelling cm;
 	private ContextProbability cp;
 	private ContextProbability cps;
 	
+	/**
+	 * Frequencies of the symbols of the mapped residuals, only for the symbol arithmetic coder
+	 * in fixed quantization step mode.
+	 */
+	private SymbolProbability sp = null;
+	
 	private int[] originalPixelOrder;
 	private int[] pixelOrderTransformation;
 	private String inputFile;
@@ -151,6 +188,10 @@ public class Coder {
 	private int samplePrediction = 0;
 	//private SamplePrediction samplePredictor = null;
 	private int MAXBITS = 32;
+	/**
+	 * Number of bitplanes of the mapped residuals coded in BI order.
+	 */
+	private static final int BI_BITPLANES = 16;
 	int numOfContexts = 0;
 	int coderWordLength = 0;
 	int bufferSize = 1;
@@ -166,6 +207,9 @@ public class Coder {
 	double [][] eumas2 = null;
 	
 	int [] quantizationSteps = null;
+	float [] classTargetRates = null;
+	int lookAhead = 0;
+	int qstepGroups = 1;
 	int predictedLinesRef[][][] = null;
 	int buffer[][][] = null;
 	int predictedLines[][][] = null;
@@ -213,11 +257,14 @@ public class Coder {
 	 * @param parameters all the information about the compression process
 	 * @param debugMode indicates if debug information must be shown
 	 * @param numberOfBitplanesToDecode 
+	 * @param classTargetRates the target rates of the classes of the priority mask, null for the default ones
+	 * @param lookAhead the number of lines estimated ahead by the rate control
+	 * @param qstepGroups the number of groups of bands with their own qstep in each line
 	 * @throws IOException when something goes wrong and writing must be stopped
 	 * @throws ParameterException when an invalid parameter is detected
 	 */
 	public Coder(String outputFile, String inputFile, int sampleOrder, final Parameters parameters, 
-			boolean debugMode, Quantizer uq, int quantizer, int quantizationMode, int windowsize, float targetRate, int segmentSize, int contextModel, int probabilityModel, int quantizerProbabilityLUT, int encoderWP, int encoderUP, int RCStrategy, int samplePrediction, int bufferSize, String maskFile, int [] quantizationSteps)
+			boolean debugMode, Quantizer uq, int quantizer, int quantizationMode, int windowsize, float targetRate, int segmentSize, int contextModel, int probabilityModel, int quantizerProbabilityLUT, int encoderWP, int encoderUP, int RCStrategy, int samplePrediction, int bufferSize, String maskFile, int [] quantizationSteps, float [] classTargetRates, int lookAhead, int qstepGroups)
 			throws IOException, ParameterException {
 		
 		switch(RCStrategy){
@@ -238,7 +285,7 @@ public class Coder {
 		file.delete();
 		
 		fileStream = new FileOutputStream(file);
-		fbos = new FileBitOutputStream( new BufferedOutputStream(fileStream));
+		fbos = new FileBitOutputStream(fileStream);
 		this.inputFile = inputFile;
 		this.maskFile = maskFile;
 		this.uq = uq;
@@ -275,6 +322,9 @@ public class Coder {
 		for(int i = 0; i < quantizationSteps.length; i++) {
 				this.quantizationSteps[i] = quantizationSteps[i];
 		}
+		this.classTargetRates = classTargetRates;
+		this.lookAhead = lookAhead;
+		this.qstepGroups = qstepGroups;
 
 		switch(sampleOrder) {
 			case 0: //BSQ
@@ -313,19 +363,20 @@ public class Coder {
 		
 	
 		if (quantizationMode == 0){ //Fixed Quantization Step
-			this.predictor = new Predictor(parameters);
+			this.predictor = new Predictor(parameters, debugMode);
 			if(quantizer == 10){
 				fw = new FileWriter("quantizer.data",false);
 				pw = new PrintWriter(fw);
 			}
 		}else if (quantizationMode == 1){ //Fixed Rate
-			if(this.RCStrategy == 0 || this.RCStrategy == 1 || this.RCStrategy == 2 || this.RCStrategy == 3){
-				this.predictor = new Predictor(parameters);
-				this.predictorRC = new Predictor(parameters);
+			if(this.RCStrategy == 0 || this.RCStrategy == 1 || this.RCStrategy == 2 || this.RCStrategy == 3 || this.RCStrategy == 4 || this.RCStrategy == 5){
+				this.predictor = new Predictor(parameters, debugMode);
+				this.predictor.setDistortionTracking(true); //MSE per line is reported by the ROI strategies
+				this.predictorRC = new Predictor(parameters, debugMode);
 			}else{
 				this.predictorList = new ArrayList<Predictor>();
 				for (int i = 0; i < N; i++){
-					predictorList.add(new Predictor(parameters));
+					predictorList.add(new Predictor(parameters, debugMode));
 				}
 			}
 		}
@@ -359,6 +410,12 @@ public class Coder {
 		
 		
 		
+		if (parameters.entropyCoderType == CONS.SYMBOL_ARITHMETIC_ENCODER_FLW) {
+			cmsymbol = new ContextSymbolModelling();
+			if (quantizationMode == 0) {
+				sp = new SymbolProbability(15, WINDOW_PROB);
+			}
+		}
 		switch(parameters.entropyCoderType)
 		{
 			case CONS.SAMPLE_ADAPTIVE_ENCODER:
@@ -412,28 +469,30 @@ public class Coder {
 				
 				break;
 			
-			case CONS.SYMBOL_ARITHMETIC_ENCODER_FLW:
-				 cmsymbol = new ContextSymbolModelling();
-				
+			case CONS.SYMBOL_ARITHMETIC_ENCODER_FLW: //The symbols are coded with the same arithmetic coder
 			case CONS.ARITHMETIC_ENCODER_FLW:
 				if (quantizationMode == 0){ //Fixed Quantization Step
 					cm = new ContextModelling(contextModel);
 					numOfContexts = cm.getNumberOfContexts(MAXBITS);
 					numBitsPrecision = 15;
 					coderWordLength = 48;
-					cp = new ContextProbability(probabilityModel, numOfContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
-					ec = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, numOfContexts);
+					if (parameters.bandGroupSize == 0 && parameters.stripeHeight == 0){ //Band groups and stripes use their own probabilities and coder
+						cp = new ContextProbability(probabilityModel, numOfContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
+						ec = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, numOfContexts);
+					}
 				
 				}else if (quantizationMode == 1 ){ //Fixed Rate
 					
-					if(this.RCStrategy == 0 || this.RCStrategy == 1 || this.RCStrategy == 2 || this.RCStrategy == 3){
+					if(this.RCStrategy == 0 || this.RCStrategy == 1 || this.RCStrategy == 2 || this.RCStrategy == 3 || this.RCStrategy == 4 || this.RCStrategy == 5){
 						cm = new ContextModelling(contextModel);
 						numOfContexts = cm.getNumberOfContexts(MAXBITS);
 						numBitsPrecision = 15;
 						coderWordLength = 48;
 						cp = new ContextProbability(probabilityModel, numOfContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
 						cps = new ContextProbability(probabilityModel, numOfContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
-						ec = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, numOfContexts);
+						ArithmeticCoderFLW acFLW = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, numOfContexts);
+						acFLW.setAccountingBuckets(2); //bits of the ROI and the BG for the rate control
+						ec = acFLW;
 						
 					}else{
 						cm = new ContextModelling(contextModel);
@@ -502,6 +561,9 @@ public class Coder {
 				break;
 			
 		}
+		if(numBitsPrecision > 0){
+			rateEstimator = new RateEstimator(numBitsPrecision);
+		}
 		
 	}
 
@@ -515,67 +577,47 @@ public class Coder {
 	public void code(boolean verbose) throws Exception {
 		startCoder(verbose/*entropyCoder*/);
 		
+		if (parameters.bitplaneSkipping != 0 && parameters.entropyCoderType != CONS.ARITHMETIC_ENCODER_FLW) {
+			throw new Error("Bitplane skipping can only be used with the arithmetic coder");
+		}
+		if (parameters.entropyCoderType == CONS.SYMBOL_ARITHMETIC_ENCODER_FLW && (quantizationMode != 0 || parameters.sampleEncodingOrder == CONS.BAND_SEQUENTIAL)) {
+			throw new Error("The symbol arithmetic coder can only be used in BI order in fixed quantization step mode");
+		}
 		if (parameters.sampleEncodingOrder == CONS.BAND_SEQUENTIAL) {
 			if (quantizationMode == 0 && targetRate == 0){
-				codeBSQ(verbose); //Fixed quantization step mode
+				if (parameters.bandGroupSize != 0) {
+					if (parameters.entropyCoderType != CONS.ARITHMETIC_ENCODER_FLW) {
+						throw new Error("Band groups can only be coded with the arithmetic coder");
+					}
+					codeBSQBandGroups(verbose); //Fixed quantization step mode, independent band groups
+				} else {
+					codeBSQ(verbose); //Fixed quantization step mode
+				}
 			}
 			if (quantizationMode == 1 && targetRate != 0){
 				codeBSQRateControl(verbose);
 			}
 		} else {
+			if (parameters.stripeHeight != 0 && (quantizationMode != 0 || parameters.entropyCoderType != CONS.ARITHMETIC_ENCODER_FLW)) {
+				throw new Error("Stripes can only be coded with the arithmetic coder in fixed quantization step mode");
+			}
 			if (quantizationMode == 0){
 				if(parameters.entropyCoderType == 0 || parameters.entropyCoderType == 1) codeBI(verbose); //Fixed quantization step mode
-				if(parameters.entropyCoderType == 2)  codeBIAC(verbose);
+				if(parameters.entropyCoderType == 2 && parameters.stripeHeight != 0) {
+					codeBIACStripes(verbose); //Fixed quantization step mode, independent stripes
+				} else if(parameters.entropyCoderType == 2 || parameters.entropyCoderType == CONS.SYMBOL_ARITHMETIC_ENCODER_FLW) {
+					codeBIAC(verbose);
+				}
 				
 			}
 			else if (quantizationMode == 1){
-				int[][][] maskSamples = null;
-				int [] ROISamplesLine = null;
+				ROIMask mask = null;
 				int ROISamples = 0;
-				int [][] ROIsSamplesLine = null;
-				int [] ROIsSamples = null;
-				
-				if(RCStrategy == 1) {
-					ROISamplesLine = new int [ySize];
-					maskSamples = getMask();
-					for(int y = 0; y < ySize; y++) {
-						for(int x = 0; x < xSize; x++) {
-							if(maskSamples[0][y][x] == 255) {
-								ROISamplesLine[y]++;
-							}
-						}
-						ROISamples = ROISamples + ROISamplesLine[y];
-					}
-					ROISamples = ROISamples * zSize;
-				}
-				
-				
-				if(RCStrategy == 2) {
-					ROISamplesLine = new int [ySize];
-					maskSamples = getMask();
-					for(int y = 0; y < ySize; y++) {
-						for(int x = 0; x < xSize; x++) {
-							if(maskSamples[0][y][x] == 255) {
-								ROISamplesLine[y]++;
-							}
-						}
-						ROISamples = ROISamples + ROISamplesLine[y];
-					}
-					ROISamples = ROISamples * zSize;
-				}
 				
-				if(RCStrategy == 3) {
-					ROISamplesLine = new int [ySize];
-					maskSamples = getMask();
-					for(int y = 0; y < ySize; y++) {
-						for(int x = 0; x < xSize; x++) {
-							if(maskSamples[0][y][x] == 255) {
-								ROISamplesLine[y]++;
-							}
-						}
-						ROISamples = ROISamples + ROISamplesLine[y];
-					}
-					ROISamples = ROISamples * zSize;
+				if(RCStrategy == 1 || RCStrategy == 2 || RCStrategy == 3) {
+					//the ROI samples of each line are counted by the mask when they are needed
+					mask = getMask();
+					ROISamples = mask.getROISamples() * zSize;
 				}
 				
 				//TODO
@@ -603,19 +645,29 @@ public class Coder {
 						//RATE IS DISTRIBUTED ALONG THE ROI AND BG AREA (ONLY ONE OR MULTIPLE ROIs BUT WITH SAME PRIORITY (QSTEP)). 
 						//THE FIRST BYTES ARE USED TO ENCODE THE ROI AREA TILL THE ROI AREA IS ENCODED A THE PAE ACCORDED BY THE USER.
 						//THE REMAINING BYTES ARE EMPLOYED FOR ENCODING THE BG AREA
-						codeBIACRateControlROI(verbose, ROISamplesLine, ROISamples, maskSamples, quantizationSteps);
+						codeBIACRateControlROI(verbose, ROISamples, mask, quantizationSteps);
 						break;
 					case 2:
 						//RATE IS DISTRIBUTED ALONG THE ROI AND BG AREA (ONLY ONE OR MULTIPLE ROIs WITH SAME PRIORITY NOT CODING THE FIRST LINE (QSTEP)).
 						//THE FIRST BYTES ARE USED TO ENCODE THE ROI AREA TILL THE ROI AREA IS ENCODED A THE PAE ACCORDED BY THE USER.
 						//THE REMAINING BYTES ARE EMPLOYED FOR ENCODING THE BG AREA
-						codeBIACRateControlROI2(verbose, ROISamplesLine, ROISamples, maskSamples, quantizationSteps);
+						codeBIACRateControlROI2(verbose, ROISamples, mask, quantizationSteps);
 						break;
 					case 3:
 						//ROI IS LOSSLESSLY ENCODED. THE TARGET RATE IS DISTRIBUTED ONLY FOR BG AREA. 
 						//HOWEVER THE ROI MUST BE ENCODED ACCORDING TO THE PAE RESTRICTION. CAN OCCUR THAT MORE BYTES THAN THE TARGET RATE ARE EMPLOYED, SINCE THE PAE IS THE MOST RESTRICTION CONDITION.
 						//THE BYTES USED FOR THE ROI DO NOT HAVE IMPACT TO THE AMOUNT OF BYTES USED FOR THE BG ENCODING
-						codeBIACRateControlROI3(verbose, ROISamplesLine, ROISamples, maskSamples, quantizationSteps);
+						codeBIACRateControlROI3(verbose, ROISamples, mask, quantizationSteps);
+						break;
+					case 4:
+						//EACH GREY VALUE OF THE MASK IS A CLASS WITH ITS OWN TARGET RATE OR PAE RESTRICTION.
+						//THE RATE OF EACH CLASS IS CONTROLLED INDEPENDENTLY, SHARING THE MEDIANS OF THE LINE FOR THE QSTEP SEARCH
+						codeBIACRateControlPriorities(verbose, new ROIMask(maskFile, geo[CONS.HEIGHT], geo[CONS.WIDTH], true), quantizationSteps);
+						break;
+					case 5:
+						//THE QSTEP OF EACH LINE MINIMIZES THE ESTIMATED DISTORTION PLUS LAMBDA TIMES THE ESTIMATED RATE.
+						//LAMBDA IS THE SAME FOR ALL THE LINES AND IT IS ONLY CORRECTED TO MEET THE TARGET RATE
+						codeBIACRateControlRD(verbose);
 						break;
 					}
 				}
@@ -633,12 +685,12 @@ public class Coder {
 		/*
 		if(parameters.entropyCoderType != CONS.ENTROPY){
 			if(parameters.entropyCoderType == CONS.AIC){
-				System.out.println(entropy/(float)(geo[CONS.BANDS]*geo[CONS.HEIGHT]*geo[CONS.WIDTH]));
+				System.out.println(rateEstimator.getBits()/(float)(geo[CONS.BANDS]*geo[CONS.HEIGHT]*geo[CONS.WIDTH]));
 			}else{
 				System.out.println(file.length()*8/(float)(geo[CONS.BANDS]*geo[CONS.HEIGHT]*geo[CONS.WIDTH]));
 			}
 		}else{
-			System.out.println(entropy/(float)(geo[CONS.BANDS]*geo[CONS.HEIGHT]*geo[CONS.WIDTH]));	
+			System.out.println(rateEstimator.getBits()/(float)(geo[CONS.BANDS]*geo[CONS.HEIGHT]*geo[CONS.WIDTH]));	
 		}*/
 		
 
@@ -679,6 +731,51 @@ public class Coder {
 	
 	
 
+	/**
+	 * Codes the number of bitplanes of a line of samples when BITPLANE_SKIPPING is enabled,
+	 * so that the empty most significant bitplanes are not coded.
+	 *
+	 * @param coder the arithmetic coder of the line
+	 * @param samples the mapped residuals of the line
+	 * @param maxBitplanes number of bitplanes coded without bitplane skipping
+	 * @return the number of bitplanes to code
+	 */
+	private int codeBitplanes(EntropyCoder coder, int[] samples, int maxBitplanes){
+		if (parameters.bitplaneSkipping == 0) {
+			return maxBitplanes;
+		}
+		int used = 0;
+		for (int x = 0; x < samples.length; x++) {
+			used |= samples[x];
+		}
+		int bitplanes = Math.min(32 - Integer.numberOfLeadingZeros(used), maxBitplanes);
+		coder.encodeInteger(bitplanes, 32 - Integer.numberOfLeadingZeros(maxBitplanes));
+		return bitplanes;
+	}
+
+	/**
+	 * Codes the number of bitplanes of a band of samples when BITPLANE_SKIPPING is enabled,
+	 * so that the empty most significant bitplanes are not coded.
+	 *
+	 * @param coder the arithmetic coder of the band
+	 * @param samples the mapped residuals of the band
+	 * @param maxBitplanes number of bitplanes coded without bitplane skipping
+	 * @return the number of bitplanes to code
+	 */
+	private int codeBitplanes(EntropyCoder coder, int[][] samples, int maxBitplanes){
+		if (parameters.bitplaneSkipping == 0) {
+			return maxBitplanes;
+		}
+		int used = 0;
+		for (int y = 0; y < samples.length; y++) {
+		for (int x = 0; x < samples[y].length; x++) {
+			used |= samples[y][x];
+		}}
+		int bitplanes = Math.min(32 - Integer.numberOfLeadingZeros(used), maxBitplanes);
+		coder.encodeInteger(bitplanes, 32 - Integer.numberOfLeadingZeros(maxBitplanes));
+		return bitplanes;
+	}
+
 	/**
 	 * BSQ Arithmetic Coder with sign coding
 	 * @param predictedSamples
@@ -720,14 +817,12 @@ public class Coder {
 				///////////////////////// realBit coding ///////////////////////
 				context = cm.getContext(predictedSamples, Previous1, Previous2, z, y, x, bit);//get context   --------> 6.18 bps
 				//context = cm.getContextSignificance(statusMapSignificance, y, x);//get context					--------> 4.06 bps
-				prob = cp.getProbability(context);//get probability for the computed context
-				cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+				prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 				ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 				ec.encodeBit(signBit);
 			}else{
 				context = cm.getContext(predictedSamples, Previous1, Previous2, z, y, x, bit);//get context
-				prob = cp.getProbability(context);//get probability for the computed context
-				cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+				prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 				ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 				//ec.encodeBit(realBit);//encode the bit using the specific probability
 			}
@@ -746,13 +841,13 @@ public class Coder {
 	private void BSQAC(int[][] predictedSamples, int[][] Previous1, int[][] Previous2, int z){
 		boolean realBit = false;
 		int context = -1;
-		for (int bit = MAXBITS-1; bit >= 0; bit--){
+		int bitplanes = codeBitplanes(ec, predictedSamples, MAXBITS);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
 		for (int y = 0; y < ySize; y ++) {
 		for (int x = 0; x < xSize; x ++) {
 			realBit = (predictedSamples[y][x] & BIT_MASKS2[bit]) != 0;
 			context = cm.getContext(predictedSamples, Previous1, Previous2, z, y, x, bit);//get context
-			int prob = cp.getProbability(context);//get probability for the computed context
-			cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+			int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 			ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 					
 		}}}
@@ -779,7 +874,7 @@ public class Coder {
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
 			
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			
 			if(debugMode) {
 				System.err.println("debugInfo: RawImage created");
@@ -923,8 +1018,7 @@ public class Coder {
 						 	realBit = (predictedSamples[y][x] & BIT_MASKS2[bit]) != 0;
 							//int context = cm.getContext(predictedSamples, y, x, bit);//get context
 							context = cm.getContext(predictedSamples, Previous1, z, y, x, bit);//get context
-							int prob = cp.getProbability(context);//get probaility for the computed context
-							cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+							int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 							iec.encodeBitProb(realBit, prob*2);//The probability for the IEC must be multiplied by a factor of two fit in the bins definition.
 					}}}
 					break;
@@ -939,9 +1033,8 @@ public class Coder {
 							realBit = (predictedSamples[y][x] & BIT_MASKS2[bit]) != 0;
 							context = cm.getContext(predictedSamples, y, x, bit);//get context
 							//int context = cm.getContext(predictedSamples, predictedSamplesPrevious1, z, y, x, bit);//get context
-							int prob = cp.getProbability(context);//get probaility for the computed context
+							int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 							prob = 0xAC01-(int) ((float)prob / (1 << numBitsPrecision) * 0xAC01);//it uses the probability of one instead of 0. And the max value for the probability is 0xAC01
-							cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
 							dmq.encodeBitProb(realBit, prob);
 					}}}
 						
@@ -969,20 +1062,7 @@ public class Coder {
 							}
 							
 							cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-							double probq = prob / (double) (1 << numBitsPrecision);
-														
-							if(realBit){
-								probq = 1 - probq;
-							}
-							
-							assert(probq != 0);
-							assert(probq != 1);
-							
-							double symbolCost = - (Math.log10(probq) / Math.log10(2));
-							
-							assert(symbolCost > 0);
-							
-							entropy += symbolCost; //https://en.wikipedia.org/wiki/Arithmetic_coding
+							rateEstimator.addBit(realBit, prob);
 					}}}
 					break;
 					
@@ -1029,11 +1109,8 @@ public class Coder {
 						int prob = icp.getProbability(bands[parameters.numberPredictionBands][y][x], context, maxCurrent, maxPrevious1, maxPrevious2);//get probability for the computed context
 						//ec.encodeIntegerProb(bands[parameters.numberPredictionBands][y][x], prob);//encode the bit using the specific probability
 						icp.updateSymbols(bands[parameters.numberPredictionBands][y][x], context);//updates the symbols decoded to properly compute the probability
-						double probq = prob / (double) (1 << numBitsPrecision);
-						double symbolCost = - (Math.log10(probq) / Math.log10(2));
-						assert(symbolCost > 0);
-						entropy += symbolCost; //https://en.wikipedia.org/wiki/Arithmetic_coding
-						//System.out.println(probq+" "+symbolCost+" "+entropy);
+						rateEstimator.addSymbol(prob);
+						//System.out.println(prob+" "+rateEstimator.getBits());
 						
 						 
 					}}
@@ -1123,6 +1200,151 @@ public class Coder {
 	}
 
 	
+	/**
+	 * Encodes an image in BSQ order splitting the bands in groups of
+	 * BAND_GROUP_SIZE bands. Each group is predicted and coded on its own, as
+	 * if it were an image starting at its first band, so the groups are coded
+	 * in parallel. The band group index is written before the segments.
+	 *
+	 * @param verbose indicates whether to display information
+	 * @throws Exception 
+	 */
+	private void codeBSQBandGroups(boolean verbose) throws Exception {
+		int groupSize = parameters.bandGroupSize;
+		int numGroups = (zSize + groupSize - 1) / groupSize;
+		long[] bandGroupLengths = new long[numGroups];
+		ByteStream[] segments = new ByteStream[numGroups];
+		
+		if(verbose || debugMode) {
+			System.out.println("Coding BSQ in " + numGroups + " band groups");
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
+			
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
+			
+			//Groups are read in waves of as many groups as workers, so only these are kept in memory
+			int wave = pool.getParallelism();
+			List<BandGroupCoder> tasks = new ArrayList<BandGroupCoder>(wave);
+			for (int g = 0; g < numGroups; g += wave) {
+				tasks.clear();
+				for (int i = g; i < Math.min(g + wave, numGroups); i++) {
+					int firstBand = i * groupSize;
+					int[][][] groupBands = new int[Math.min(groupSize, zSize - firstBand)][ySize][];
+					for (int z = 0; z < groupBands.length; z++) {
+						readBand(it, groupBands[z]);
+					}
+					BandGroupCoder task = new BandGroupCoder(groupBands);
+					pool.execute(task);
+					tasks.add(task);
+				}
+				for (int i = 0; i < tasks.size(); i++) {
+					segments[g + i] = tasks.get(i).join();
+					bandGroupLengths[g + i] = segments[g + i].getLength();
+				}
+				if (verbose) {
+					System.out.print("\rCoding band: " + Math.min((g + wave) * groupSize, zSize));
+				}
+			}
+			image.close(it);
+			
+		}catch(UnsupportedOperationException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(IndexOutOfBoundsException e) {
+			e.printStackTrace();
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(ClassCastException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}finally {
+			pool.shutdown();
+		}
+		
+		CoderHeader ch = new CoderHeader(fbos, debugMode, parameters);
+		ch.segmentIndex(groupSize, bandGroupLengths);
+		ch = null;
+		for (int g = 0; g < numGroups; g++) {
+			fileStream.write(segments[g].getByteStream(), 0, (int) segments[g].getLength());
+		}
+	}
+	
+	/**
+	 * Codes one band group of a BSQ image with its own predictor, context model,
+	 * context probabilities and arithmetic coder. The result is the segment of the group.
+	 */
+	private class BandGroupCoder extends RecursiveTask<ByteStream> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Bands of the group, band 0 being the first band of the group.
+		 */
+		private final int[][][] groupBands;
+		
+		/**
+		 * Constructor of BandGroupCoder.
+		 * 
+		 * @param groupBands the bands of the group
+		 */
+		BandGroupCoder(int[][][] groupBands) {
+			this.groupBands = groupBands;
+		}
+		
+		@Override
+		protected ByteStream compute() {
+			Predictor groupPredictor;
+			try {
+				groupPredictor = new Predictor(parameters, debugMode);
+			} catch (ParameterException e) {
+				throw new Error("Unexpected exception ocurred "+e.getMessage());
+			}
+			ContextModelling groupCM = new ContextModelling(contextModel);
+			int groupContexts = groupCM.getNumberOfContexts(MAXBITS);
+			ContextProbability groupCP = new ContextProbability(probabilityModel, groupContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
+			ArithmeticCoderFLW groupEC = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, groupContexts);
+			groupEC.init();
+			groupEC.restartEncoding();
+			
+			int predictedSamples[][] = new int[ySize][xSize];
+			int Previous1[][] = new int[ySize][xSize];
+			int Previous2[][] = new int[ySize][xSize];
+			
+			for (int z = 0; z < groupBands.length; z ++) {
+				groupCP.reset();
+				for (int y = 0; y < ySize; y ++) {
+				for (int x = 0; x < xSize; x ++) {
+					if (samplePrediction == 1) {
+						predictedSamples[y][x] = groupPredictor.compress(groupBands, z, y, x, z, y, uq);
+					} else {
+						predictedSamples[y][x] = groupBands[z][y][x];
+					}
+				}}
+				
+				int bitplanes = codeBitplanes(groupEC, predictedSamples, MAXBITS);
+				for (int bit = bitplanes - 1; bit >= 0; bit--){
+				for (int y = 0; y < ySize; y ++) {
+				for (int x = 0; x < xSize; x ++) {
+					boolean realBit = (predictedSamples[y][x] & BIT_MASKS2[bit]) != 0;
+					int context = groupCM.getContext(predictedSamples, Previous1, Previous2, z, y, x, bit);//get context
+					int prob = groupCP.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+					groupEC.encodeBitProb(realBit, prob);//encode the bit using the specific probability
+				}}}
+				
+				//When 3D contexts are used we need to copy the predicted into temporal structures
+				if(contextModel == 13){
+					int[][] tmp = Previous2;
+					Previous2 = Previous1;
+					Previous1 = tmp;
+					for (int y = 0; y < ySize; y ++) {
+						System.arraycopy(predictedSamples[y], 0, Previous1[y], 0, xSize);
+					}
+				}
+			}
+			groupEC.terminate();
+			return groupEC.getByteStream();
+		}
+	}
+
 	/**
 	 * Encodes an image in BSQ order using Fixed Quantization Step Mode
 	 *
@@ -1138,13 +1360,12 @@ public class Coder {
 		FileWriter file = new FileWriter("qsteps.txt");
 		PrintWriter pw = new PrintWriter(file);
 		T = targetRate;
-		List<Float> currentMedian = new ArrayList<Float>();
-		List<Float> medianLine = new ArrayList<Float>();
 		List<Float> medianBands = new ArrayList<Float>();
 		List<Float> inputRate = new ArrayList<Float>();
 		List<Float> outputRate = new ArrayList<Float>();
 		
 		int L = 17;
+		MedianEstimator medianEstimator = new MedianEstimator(L);
 		int Qstep = 1;
 		float [] updateQstepValues = new float[2];
 		updateQstepValues[0] = Qstep;
@@ -1156,7 +1377,7 @@ public class Coder {
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
 			
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			
 			if(debugMode) {
 				System.err.println("debugInfo: RawImage created");
@@ -1192,21 +1413,15 @@ public class Coder {
 					for (int x = 0; x < xSize; x ++) {
 						value = predictorRC.compress(bands, z, y, x, parameters.numberPredictionBands, y, uq);
 						//System.out.println("value: "+value);
-						currentMedian.add((float)value);
+						medianEstimator.add(value);
 						
 						if(x % L == L - 1){
-							Collections.sort(currentMedian);
 							//puts the median of a current L segment into a list that contains all the medians of the line
-							medianLine.add(getMedianFromaList(currentMedian));
-							//clears the current median segment	
-							currentMedian.clear();
+							medianEstimator.closeSegment();
 						}	
 					}
-					Collections.sort(medianLine);
 					//puts the median of a current line into a list that contains the medians for all bands
-					medianBands.add(getMedianFromaList(medianLine));
-					//clears the current median line
-					medianLine.clear();
+					medianBands.add(medianEstimator.closeLine());
 				}
 				
 					this.targetRate = BSQupdateTargetRateValsesia(z, inputRate, outputRate, updateQstepValues, medianBands);
@@ -1258,8 +1473,7 @@ public class Coder {
 							//int context = cm.getContext(predictedSamples, y, x, bit);//get context
 							//int context = cm.getContext(predictedSamples, predictedSamplesPrevious1, z, y, x, bit);//get context
 							int context = cm.getContext(predictedSamples, predictedSamplesPrevious1, predictedSamplesPrevious2, z, y, x, bit);//get context
-							int prob = cp.getProbability(context);//get probaility for the computed context
-							cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+							int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 							ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 									
 						}}}
@@ -1371,7 +1585,7 @@ public class Coder {
 		}
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			for (int y = 0; y < geo[CONS.HEIGHT]; y++) {
 				prepareLines(y, bands, it);
 				if (verbose && geo[CONS.HEIGHT] % 10 == 0) {
@@ -1412,34 +1626,12 @@ public class Coder {
 	
 	
 	
-	private int[][][] getMask() {
-		float[][][] maskSamples = null;
-		int[][][] maskSamplesInt = new int[1][geo[CONS.HEIGHT]][geo[CONS.WIDTH]];
-		if(maskFile != null){
-			LoadFile mask = null;
-			if(LoadFile.isRaw(maskFile)){
-				try {
-					mask = new LoadFile(maskFile, 1, geo[CONS.HEIGHT], geo[CONS.WIDTH], 1, 0, false);
-				} catch (WarningException e) {
-					e.printStackTrace();
-				}
-			}
-			maskSamples = mask.getImage();	
-		}
-		
-		for (int y = 0; y < geo[CONS.HEIGHT]; y++) {	
-		for (int x = 0; x < geo[CONS.WIDTH]; x++) {
-			maskSamplesInt[0][y][x] = (int) maskSamples[0][y][x];
-		}}
-		
-		return maskSamplesInt;
+	private ROIMask getMask() throws IOException {
+		return new ROIMask(maskFile, geo[CONS.HEIGHT], geo[CONS.WIDTH]);
 	}
 	
 	//	
-		private void codeBIACRateControlROI3(boolean verbose, int[] ROISamplesLine, int ROISamples, int[][][] maskSamples, int[] quantizationSteps) throws IOException, ParameterException, ClassNotFoundException, CloneNotSupportedException {
-			PrintWriter pwBG = new PrintWriter(new FileWriter("qstepsBG.txt"));
-			PrintWriter pwR = new PrintWriter(new FileWriter("qstepsROI.txt"));
-			
+		private void codeBIACRateControlROI3(boolean verbose, int ROISamples, ROIMask mask, int[] quantizationSteps) throws IOException, ParameterException, ClassNotFoundException, CloneNotSupportedException {
 			float targetRate = this.targetRate;
 			//with low target bit-rates there are some imprecisions that can be tunned through adapting the initial target rate
 			
@@ -1470,19 +1662,14 @@ public class Coder {
 			int predictedLines[][][] = new int[zSize][2][xSize];
 			int linesToEncode[][][] = new int[zSize][2][xSize];
 			
-			List<Float> currentMedian = new ArrayList<Float>();
-			List<Float> medianLine = new ArrayList<Float>();
 			List<Float> medianBands = new ArrayList<Float>();
-			List<Float> currentMedianROI = new ArrayList<Float>();
-			List<Float> medianLineROI = new ArrayList<Float>();
 			List<Float> medianBandsROI = new ArrayList<Float>();
 			List<Float> outputRateROI = new ArrayList<Float>();
-			List<Float> currentMedianBG = new ArrayList<Float>();
-			List<Float> medianLineBG = new ArrayList<Float>();
 			List<Float> medianBandsBG = new ArrayList<Float>();
 			List<Float> outputRateBG = new ArrayList<Float>();
 			boolean EBits = true; //Enough bits for the ROI
 			int L = 17;
+			MedianEstimator.Regions medianEstimators = new MedianEstimator.Regions(L);
 			int QstepROI = 1;
 			int QstepBG = 1;
 			int QstepBGLast = 1;
@@ -1496,7 +1683,7 @@ public class Coder {
 			
 			try {
 				RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
-				RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+				RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 				for (int y = 0; y < ySize; y++) {
 					
 					if(y != 0) {
@@ -1516,45 +1703,27 @@ public class Coder {
 					}
 					
 					uq.setQuantizationStep(1);
-					
-					
+
+					int[] segments = mask.getSegments(y);
 					for (int z = 0; z < zSize; z++) {
-						for (int x = 0; x < xSize; x++) {
-							
-							
-							
+						for (int s = 0; s < segments.length - 1; s++) {
+						boolean roi = ROIMask.isROISegment(s);
+						for (int x = segments[s]; x < segments[s + 1]; x++) {
+
+
+
 							int value = predictorRC.compress(lines, z, y, x, z, 1, uq);
-							currentMedian.add((float)value);
-							if(maskSamples[0][y][x] == 255)	currentMedianROI.add((float)value);
-							else							currentMedianBG.add((float)value);
-						
+							medianEstimators.add(value, roi);
+
 							if(x % L == L - 1){
-								
-								Collections.sort(currentMedian);
-								Collections.sort(currentMedianROI);
-								Collections.sort(currentMedianBG);
+
 								//puts the median of a current L segment into a list that contains all the medians of the line
-								medianLine.add(getMedianFromaList(currentMedian));
-								medianLineROI.add(getMedianFromaList(currentMedianROI));
-								medianLineBG.add(getMedianFromaList(currentMedianBG));
-								//clears the current median segment	
-								currentMedian.clear();
-								currentMedianROI.clear();
-								currentMedianBG.clear();
+								medianEstimators.closeSegment();
 							}
-						}
-						
-						Collections.sort(medianLine);
-						Collections.sort(medianLineROI);
-						Collections.sort(medianLineBG);
+						}}
+
 						//puts the median of a current line into a list that contains the medians for all bands
-						medianBands.add(getMedianFromaList(medianLine));
-						medianBandsROI.add(getMedianFromaList(medianLineROI));
-						medianBandsBG.add(getMedianFromaList(medianLineBG));
-						//clears the current median line
-						medianLine.clear();
-						medianLineROI.clear();
-						medianLineBG.clear();
+						medianEstimators.closeLine(medianBands, medianBandsROI, medianBandsBG);
 					}
 						
 					//QstepROI = 10;
@@ -1574,43 +1743,41 @@ public class Coder {
 					QstepBGLast = QstepBG;
 					*/
 					
-					pwR.println(String.valueOf(QstepROI));
-					if(EBits == true) {
-						//Per intentar apurar més el target bit-rate
-						//if(BGbps != 0) {
-						//	if(Math.abs(inputT - BGbps) > 0.0001) {
-						//		if(inputT < BGbps) QstepBG = QstepBG + 1;
-						//			else			   QstepBG = QstepBG - 1;
-						//		}	
-						//}
-						/////////
-						pwBG.println(String.valueOf(QstepBG));
-					}
-					else {
-						pwBG.println(0);
-					}
+					//Per intentar apurar més el target bit-rate
+					//if(EBits == true && BGbps != 0) {
+					//	if(Math.abs(inputT - BGbps) > 0.0001) {
+					//		if(inputT < BGbps) QstepBG = QstepBG + 1;
+					//			else			   QstepBG = QstepBG - 1;
+					//		}	
+					//}
+					/////////
+					//the quantization steps of the line are signalled in the stream
+					codeLineQsteps(y, QstepROI, EBits ? QstepBG : 0);
 					
 					
 					
 					for (int z = 0; z < zSize; z++) {
-						for (int x = 0; x < xSize; x++) {
+						for (int s = 0; s < segments.length - 1; s++) {
+						int length = segments[s + 1] - segments[s];
+						if (length == 0) continue;
+						if(ROIMask.isROISegment(s)) {
+							if(yROIFirst == -1) yROIFirst = y;
+							uq.setQuantizationStep(QstepROI);
+							numSamplesROI[y] += length;
+						}else{
+							if(yBGFirst == -1) yBGFirst = y;
+							uq.setQuantizationStep(QstepBG);
+							numSamplesBG[y] += length;
+						}
+						for (int x = segments[s]; x < segments[s + 1]; x++) {
 							predictedLines[z][0][x] = predictedLines[z][1][x];
-							if(maskSamples[0][y][x] == 255) {
-								if(yROIFirst == -1) yROIFirst = y;
-								uq.setQuantizationStep(QstepROI);
-								numSamplesROI[y]++;
-							}else{		
-								if(yBGFirst == -1) yBGFirst = y;
-								uq.setQuantizationStep(QstepBG);
-								numSamplesBG[y]++;	
-							}
 							int value = 0;
-							value = predictor.compress(linesToEncode, z, y, x, z, 1, uq); 
+							value = predictor.compress(linesToEncode, z, y, x, z, 1, uq);
 							predictedLines[z][1][x] = value;
-							
-							
-						}
-						BIACROI3(M, z, y, predictedLines, maskSamples, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG);
+
+
+						}}
+						BIACROI3(M, z, y, predictedLines, segments, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG);
 					}
 					
 					float ROIbits = 0;
@@ -1671,11 +1838,6 @@ public class Coder {
 				//System.out.println("predictor.getPAE(): "+predictor.getPAE());
 				//System.out.println("predictor.getMSE(): "+predictor.getMSE(geo[CONS.BANDS]*geo[CONS.WIDTH]*geo[CONS.HEIGHT]));
 				
-				pwR.flush();
-				pwBG.flush();
-				pwR.close();
-				pwBG.close();
-				
 				float BGbits = 0;
 				float ROIbits = 0;
 				float totalbits = 0;
@@ -1714,74 +1876,63 @@ public class Coder {
 			
 		}
 		
-	//TODO
-	private void codeBIACRateControlROI2(boolean verbose, int[] ROISamplesLine, int ROISamples, int[][][] maskSamples, int[] quantizationSteps) throws IOException, ParameterException, ClassNotFoundException, CloneNotSupportedException {
-		PrintWriter pwA = new PrintWriter(new FileWriter("auxiliary.txt"));
-		PrintWriter pwBG = new PrintWriter(new FileWriter("qstepsBG.txt"));
-		PrintWriter pwR = new PrintWriter(new FileWriter("qstepsROI.txt"));
-		
-		float targetRate = this.targetRate;
-		//with low target bit-rates there are some imprecisions that can be tunned through adapting the initial target rate
-		
-		float targetRateROI = 0;
-		float targetRateBG = 0;
-		float inputT = targetRate;
-		
-		int M = parameters.subframeInterleavingDepth;
+	/**
+	 * Codes the image with a priority mask, where each grey value of the mask is a class with its
+	 * own quantization step. The quantization steps of each line are signalled in the stream. The
+	 * classes with a target rate have their own rate control and the other ones are coded with
+	 * their minimum quantization step. The medians of all the classes are estimated in a single
+	 * prediction pass per line, and each class searches its next quantization step with its own medians.
+	 * 
+	 * @param verbose indicates if the progress must be shown
+	 * @param mask the priority mask
+	 * @param quantizationSteps the minimum quantization step of each class, the last one is used for the remaining classes
+	 * @throws IOException when something goes wrong and writing must be stopped
+	 */
+	@SuppressWarnings("unchecked")
+	private void codeBIACRateControlPriorities(boolean verbose, ROIMask mask, int[] quantizationSteps) throws IOException {
+		int numClasses = mask.getNumClasses();
+		if (classTargetRates != null && classTargetRates.length != numClasses) {
+			throw new Error("The mask has " + numClasses + " classes but " + classTargetRates.length + " class target rates have been given (-ctr).");
+		}
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		acFLW.setAccountingBuckets(numClasses); //bits of each class for the rate control
 		
+		//by default the class with the highest priority is coded at its PAE and the other ones at the target rate
+		float classRates[] = new float[numClasses];
+		int minQsteps[] = new int[numClasses];
+		for (int c = 0; c < numClasses; c++) {
+			if (classTargetRates != null) {
+				classRates[c] = classTargetRates[c];
+			} else {
+				classRates[c] = (c == numClasses - 1 && numClasses > 1) ? 0 : targetRate;
+			}
+			minQsteps[c] = quantizationSteps[Math.min(c, quantizationSteps.length - 1)];
+		}
 		
+		//the bits of each class are corrected with the ratio between the coded bits and the bits
+		//estimated by the rate table, since the classes share the contexts of the coder
+		float classBits[] = new float[numClasses];
+		float classCodedSamples[] = new float[numClasses];
+		float classActualBits[] = new float[numClasses];
+		float classEstimatedBits[] = new float[numClasses];
+		float lineBits[] = new float[numClasses];
+		int lineSamples[] = new int[numClasses];
 		float numbitsCurrentLine[] = new float[ySize];
+		List<List<Float>> medianBandsClass = new ArrayList<List<Float>>(numClasses);
+		for (int c = 0; c < numClasses; c++) {
+			medianBandsClass.add(new ArrayList<Float>());
+		}
+		int L = 17;
+		MedianEstimator.Classes medianEstimators = new MedianEstimator.Classes(numClasses, L);
+		int Qsteps[] = minQsteps.clone();
 		
-		float deviationRateROI[] = new float[ySize];
-		float numbitsBeforeROI[] = new float[ySize];
-		float numbitsCurrentLineROI[] = new float[ySize];
-		float deviationRateBG[] = new float[ySize];
-		float numbitsBeforeBG[] = new float[ySize];
-		float numbitsCurrentLineBG[] = new float[ySize];
-		float numSamplesROI[] = new float[ySize];
-		float numSamplesBG[] = new float[ySize];
-		
-		float targetBitsROIEstimation = 0;
-		float targetBitsBGEstimation = 0;
-		float targetBits = 0;
-		float inputTROIEstimation = 0;
-		float inputTBGEstimation = 0;
 		int lines[][][] = new int[zSize][2][];
 		int predictedLines[][][] = new int[zSize][2][xSize];
-		int predictedLinesS[][][] = new int[zSize][2][xSize];
 		int linesToEncode[][][] = new int[zSize][2][xSize];
 		
-		List<Float> currentMedian = new ArrayList<Float>();
-		List<Float> medianLine = new ArrayList<Float>();
-		List<Float> medianBands = new ArrayList<Float>();
-		List<Float> currentMedianROI = new ArrayList<Float>();
-		List<Float> medianLineROI = new ArrayList<Float>();
-		List<Float> medianBandsROI = new ArrayList<Float>();
-		List<Float> outputRateROI = new ArrayList<Float>();
-		List<Float> currentMedianBG = new ArrayList<Float>();
-		List<Float> medianLineBG = new ArrayList<Float>();
-		List<Float> medianBandsBG = new ArrayList<Float>();
-		List<Float> outputRateBG = new ArrayList<Float>();
-		boolean EBits = true; //Enough bits for the ROI
-		int L = 17;
-		int QstepROI = 1;
-		int QstepBG = 1;
-		int inputQstep = uq.getQuantizationStep();
-		float [] updateQstepValuesROI = new float[2];
-		float [] updateQstepValuesBG = new float[2];
-		float bpsinputQstep = 0;
-	
-		float ROIbits = 0;
-		float totalbits = 0;
-		float AccumulatedROISamples = 0;
-		float AccumulatedBGSamples = 0;
-		
-		int yROIFirst = -1;
-		int yBGFirst = -1;
-		
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			for (int y = 0; y < ySize; y++) {
 				
 				if(y != 0) {
@@ -1792,73 +1943,235 @@ public class Coder {
 				}
 				for(int i=0;i<zSize;i++) {
 					linesToEncode[i][1] = lines[i][1] = it.next();
-					
 				}
 				
-				
 				if (verbose && ySize % 10 == 0) {
 					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, ySize));
 				}
 				
-				uq.setQuantizationStep(1);
+				int[] segments = mask.getSegments(y);
+				byte[] classes = mask.getSegmentClasses(y);
 				
+				//a single prediction pass gives the medians of all the classes
+				uq.setQuantizationStep(1);
+				Arrays.fill(lineSamples, 0);
 				for (int z = 0; z < zSize; z++) {
-					for (int x = 0; x < xSize; x++) {
-						
+					for (int s = 0; s < classes.length; s++) {
+					int c = classes[s] & 0xff;
+					lineSamples[c] += segments[s + 1] - segments[s];
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
 						int value = predictorRC.compress(lines, z, y, x, z, 1, uq);
-						predictedLinesS[z][1][x] = value;
-						currentMedian.add((float)value);
-						if(maskSamples[0][y][x] == 255)	currentMedianROI.add((float)value);
-						else							currentMedianBG.add((float)value);
-					
+						medianEstimators.add(value, c);
+						
 						if(x % L == L - 1){
-							
-							Collections.sort(currentMedian);
-							Collections.sort(currentMedianROI);
-							Collections.sort(currentMedianBG);
-							//puts the median of a current L segment into a list that contains all the medians of the line
-							medianLine.add(getMedianFromaList(currentMedian));
-							medianLineROI.add(getMedianFromaList(currentMedianROI));
-							medianLineBG.add(getMedianFromaList(currentMedianBG));
-							//clears the current median segment	
-							currentMedian.clear();
-							currentMedianROI.clear();
-							currentMedianBG.clear();
+							medianEstimators.closeSegment();
+						}
+					}}
+					medianEstimators.closeLine(medianBandsClass);
+				}
+				
+				//the qstep of each class is chosen with the medians of the line to code, so that a
+				//class whose samples change from one line to the next does not use a stale qstep,
+				//and its target is the rate of the bits left to the class over its samples left
+				for (int c = 0; c < numClasses; c++) {
+					if (classRates[c] > 0 && lineSamples[c] != 0) {
+						float targetBits = classRates[c] * mask.getClassSamples(c) * zSize;
+						float remainingSamples = (float) mask.getClassSamples(c) * zSize - classCodedSamples[c];
+						float targetRateClass = Math.max((targetBits - classBits[c]) / remainingSamples, 0.000001f);
+						if (classEstimatedBits[c] > 0) {
+							float ratio = classActualBits[c] / classEstimatedBits[c];
+							targetRateClass /= Math.min(Math.max(ratio, MIN_CLASS_RATE_RATIO), 1 / MIN_CLASS_RATE_RATIO);
 						}
+						int Qstep = (int) updateQstep(medianBandsClass.get(c), targetRateClass, 0, Qsteps[c])[0];
+						//the predictor does not recover from large changes of the qstep, so after the first line
+						//of a class its qstep is at most halved or doubled from one line to the next
+						if (classCodedSamples[c] > 0) {
+							Qstep = Math.max(Math.min(Qstep, 2 * Qsteps[c] + 1), (Qsteps[c] / 2) | 1);
+						}
+						//the search may step over MAXQSTEP, which makes the qstep alternate when the target is not reachable
+						Qsteps[c] = Math.max(Math.min(Qstep, MAXQSTEP - 1), minQsteps[c]);
 					}
-					
-					Collections.sort(medianLine);
-					Collections.sort(medianLineROI);
-					Collections.sort(medianLineBG);
-					//puts the median of a current line into a list that contains the medians for all bands
-					medianBands.add(getMedianFromaList(medianLine));
-					medianBandsROI.add(getMedianFromaList(medianLineROI));
-					medianBandsBG.add(getMedianFromaList(medianLineBG));
-					//clears the current median line
-					medianLine.clear();
-					medianLineROI.clear();
-					medianLineBG.clear();
 				}
-					
-				//QstepROI = 10;
-				//QstepBG = 30;
+				
+				//the quantization steps of the line are signalled in the stream
+				codeLineQsteps(y, Qsteps, 0, false);
+				
+				Arrays.fill(lineBits, 0);
+				for (int z = 0; z < zSize; z++) {
+					for (int s = 0; s < classes.length; s++) {
+					int c = classes[s] & 0xff;
+					uq.setQuantizationStep(Qsteps[c]);
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
+						predictedLines[z][0][x] = predictedLines[z][1][x];
+						predictedLines[z][1][x] = predictor.compress(linesToEncode, z, y, x, z, 1, uq);
+					}}
+					BIACPriorities(z, predictedLines, segments, classes, lineBits);
+				}
+				
+				if (debugMode) {
+					System.out.println("line: " + y + " Qsteps: " + Arrays.toString(Qsteps) + " bits: " + Arrays.toString(lineBits));
+				}
+				
+				for (int c = 0; c < numClasses; c++) {
+					numbitsCurrentLine[y] += lineBits[c];
+					if (lineSamples[c] != 0) {
+						classBits[c] += lineBits[c];
+						classCodedSamples[c] += lineSamples[c];
+						//the older lines are forgotten so that the ratio follows the changes of the image
+						float estimatedBits = (float) getAverageRate(medianBandsClass.get(c), Qsteps[c], 0) * lineSamples[c];
+						classActualBits[c] = classActualBits[c] * CLASS_RATE_RATIO_DECAY + lineBits[c];
+						classEstimatedBits[c] = classEstimatedBits[c] * CLASS_RATE_RATIO_DECAY + estimatedBits;
+					}
+					medianBandsClass.get(c).clear();
+				}
+			}
+			
+			if (verbose || debugMode) {
+				float totalbits = 0;
+				for(int i = 0; i < ySize; i++) {
+					totalbits += numbitsCurrentLine[i];
+				}
+				StringBuilder rates = new StringBuilder("\r");
+				rates.append(totalbits / ((zSize * ySize * xSize)));
+				for (int c = 0; c < numClasses; c++) {
+					rates.append(" ").append(classBits[c] / ((float) mask.getClassSamples(c) * zSize));
+				}
+				System.out.println(rates);
+			}
+			ec.terminate();
+			fileStream.write(ec.getByteStream().getByteStream(),0,(int) ec.getByteStream().getLength());
+			image.close(it);
+			if (verbose || debugMode) {
+				System.out.print("\rCoding image finished");
+			}
+		}catch(UnsupportedOperationException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(IndexOutOfBoundsException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(ClassCastException e) {
+			e.printStackTrace(System.err);
+			
+		}
+	}
+	
+	//TODO
+	private void codeBIACRateControlROI2(boolean verbose, int ROISamples, ROIMask mask, int[] quantizationSteps) throws IOException, ParameterException, ClassNotFoundException, CloneNotSupportedException {
+		float targetRate = this.targetRate;
+		//with low target bit-rates there are some imprecisions that can be tunned through adapting the initial target rate
+		
+		float targetRateROI = 0;
+		float targetRateBG = 0;
+		float inputT = targetRate;
+		
+		int M = parameters.subframeInterleavingDepth;
+		
+		
+		float numbitsCurrentLine[] = new float[ySize];
+		
+		float deviationRateROI[] = new float[ySize];
+		float numbitsBeforeROI[] = new float[ySize];
+		float numbitsCurrentLineROI[] = new float[ySize];
+		float deviationRateBG[] = new float[ySize];
+		float numbitsBeforeBG[] = new float[ySize];
+		float numbitsCurrentLineBG[] = new float[ySize];
+		float numSamplesROI[] = new float[ySize];
+		float numSamplesBG[] = new float[ySize];
+		
+		float targetBitsROIEstimation = 0;
+		float targetBitsBGEstimation = 0;
+		float targetBits = 0;
+		float inputTROIEstimation = 0;
+		float inputTBGEstimation = 0;
+		int lines[][][] = new int[zSize][2][];
+		int predictedLines[][][] = new int[zSize][2][xSize];
+		int predictedLinesS[][][] = new int[zSize][2][xSize];
+		int linesToEncode[][][] = new int[zSize][2][xSize];
+		
+		List<Float> medianBands = new ArrayList<Float>();
+		List<Float> medianBandsROI = new ArrayList<Float>();
+		List<Float> outputRateROI = new ArrayList<Float>();
+		List<Float> medianBandsBG = new ArrayList<Float>();
+		List<Float> outputRateBG = new ArrayList<Float>();
+		boolean EBits = true; //Enough bits for the ROI
+		int L = 17;
+		MedianEstimator.Regions medianEstimators = new MedianEstimator.Regions(L);
+		int QstepROI = 1;
+		int QstepBG = 1;
+		int inputQstep = uq.getQuantizationStep();
+		float [] updateQstepValuesROI = new float[2];
+		float [] updateQstepValuesBG = new float[2];
+		float bpsinputQstep = 0;
+	
+		float ROIbits = 0;
+		float totalbits = 0;
+		float AccumulatedROISamples = 0;
+		float AccumulatedBGSamples = 0;
+		
+		int yROIFirst = -1;
+		int yBGFirst = -1;
+		
+		try {
+			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
+			for (int y = 0; y < ySize; y++) {
+				
+				if(y != 0) {
+					for(int i=0;i<zSize;i++) {
+						lines[i][0] = linesToEncode[i][1];
+						linesToEncode[i][0] = linesToEncode[i][1];
+					}
+				}
+				for(int i=0;i<zSize;i++) {
+					linesToEncode[i][1] = lines[i][1] = it.next();
+					
+				}
+				
+				
+				if (verbose && ySize % 10 == 0) {
+					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, ySize));
+				}
+				
+				uq.setQuantizationStep(1);
+				
+				int[] segments = mask.getSegments(y);
+				for (int z = 0; z < zSize; z++) {
+					for (int s = 0; s < segments.length - 1; s++) {
+					boolean roi = ROIMask.isROISegment(s);
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
+						
+						int value = predictorRC.compress(lines, z, y, x, z, 1, uq);
+						predictedLinesS[z][1][x] = value;
+						medianEstimators.add(value, roi);
+					
+						if(x % L == L - 1){
+							
+							//puts the median of a current L segment into a list that contains all the medians of the line
+							medianEstimators.closeSegment();
+						}
+					}}
+					
+					//puts the median of a current line into a list that contains the medians for all bands
+					medianEstimators.closeLine(medianBands, medianBandsROI, medianBandsBG);
+				}
+					
+				//QstepROI = 10;
+				//QstepBG = 30;
 				if(y == 0) {
 					QstepROI = quantizationSteps[0];
 					QstepBG = quantizationSteps[0];
 				}
 				
 				
-				pwR.println(String.valueOf(QstepROI));
-				if(EBits == true) pwBG.println(String.valueOf(QstepBG));
-				else {
-					pwBG.println(0);
-				}
+				//the quantization steps of the line are signalled in the stream
+				codeLineQsteps(y, QstepROI, EBits ? QstepBG : 0);
 				
 				/////////After simulating coding the first line the amount of bits needed for ROI coding are estimated. Considering to encode the ROI only or also BG data
 				if(y == 0)  {
 					totalbits = 0;
 					for (int z = 0; z < zSize; z++) {
-						totalbits  += BIACS(M, z, y, predictedLinesS, maskSamples);
+						totalbits  += BIACS(M, z, y, predictedLinesS);
 					}
 					
 					////////Counting bits for encoding the first line losslessly////////
@@ -1878,9 +2191,8 @@ public class Coder {
 					}else {
 						EBits = true;
 					}
-					//saving auxiliary data to know if there are enough bits for coding some BG data
-					if(EBits) pwA.println(1);
-					else      pwA.println(0);
+					//signalling if there are enough bits for coding some BG data
+					ec.encodeBit(EBits);
 				}
 				////////////////////////////////////////////////////////
 
@@ -1888,20 +2200,24 @@ public class Coder {
 				for (int z = 0; z < zSize; z++) {
 					predictor.canBeInizialized = true;
 					predictor.resetMSE();
-					for (int x = 0; x < xSize; x++) {
+					for (int s = 0; s < segments.length - 1; s++) {
+					int length = segments[s + 1] - segments[s];
+					if (length == 0) continue;
+					boolean roi = ROIMask.isROISegment(s);
+					if(roi) {
+						if(yROIFirst == -1) yROIFirst = y;
+						uq.setQuantizationStep(QstepROI);
+						numSamplesROI[y] += length;
+					}else{
+						if(yBGFirst == -1) yBGFirst = y;
+						uq.setQuantizationStep(QstepBG);
+						numSamplesBG[y] += length;
+					}
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
 						predictedLines[z][0][x] = predictedLines[z][1][x];
-						if(maskSamples[0][y][x] == 255) {
-							if(yROIFirst == -1) yROIFirst = y;
-							uq.setQuantizationStep(QstepROI);
-							numSamplesROI[y]++;
-						}else{		
-							if(yBGFirst == -1) yBGFirst = y;
-							uq.setQuantizationStep(QstepBG);
-							numSamplesBG[y]++;	
-						}
 						int value = 0;
-						//if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
-						if(maskSamples[0][y][x] == 255 || EBits == true) {
+						//if(y == 0 || (y > 0 && roi) || EBits == true) {
+						if(roi || EBits == true) {
 							value = predictor.compressROI(linesToEncode, z, y, x, z, 1, uq, yROIFirst); 
 							predictedLines[z][1][x] = value;
 						}else {
@@ -1910,9 +2226,9 @@ public class Coder {
 							predictedLines[z][1][x] = value;
 						}
 						
-					}
+					}}
 					if(numSamplesBG[y] == xSize) yROIFirst = -1;
-					BIACROI(M, z, y, predictedLines, maskSamples, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG, EBits, yROIFirst);
+					BIACROI(M, z, y, predictedLines, segments, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG, EBits, yROIFirst);
 				}
 				
 				
@@ -1998,13 +2314,6 @@ public class Coder {
 			//System.out.println("predictor.getPAE(): "+predictor.getPAE());
 			//System.out.println("predictor.getMSE(): "+predictor.getMSE(geo[CONS.BANDS]*geo[CONS.WIDTH]*geo[CONS.HEIGHT]));
 			
-			pwR.flush();
-			pwBG.flush();
-			pwA.flush();
-			pwR.close();
-			pwBG.close();
-			pwA.close();
-			
 			float BGbits = 0;
 			ROIbits = 0;
 			totalbits = 0;
@@ -2048,11 +2357,7 @@ public class Coder {
 	}
 	
 	
-	private void codeBIACRateControlROI(boolean verbose, int[] ROISamplesLine, int ROISamples, int[][][] maskSamples, int[] quantizationSteps) throws IOException, ParameterException, ClassNotFoundException, CloneNotSupportedException {
-		PrintWriter pwA = new PrintWriter(new FileWriter("auxiliary.txt"));
-		PrintWriter pwBG = new PrintWriter(new FileWriter("qstepsBG.txt"));
-		PrintWriter pwR = new PrintWriter(new FileWriter("qstepsROI.txt"));
-		
+	private void codeBIACRateControlROI(boolean verbose, int ROISamples, ROIMask mask, int[] quantizationSteps) throws IOException, ParameterException, ClassNotFoundException, CloneNotSupportedException {
 		float targetRate = this.targetRate;
 		//with low target bit-rates there are some imprecisions that can be tunned through adapting the initial target rate
 		
@@ -2083,19 +2388,14 @@ public class Coder {
 		int predictedLines[][][] = new int[zSize][2][xSize];
 		int linesToEncode[][][] = new int[zSize][2][xSize];
 		
-		List<Float> currentMedian = new ArrayList<Float>();
-		List<Float> medianLine = new ArrayList<Float>();
 		List<Float> medianBands = new ArrayList<Float>();
-		List<Float> currentMedianROI = new ArrayList<Float>();
-		List<Float> medianLineROI = new ArrayList<Float>();
 		List<Float> medianBandsROI = new ArrayList<Float>();
 		List<Float> outputRateROI = new ArrayList<Float>();
-		List<Float> currentMedianBG = new ArrayList<Float>();
-		List<Float> medianLineBG = new ArrayList<Float>();
 		List<Float> medianBandsBG = new ArrayList<Float>();
 		List<Float> outputRateBG = new ArrayList<Float>();
 		boolean EBits = true; //Enough bits for the ROI
 		int L = 17;
+		MedianEstimator.Regions medianEstimators = new MedianEstimator.Regions(L);
 		int QstepROI = 1;
 		int QstepBG = 1;
 		int inputQstep = uq.getQuantizationStep();
@@ -2108,7 +2408,7 @@ public class Coder {
 		
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			for (int y = 0; y < ySize; y++) {
 				
 				if(y != 0) {
@@ -2129,41 +2429,24 @@ public class Coder {
 				
 				uq.setQuantizationStep(1);
 				
+				int[] segments = mask.getSegments(y);
 				for (int z = 0; z < zSize; z++) {
-					for (int x = 0; x < xSize; x++) {
+					for (int s = 0; s < segments.length - 1; s++) {
+					boolean roi = ROIMask.isROISegment(s);
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
 						
 						int value = predictorRC.compress(lines, z, y, x, z, 1, uq);
-						currentMedian.add((float)value);
-						if(maskSamples[0][y][x] == 255)	currentMedianROI.add((float)value);
-						else							currentMedianBG.add((float)value);
+						medianEstimators.add(value, roi);
 					
 						if(x % L == L - 1){
 							
-							Collections.sort(currentMedian);
-							Collections.sort(currentMedianROI);
-							Collections.sort(currentMedianBG);
 							//puts the median of a current L segment into a list that contains all the medians of the line
-							medianLine.add(getMedianFromaList(currentMedian));
-							medianLineROI.add(getMedianFromaList(currentMedianROI));
-							medianLineBG.add(getMedianFromaList(currentMedianBG));
-							//clears the current median segment	
-							currentMedian.clear();
-							currentMedianROI.clear();
-							currentMedianBG.clear();
+							medianEstimators.closeSegment();
 						}
-					}
+					}}
 					
-					Collections.sort(medianLine);
-					Collections.sort(medianLineROI);
-					Collections.sort(medianLineBG);
 					//puts the median of a current line into a list that contains the medians for all bands
-					medianBands.add(getMedianFromaList(medianLine));
-					medianBandsROI.add(getMedianFromaList(medianLineROI));
-					medianBandsBG.add(getMedianFromaList(medianLineBG));
-					//clears the current median line
-					medianLine.clear();
-					medianLineROI.clear();
-					medianLineBG.clear();
+					medianEstimators.closeLine(medianBands, medianBandsROI, medianBandsBG);
 				}
 					
 				//QstepROI = 10;
@@ -2174,28 +2457,29 @@ public class Coder {
 				}
 				
 				
-				pwR.println(String.valueOf(QstepROI));
-				if(EBits == true) pwBG.println(String.valueOf(QstepBG));
-				else {
-					pwBG.println(0);
-				}
+				//the quantization steps of the line are signalled in the stream
+				codeLineQsteps(y, QstepROI, EBits ? QstepBG : 0);
 				
 				
 				for (int z = 0; z < zSize; z++) {
 					predictor.resetMSE();
-					for (int x = 0; x < xSize; x++) {
+					for (int s = 0; s < segments.length - 1; s++) {
+					int length = segments[s + 1] - segments[s];
+					if (length == 0) continue;
+					boolean roi = ROIMask.isROISegment(s);
+					if(roi) {
+						if(yROIFirst == -1) yROIFirst = y;
+						uq.setQuantizationStep(QstepROI);
+						numSamplesROI[y] += length;
+					}else{
+						if(yBGFirst == -1) yBGFirst = y;
+						uq.setQuantizationStep(QstepBG);
+						numSamplesBG[y] += length;
+					}
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
 						predictedLines[z][0][x] = predictedLines[z][1][x];
-						if(maskSamples[0][y][x] == 255) {
-							if(yROIFirst == -1) yROIFirst = y;
-							uq.setQuantizationStep(QstepROI);
-							numSamplesROI[y]++;
-						}else{		
-							if(yBGFirst == -1) yBGFirst = y;
-							uq.setQuantizationStep(QstepBG);
-							numSamplesBG[y]++;	
-						}
 						int value = 0;
-						if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
+						if(y == 0 || (y > 0 && roi) || EBits == true) {
 							value = predictor.compress(linesToEncode, z, y, x, z, 1, uq); 
 							predictedLines[z][1][x] = value;
 						}else {
@@ -2204,9 +2488,9 @@ public class Coder {
 							predictedLines[z][1][x] = value;
 						}
 						
-					}
+					}}
 					if(numSamplesBG[y] == xSize) yROIFirst = -1;
-					BIAC(M, z, y, predictedLines, maskSamples, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG, EBits);
+					BIAC(M, z, y, predictedLines, segments, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG, EBits);
 				}
 				
 				float ROIbits = 0;
@@ -2232,9 +2516,8 @@ public class Coder {
 					}else {
 						EBits = true;
 					}
-					//saving auxiliary data to know if there are enough bits for coding some BG data
-					if(EBits) pwA.println(1);
-					else      pwA.println(0);
+					//signalling if there are enough bits for coding some BG data
+					ec.encodeBit(EBits);
 				}
 	
 
@@ -2305,13 +2588,6 @@ public class Coder {
 			//System.out.println("predictor.getPAE(): "+predictor.getPAE());
 			//System.out.println("predictor.getMSE(): "+predictor.getMSE(geo[CONS.BANDS]*geo[CONS.WIDTH]*geo[CONS.HEIGHT]));
 			
-			pwR.flush();
-			pwBG.flush();
-			pwA.flush();
-			pwR.close();
-			pwBG.close();
-			pwA.close();
-			
 			ec.terminate();
 			
 			float bps = (ec.getByteStream().getLength()*8) / ((zSize * ySize * xSize));
@@ -2341,118 +2617,111 @@ public class Coder {
 	}
 
 	
-	private double BIACS(int M, int z, int y, int predictedLines[][][], int maskSamples[][][]){
-		double numbits = 0;
+	private double BIACS(int M, int z, int y, int predictedLines[][][]){
+		rateEstimator.reset();
 		for (int bit = 15; bit >= 0; bit--){
 		for (int x = 0; x < xSize; x ++) {
 				boolean realBit = false;
 				int context = 0;
 				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-				int prob = cps.getProbability(context);//get probability for the computed context
-				cps.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+				int prob = cps.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 					
-				double probq = prob / (double) (1 << numBitsPrecision);
-				
-				if(realBit){
-					probq = 1 - probq;
-				}
-				
-				assert(probq != 0);
-				assert(probq != 1);
-				
-				double symbolCost = - (Math.log10(probq) / Math.log10(2));
-				
-				assert(symbolCost > 0);
-				
-				numbits += symbolCost; //https://en.wikipedia.org/wiki/Arithmetic_coding	
+				rateEstimator.addBit(realBit, prob);
 		}}
-		return numbits;
+		return rateEstimator.getBits();
 	}
 
-	private void BIACROI3(int M, int z, int y, int predictedLines[][][], int maskSamples[][][], float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[]){
-		for (int bit = 15; bit >= 0; bit--){
-		for (int x = 0; x < xSize; x ++) {
-				if (x == 0 && y == 0 && z == 0 && bit == 15) {
-					ec.init(z);
-				}
-				
+	private void BIACROI3(int M, int z, int y, int predictedLines[][][], int segments[], float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[]){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
+		for (int s = 0; s < segments.length - 1; s++) {
+			//the bits used for the ROI and the BG are accounted by the coder
+			acFLW.setAccountingBucket(ROIMask.isROISegment(s) ? ROI_BUCKET : BG_BUCKET);
+		for (int x = segments[s]; x < segments[s + 1]; x ++) {
 				boolean realBit = false;
 				int context = 0;
 				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-				int prob = cp.getProbability(context);//get probability for the computed context
-				cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-				long SizeBitstreamBeforeCoding = ec.getNumBitsWritten();
-				ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
-				//get the amount of bits used for the ROI and the BG
-				if(maskSamples[0][y][x] == 255) {
-					numbitsCurrentLineROI[y] = numbitsCurrentLineROI[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-				}else{
-					numbitsCurrentLineBG[y] = numbitsCurrentLineBG[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-				}
-				numbitsCurrentLine[y] = numbitsCurrentLine[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+				acFLW.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 				
 				
-		}}
+		}}}
+		accountLineBits(y, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG);
 	}
 	
-	private void BIACROI(int M, int z, int y, int predictedLines[][][], int maskSamples[][][], float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[], boolean EBits, int yROIFirst){
-		for (int bit = 15; bit >= 0; bit--){
-		for (int x = 0; x < xSize; x ++) {
-				if (x == 0 && y == 0 && z == 0 && bit == 15) {
-					ec.init(z);
-				}
-				
-				//if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
-				if(maskSamples[0][y][x] == 255 || EBits == true) {
-					boolean realBit = false;
-					int context = 0;
-					realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
-					context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-					int prob = cp.getProbability(context);//get probability for the computed context
-					cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-					long SizeBitstreamBeforeCoding = ec.getNumBitsWritten();
-					ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
-					//get the amount of bits used for the ROI and the BG
-					if(maskSamples[0][y][x] == 255) {
-						numbitsCurrentLineROI[y] = numbitsCurrentLineROI[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-					}else{
-						numbitsCurrentLineBG[y] = numbitsCurrentLineBG[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-					}
-					numbitsCurrentLine[y] = numbitsCurrentLine[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-				}
+	/**
+	 * Codes band z of a line of the priority mask and adds the bits spent in each class to lineBits.
+	 * 
+	 * @param z the band
+	 * @param predictedLines the quantized residuals
+	 * @param segments the segments of the line
+	 * @param classes the classes of the segments
+	 * @param lineBits the bits of each class in the line
+	 */
+	private void BIACPriorities(int z, int predictedLines[][][], int segments[], byte classes[], float lineBits[]){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
+		for (int s = 0; s < classes.length; s++) {
+			//the bits used for each class are accounted by the coder
+			acFLW.setAccountingBucket(classes[s] & 0xff);
+		for (int x = segments[s]; x < segments[s + 1]; x ++) {
+				boolean realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
+				int context = cm.getContext(predictedLines, z, 1, x, bit);//get context
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+				acFLW.encodeBitProb(realBit, prob);//encode the bit using the specific probability
+		}}}
+		for (int c = 0; c < lineBits.length; c++) {
+			lineBits[c] += acFLW.getAccountedBits(c);
+		}
+		acFLW.resetAccountedBits();
+	}
+	
+	private void BIACROI(int M, int z, int y, int predictedLines[][][], int segments[], float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[], boolean EBits, int yROIFirst){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
+		for (int s = 0; s < segments.length - 1; s++) {
+			boolean roi = ROIMask.isROISegment(s);
+			//if(y == 0 || (y > 0 && roi) || EBits == true) {
+			if(!roi && EBits == false) continue;
+			//the bits used for the ROI and the BG are accounted by the coder
+			acFLW.setAccountingBucket(roi ? ROI_BUCKET : BG_BUCKET);
+		for (int x = segments[s]; x < segments[s + 1]; x ++) {
+				boolean realBit = false;
+				int context = 0;
+				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
+				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+				acFLW.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 				
-		}}
+		}}}
+		accountLineBits(y, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG);
 	}
 	
 	
-	private void BIAC(int M, int z, int y, int predictedLines[][][], int maskSamples[][][], float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[], boolean EBits){
-		for (int bit = 15; bit >= 0; bit--){
-		for (int x = 0; x < xSize; x ++) {
-				if (x == 0 && y == 0 && z == 0 && bit == 15) {
-					ec.init(z);
-				}
-				
-				if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
-					boolean realBit = false;
-					int context = 0;
-					realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
-					context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-					int prob = cp.getProbability(context);//get probability for the computed context
-					cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-					long SizeBitstreamBeforeCoding = ec.getNumBitsWritten();
-					ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
-					//get the amount of bits used for the ROI and the BG
-					if(maskSamples[0][y][x] == 255) {
-						numbitsCurrentLineROI[y] = numbitsCurrentLineROI[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-					}else{
-						numbitsCurrentLineBG[y] = numbitsCurrentLineBG[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-					}
-					numbitsCurrentLine[y] = numbitsCurrentLine[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
-				}
+	private void BIAC(int M, int z, int y, int predictedLines[][][], int segments[], float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[], boolean EBits){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
+		for (int s = 0; s < segments.length - 1; s++) {
+			boolean roi = ROIMask.isROISegment(s);
+			if(y > 0 && !roi && EBits == false) continue;
+			//the bits used for the ROI and the BG are accounted by the coder
+			acFLW.setAccountingBucket(roi ? ROI_BUCKET : BG_BUCKET);
+		for (int x = segments[s]; x < segments[s + 1]; x ++) {
+				boolean realBit = false;
+				int context = 0;
+				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
+				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+				acFLW.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 				
-		}}
+		}}}
+		accountLineBits(y, numbitsCurrentLine, numbitsCurrentLineROI, numbitsCurrentLineBG);
 	}
 
 
@@ -2485,13 +2754,12 @@ public class Coder {
 		float numbitsBefore[] = new float[ySize];
 		float numbitsCurrentLine[] = new float[ySize];
 		
-		List<Float> currentMedian = new ArrayList<Float>();
-		List<Float> medianLine = new ArrayList<Float>();
 		List<Float> medianBands = new ArrayList<Float>();
 		List<Float> outputRate = new ArrayList<Float>();
 		List<Float> deviation = new ArrayList<Float>();
 		
 		int L = 17;
+		MedianEstimator medianEstimator = new MedianEstimator(L);
 		int Qstep = 1;
 		float [] updateQstepValues = new float[2];
 		updateQstepValues[0] = Qstep;
@@ -2500,98 +2768,446 @@ public class Coder {
 		if(verbose || debugMode) {
 			System.out.println("Coding BI");
 		}
+		if(lookAhead > 0) {
+			codeBIACRateControlLookAhead(verbose, pw);
+			return;
+		}
 		
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			for (int y = 0; y < geo[CONS.HEIGHT]; y++) {
 				
-				if(y != 0) {
-					for(int i=0;i<geo[CONS.BANDS];i++) {
-						lines[i][0] = linesToEncode[i][1];
-						linesToEncode[i][0] = linesToEncode[i][1];
-					}
+				if(y != 0) {
+					for(int i=0;i<geo[CONS.BANDS];i++) {
+						lines[i][0] = linesToEncode[i][1];
+						linesToEncode[i][0] = linesToEncode[i][1];
+					}
+				}
+				for(int i=0;i<geo[CONS.BANDS];i++) {
+					linesToEncode[i][1] = lines[i][1] = it.next();
+					
+				}
+				
+				
+				if (verbose && geo[CONS.HEIGHT] % 10 == 0) {
+					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, geo[CONS.HEIGHT]));
+				}
+				
+				uq.setQuantizationStep(1);
+				
+				for (int z = 0; z < geo[CONS.BANDS]; z++) {
+					for (int x = 0; x < geo[CONS.WIDTH]; x++) {
+						
+						int value = predictorRC.compress(lines, z, y, x, z, 1, uq);
+						medianEstimator.add(value);
+					
+						if(x % L == L - 1){
+							
+							//puts the median of a current L segment into a list that contains all the medians of the line
+							medianEstimator.closeSegment();
+						}
+					}
+					
+					//puts the median of a current line into a list that contains the medians for all bands
+					medianBands.add(medianEstimator.closeLine());
+				}
+					
+					
+					if(y == 0)	Qstep = 1;
+					//Qstep = 1;
+					uq.setQuantizationStep(Qstep);
+					pw.println(String.valueOf(Qstep));
+				
+					//ec.resetNumBitsWritten();
+					//predictor.resetMSE();
+					if(y == 0) ec.init(0);
+					for (int z = 0; z < geo[CONS.BANDS]; z++) {
+						predictor.resetMSE();
+						for (int x = 0; x < geo[CONS.WIDTH]; x++) {
+							predictedLines[z][0][x] = predictedLines[z][1][x];
+							int value = predictor.compress(linesToEncode, z, y, x, z, 1, uq);
+							predictedLines[z][1][x] = value;
+						}
+						BIAC(M, z, y, predictedLines, numbitsCurrentLine);
+						
+						//System.out.println(z+":"+y+":"+predictor.getMSE(geo[CONS.WIDTH])+":"+((double)(ec.getNumBitsWritten()-previousbits)/(double)(geo[CONS.WIDTH])));
+						
+					}
+					
+				this.targetRate = BIupdateTargetRateValsesia(y, inputT, outputRate, numbitsBefore, numbitsCurrentLine, deviationRate);
+				updateQstepValues = updateQstep(medianBands, outputRate, this.targetRate, 0);
+				Qstep = (int)updateQstepValues[0];
+				medianBands.clear();
+				System.out.println("y: "+(y+1)+" Qstep: "+Qstep+" targetRate: "+targetRate);
+				
+				
+			}
+			//System.out.println("predictor.getPAE(): "+predictor.getPAE());
+			//System.out.println("predictor.getMSE(): "+predictor.getMSE(geo[CONS.BANDS]*geo[CONS.WIDTH]*geo[CONS.HEIGHT]));
+			
+			
+			pw.flush();
+			pw.close();
+			ec.terminate();
+			fileStream.write(ec.getByteStream().getByteStream(),0,(int) ec.getByteStream().getLength());
+			image.close(it);
+			if (verbose || debugMode) {
+				System.out.print("\rCoding image finished");
+			}
+		}catch(UnsupportedOperationException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(IndexOutOfBoundsException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(ClassCastException e) {
+			e.printStackTrace(System.err);
+			
+		}
+	}
+	
+	/**
+	 * Encodes an image in BI order choosing the qstep of each line as the one that minimizes
+	 * the Lagrangian cost D + lambda * R of the line, where the distortion and the rate of each
+	 * band are estimated from its median with the Valsesia rate table. The lambda of each line
+	 * meets the rate left for the remaining lines, corrected by the difference between the rate
+	 * spent and the rate estimated for the coded lines. The change of lambda from one line to the
+	 * next is bounded, and the qsteps are at most halved or doubled from the ones that meet the rate
+	 * left. So the bits spent above or below the target are recovered over all the remaining lines,
+	 * and a few lines much harder than the previous ones do not take the bits of the last lines.
+	 * The bands can be split in <code>qstepGroups</code> groups of contiguous bands, each one with
+	 * the qstep that minimizes its own cost for the same lambda. The qsteps of each line are coded
+	 * in the stream, after the number of groups in the first line, as differences from the previous
+	 * line, and the bits of these differences are
+	 * part of the cost, so the qstep of a group only changes when the gain pays for its bits.
+	 *
+	 * @param verbose indicates whether to display information
+	 * @throws IOException if can not write information to the file
+	 */
+	private void codeBIACRateControlRD(boolean verbose) throws IOException {
+		float inputT = targetRate;
+		int M = parameters.subframeInterleavingDepth;
+		
+		int lines[][][] = new int[zSize][2][];
+		int predictedLines[][][] = new int[zSize][2][xSize];
+		int linesToEncode[][][] = new int[zSize][2][xSize];
+		
+		float numbitsCurrentLine[] = new float[ySize];
+		float lineSamples = (float) zSize * xSize;
+		float targetBits = inputT * lineSamples * ySize;
+		float codedBits = 0;
+		//difference between the rate spent and the rate estimated with the rate table
+		float correction = 0;
+		
+		List<Float> medianBands = new ArrayList<Float>();
+		int L = 17;
+		MedianEstimator medianEstimator = new MedianEstimator(L);
+		double log2Lambda = 0;
+		int groups = Math.min(qstepGroups, zSize);
+		int[] Qsteps = new int[groups];
+		int[] rateQsteps = new int[groups];
+		int[] previousQsteps = new int[groups];
+		int[] bandGroups = getBandGroups(zSize, groups);
+		
+		if(verbose || debugMode) {
+			System.out.println("Coding BI");
+		}
+		
+		try {
+			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
+			for (int y = 0; y < ySize; y++) {
+				
+				if(y != 0) {
+					for(int i=0;i<zSize;i++) {
+						lines[i][0] = linesToEncode[i][1];
+						linesToEncode[i][0] = linesToEncode[i][1];
+					}
+				}
+				for(int i=0;i<zSize;i++) {
+					linesToEncode[i][1] = lines[i][1] = it.next();
+				}
+				
+				if (verbose && ySize % 10 == 0) {
+					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, ySize));
+				}
+				
+				uq.setQuantizationStep(1);
+				for (int z = 0; z < zSize; z++) {
+					for (int x = 0; x < xSize; x++) {
+						medianEstimator.add(predictorRC.compress(lines, z, y, x, z, 1, uq));
+						if(x % L == L - 1){
+							medianEstimator.closeSegment();
+						}
+					}
+					medianBands.add(medianEstimator.closeLine());
+				}
+				
+				//the lambda that meets the rate left with the medians of the line is reached in steps,
+				//so the bits spent above the target are recovered over all the remaining lines
+				//the qsteps of the first line are coded once for the whole image, so their bits are not
+				//charged to the line
+				float rateLeft = (targetBits - codedBits) / (lineSamples * (ySize - y));
+				int[] lineQsteps = y == 0 ? null : previousQsteps;
+				double log2LambdaLine = getRDLambda(medianBands, Math.max(rateLeft - correction, 0.000001f), bandGroups, lineQsteps, Qsteps);
+				if(y == 0) {
+					log2Lambda = log2LambdaLine;
+				}else {
+					log2Lambda = Math.max(Math.min(log2LambdaLine, log2Lambda + MAX_LOG2_LAMBDA_STEP), log2Lambda - MAX_LOG2_LAMBDA_STEP);
+				}
+				//the qsteps of the bounded lambda stay close to the ones that meet the rate left, as the
+				//predictor does not recover from the large qsteps of a lambda that is far behind
+				getRDQsteps(medianBands, Math.pow(2, log2LambdaLine), bandGroups, lineQsteps, null, rateQsteps);
+				getRDQsteps(medianBands, Math.pow(2, log2Lambda), bandGroups, lineQsteps, rateQsteps, Qsteps);
+				float estimatedRate = getRDRate(medianBands, bandGroups, lineQsteps, Qsteps);
+				float firstLineBits = 0;
+				for(int g = 0; g < groups && y == 0; g++) {
+					firstLineBits += getQstepDeltaBits(Qsteps[g]);
+				}
+				System.arraycopy(Qsteps, 0, previousQsteps, 0, groups);
+				medianBands.clear();
+				
+				codeLineQsteps(y, Qsteps, BG_BUCKET, true);
+				for (int z = 0; z < zSize; z++) {
+					uq.setQuantizationStep(Qsteps[bandGroups[z]]);
+					predictor.resetMSE();
+					for (int x = 0; x < xSize; x++) {
+						predictedLines[z][0][x] = predictedLines[z][1][x];
+						predictedLines[z][1][x] = predictor.compress(linesToEncode, z, y, x, z, 1, uq);
+					}
+					BIAC(M, z, y, predictedLines, numbitsCurrentLine);
+				}
+				codedBits += numbitsCurrentLine[y];
+				correction = (correction + (numbitsCurrentLine[y] - firstLineBits) / lineSamples - estimatedRate) / 2;
+				System.out.println("y: "+(y+1)+" Qstep: "+Arrays.toString(Qsteps)+" lambda: "+(float) Math.pow(2, log2Lambda));
+			}
+			
+			ec.terminate();
+			fileStream.write(ec.getByteStream().getByteStream(),0,(int) ec.getByteStream().getLength());
+			image.close(it);
+			if (verbose || debugMode) {
+				System.out.print("\rCoding image finished");
+			}
+		}catch(UnsupportedOperationException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(IndexOutOfBoundsException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(ClassCastException e) {
+			e.printStackTrace(System.err);
+			
+		}
+	}
+	
+	/**
+	 * Splits the bands in groups of contiguous bands of about the same size.
+	 * 
+	 * @param bands the number of bands
+	 * @param groups the number of groups
+	 * @return the group of each band
+	 */
+	static int[] getBandGroups(int bands, int groups){
+		int[] bandGroups = new int[bands];
+		for(int g = 0; g < groups; g++){
+			Arrays.fill(bandGroups, g * bands / groups, (g + 1) * bands / groups, g);
+		}
+		return bandGroups;
+	}
+	
+	/**
+	 * Searches the odd qstep of each group of bands that minimizes the Lagrangian cost of the
+	 * group, its distortion plus lambda times its rate estimated from the medians of its bands
+	 * and the bits of its qstep in the stream.
+	 * 
+	 * @param medianBands the medians of the bands of the line
+	 * @param lambda the Lagrange multiplier
+	 * @param bandGroups the group of each band, the groups are contiguous
+	 * @param previousQsteps the qstep of each group in the previous line, null if the bits of the
+	 * qsteps are not counted
+	 * @param boundQsteps the qstep of each group is searched between the half and the double of
+	 * these qsteps, null to search all the qsteps
+	 * @param Qsteps the qstep of each group, filled by this method
+	 */
+	private void getRDQsteps(List<Float> medianBands, double lambda, int[] bandGroups, int[] previousQsteps, int[] boundQsteps, int[] Qsteps){
+		int first = 0;
+		for(int g = 0; g < Qsteps.length; g++){
+			int last = first;
+			while(last < bandGroups.length && bandGroups[last] == g) last++;
+			int minQstep = boundQsteps == null ? 1 : (boundQsteps[g] / 2) | 1;
+			int maxQstep = boundQsteps == null ? MAXQSTEP : Math.min(2 * boundQsteps[g] + 1, MAXQSTEP);
+			Qsteps[g] = getRDQstep(medianBands.subList(first, last), lambda, previousQsteps == null ? -1 : previousQsteps[g], minQstep, maxQstep);
+			first = last;
+		}
+	}
+	
+	/**
+	 * Searches the odd qstep that minimizes the Lagrangian cost of some bands, the distortion plus
+	 * lambda times the rate estimated from their medians and the bits of the qstep in the stream.
+	 * The bits of the qstep make the small changes from the previous line cheaper, so that the
+	 * qsteps of many small groups do not jump from one line to the next.
+	 * 
+	 * @param medianBands the medians of the bands
+	 * @param lambda the Lagrange multiplier
+	 * @param previousQstep the qstep of the bands in the previous line, -1 if the bits of the qstep
+	 * are not counted
+	 * @param minQstep the smallest odd qstep searched
+	 * @param maxQstep the largest qstep searched
+	 * @return the qstep
+	 */
+	private int getRDQstep(List<Float> medianBands, double lambda, int previousQstep, int minQstep, int maxQstep){
+		int bestQstep = minQstep;
+		double bestCost = Double.MAX_VALUE;
+		for(int qstep = minQstep; qstep <= maxQstep; qstep += 2){
+			//the rates are in bits per sample of a band
+			double cost = previousQstep < 0 ? 0 : lambda * getQstepDeltaBits(qstep - previousQstep) / xSize;
+			for(int index = 0; index < medianBands.size(); index++){
+				float median = medianBands.get(index);
+				if(median > 0) {
+					cost += rateTable.getDistortion(median, qstep) + lambda * rateTable.getRate(median, qstep);
+				}
+			}
+			if(cost < bestCost){
+				bestCost = cost;
+				bestQstep = qstep;
+			}
+		}
+		return bestQstep;
+	}
+	
+	/**
+	 * Searches by bisection the base 2 logarithm of the lambda whose qsteps give the rate, estimated
+	 * from the medians of the bands of a line, closest to the target rate.
+	 * 
+	 * @param medianBands the medians of the bands of the line
+	 * @param targetRate the target rate
+	 * @param bandGroups the group of each band
+	 * @param previousQsteps the qstep of each group in the previous line, null if the bits of the
+	 * qsteps are not counted
+	 * @param Qsteps the qstep of each group, used as workspace
+	 * @return the logarithm of lambda
+	 */
+	private double getRDLambda(List<Float> medianBands, float targetRate, int[] bandGroups, int[] previousQsteps, int[] Qsteps){
+		double low = -16;
+		double high = 48;
+		for(int i = 0; i < 32; i++){
+			double mid = (low + high) / 2;
+			getRDQsteps(medianBands, Math.pow(2, mid), bandGroups, previousQsteps, null, Qsteps);
+			//the rate decreases as lambda increases
+			if(getRDRate(medianBands, bandGroups, previousQsteps, Qsteps) > targetRate) low = mid;
+			else high = mid;
+		}
+		return (low + high) / 2;
+	}
+	
+	/**
+	 * Estimates the rate of a line from the medians of its bands and the qsteps of their groups,
+	 * including the bits of the qsteps in the stream.
+	 * 
+	 * @param medianBands the medians of the bands of the line
+	 * @param bandGroups the group of each band
+	 * @param previousQsteps the qstep of each group in the previous line, null if the bits of the
+	 * qsteps are not counted
+	 * @param Qsteps the qstep of each group
+	 * @return the estimated rate in bits per sample
+	 */
+	private float getRDRate(List<Float> medianBands, int[] bandGroups, int[] previousQsteps, int[] Qsteps){
+		double R = 0;
+		for(int index = 0; index < medianBands.size(); index++){
+			if(medianBands.get(index) > 0) {
+				R = R + rateTable.getRate(medianBands.get(index), Qsteps[bandGroups[index]]);
+			}
+		}
+		for(int g = 0; previousQsteps != null && g < Qsteps.length; g++){
+			R = R + (double) getQstepDeltaBits(Qsteps[g] - previousQsteps[g]) / xSize;
+		}
+		return (float) (R / medianBands.size());
+	}
+	
+	/**
+	 * Encodes an image in BI order choosing the qstep of each line before coding it, so that
+	 * the rate estimated with the Valsesia rate table for a window made of the line and the
+	 * next <code>lookAhead</code> lines meets the bits left for the window. The bits left are
+	 * distributed evenly among the remaining lines, and the estimated rates are corrected by
+	 * the difference between the rate spent and the rate estimated for the coded lines. The lines
+	 * are read and their medians are estimated by a {@link LookAheadReader} in a second thread
+	 * while the current line is coded.
+	 *
+	 * @param verbose indicates whether to display information
+	 * @param pw the writer of the qsteps of the lines
+	 * @throws IOException if can not write information to the file
+	 */
+	private void codeBIACRateControlLookAhead(boolean verbose, PrintWriter pw) throws IOException {
+		float inputT = targetRate;
+		int M = parameters.subframeInterleavingDepth;
+		
+		int predictedLines[][][] = new int[zSize][2][xSize];
+		int linesToEncode[][][] = new int[zSize][2][xSize];
+		
+		float numbitsCurrentLine[] = new float[ySize];
+		float targetBits = inputT * zSize * ySize * xSize;
+		float codedBits = 0;
+		//difference between the rate spent and the rate estimated with the rate table
+		float correction = 0;
+		
+		List<Float> medianBands = new ArrayList<Float>();
+		ArrayDeque<LookAheadLine> window = new ArrayDeque<LookAheadLine>(lookAhead + 1);
+		int Qstep = 1;
+		
+		RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
+		RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
+		LookAheadReader reader = new LookAheadReader(it, lookAhead);
+		reader.start();
+		try {
+			for (int y = 0; y < ySize; y++) {
+				
+				//the window holds the current line and the next lookAhead lines
+				while (window.size() < Math.min(lookAhead + 1, ySize - y)) {
+					window.addLast(reader.take());
 				}
-				for(int i=0;i<geo[CONS.BANDS];i++) {
-					linesToEncode[i][1] = lines[i][1] = it.next();
-					
+				LookAheadLine current = window.peekFirst();
+				for (int z = 0; z < zSize; z++) {
+					linesToEncode[z][0] = linesToEncode[z][1];
+					linesToEncode[z][1] = current.lines[z];
 				}
 				
-				
-				if (verbose && geo[CONS.HEIGHT] % 10 == 0) {
-					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, geo[CONS.HEIGHT]));
+				if (verbose && ySize % 10 == 0) {
+					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, ySize));
 				}
 				
-				uq.setQuantizationStep(1);
-				
-				for (int z = 0; z < geo[CONS.BANDS]; z++) {
-					for (int x = 0; x < geo[CONS.WIDTH]; x++) {
-						
-						int value = predictorRC.compress(lines, z, y, x, z, 1, uq);
-						currentMedian.add((float)value);
-					
-						if(x % L == L - 1){
-							
-							//removes duplicate elements and sorts a list
-							/*Set<Float> hs = new HashSet<>();
-							hs.addAll(currentMedian);
-							currentMedian.clear();
-							currentMedian.addAll(hs);
-							*/
-							Collections.sort(currentMedian);
-							//puts the median of a current L segment into a list that contains all the medians of the line
-							medianLine.add(getMedianFromaList(currentMedian));
-							//clears the current median segment	
-							currentMedian.clear();
-						}
+				//the rate of the window is the sum of the rates of its lines, the medians of the current line are the first ones
+				targetRate = (targetBits - codedBits) / ((float) (ySize - y) * zSize * xSize);
+				if(targetRate < 0f) targetRate = 0.000001f;
+				for (LookAheadLine line : window) {
+					for (int z = 0; z < zSize; z++) {
+						medianBands.add(line.medians[z]);
 					}
-					
-					//removes duplicate elements and sorts a list
-					/*Set<Float> hs = new HashSet<>();
-					hs.addAll(medianLine);
-					medianLine.clear();
-					medianLine.addAll(hs);
-					*/
-					Collections.sort(medianLine);
-					//puts the median of a current line into a list that contains the medians for all bands
-					medianBands.add(getMedianFromaList(medianLine));
-					//clears the current median line
-					medianLine.clear();
 				}
-					
-					
-					if(y == 0)	Qstep = 1;
-					//Qstep = 1;
-					uq.setQuantizationStep(Qstep);
-					pw.println(String.valueOf(Qstep));
-				
-					//ec.resetNumBitsWritten();
-					//predictor.resetMSE();
-					for (int z = 0; z < geo[CONS.BANDS]; z++) {
-						predictor.resetMSE();
-						for (int x = 0; x < geo[CONS.WIDTH]; x++) {
-							predictedLines[z][0][x] = predictedLines[z][1][x];
-							int value = predictor.compress(linesToEncode, z, y, x, z, 1, uq);
-							predictedLines[z][1][x] = value;
-						}
-						BIAC(M, z, y, predictedLines, numbitsCurrentLine);
-						
-						//System.out.println(z+":"+y+":"+predictor.getMSE(geo[CONS.WIDTH])+":"+((double)(ec.getNumBitsWritten()-previousbits)/(double)(geo[CONS.WIDTH])));
-						
-					}
-					
-				this.targetRate = BIupdateTargetRateValsesia(y, inputT, outputRate, numbitsBefore, numbitsCurrentLine, deviationRate);
-				updateQstepValues = updateQstep(medianBands, outputRate, this.targetRate, 0);
-				Qstep = (int)updateQstepValues[0];
+				float windowRate = Math.max(targetRate - correction, 0.000001f) * window.size();
+				Qstep = (int) updateQstep(medianBands, windowRate, 0, Qstep)[0];
+				double lineRate = getAverageRate(medianBands.subList(0, zSize), Qstep, 0);
 				medianBands.clear();
-				System.out.println("y: "+(y+1)+" Qstep: "+Qstep+" targetRate: "+targetRate);
+				uq.setQuantizationStep(Qstep);
+				pw.println(String.valueOf(Qstep));
 				
+				if(y == 0) ec.init(0);
+				for (int z = 0; z < zSize; z++) {
+					predictor.resetMSE();
+					for (int x = 0; x < xSize; x++) {
+						predictedLines[z][0][x] = predictedLines[z][1][x];
+						predictedLines[z][1][x] = predictor.compress(linesToEncode, z, y, x, z, 1, uq);
+					}
+					BIAC(M, z, y, predictedLines, numbitsCurrentLine);
+				}
 				
+				codedBits += numbitsCurrentLine[y];
+				correction = (correction + (float) (numbitsCurrentLine[y] / (zSize * xSize) - lineRate)) / 2;
+				window.removeFirst();
+				System.out.println("y: "+(y+1)+" Qstep: "+Qstep+" targetRate: "+targetRate);
 			}
-			//System.out.println("predictor.getPAE(): "+predictor.getPAE());
-			//System.out.println("predictor.getMSE(): "+predictor.getMSE(geo[CONS.BANDS]*geo[CONS.WIDTH]*geo[CONS.HEIGHT]));
-			
 			
+			reader.join();
 			pw.flush();
 			pw.close();
 			ec.terminate();
@@ -2600,6 +3216,9 @@ public class Coder {
 			if (verbose || debugMode) {
 				System.out.print("\rCoding image finished");
 			}
+		}catch(InterruptedException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+			
 		}catch(UnsupportedOperationException e) {
 			e.printStackTrace(System.err);
 			
@@ -2609,26 +3228,220 @@ public class Coder {
 		}catch(ClassCastException e) {
 			e.printStackTrace(System.err);
 			
+		}finally {
+			reader.interrupt();
+		}
+	}
+	
+	/**
+	 * Lines of all the bands of a BI image read ahead of the coder, with the medians of their residuals.
+	 */
+	private static class LookAheadLine {
+		
+		/**
+		 * Samples of each band, null when the reader has failed.
+		 */
+		final int[][] lines;
+		
+		/**
+		 * Median of the residuals of each band.
+		 */
+		final float[] medians;
+		
+		LookAheadLine(int[][] lines, float[] medians) {
+			this.lines = lines;
+			this.medians = medians;
+		}
+	}
+	
+	/**
+	 * Reads the lines of a BI image ahead of the coder and estimates the medians of their
+	 * residuals with the lossless prediction of <code>predictorRC</code>. At most
+	 * <code>capacity</code> lines wait to be taken by the coder.
+	 */
+	private class LookAheadReader extends Thread {
+		
+		private final RawImageIterator<int[]> it;
+		private final BlockingQueue<LookAheadLine> queue;
+		private volatile Throwable failure = null;
+		
+		/**
+		 * Constructor of LookAheadReader.
+		 * 
+		 * @param it the iterator of the lines of the image, which is only used by the reader
+		 * @param capacity the number of lines that can wait to be taken
+		 */
+		LookAheadReader(RawImageIterator<int[]> it, int capacity) {
+			super("look-ahead reader");
+			setDaemon(true);
+			this.it = it;
+			this.queue = new ArrayBlockingQueue<LookAheadLine>(capacity);
+		}
+		
+		@Override
+		public void run() {
+			//the coder changes the quantization step of uq, so the estimation has its own lossless quantizer
+			Quantizer lossless = new URQ(1);
+			int L = 17;
+			MedianEstimator medianEstimator = new MedianEstimator(L);
+			int lines[][][] = new int[zSize][2][];
+			try {
+				for (int y = 0; y < ySize; y++) {
+					int[][] codedLines = new int[zSize][];
+					for (int z = 0; z < zSize; z++) {
+						lines[z][0] = lines[z][1];
+						lines[z][1] = it.next();
+						//the coder reconstructs its lines in place, so it gets a copy
+						codedLines[z] = lines[z][1].clone();
+					}
+					float[] medians = new float[zSize];
+					for (int z = 0; z < zSize; z++) {
+						for (int x = 0; x < xSize; x++) {
+							medianEstimator.add(predictorRC.compress(lines, z, y, x, z, 1, lossless));
+							if(x % L == L - 1){
+								medianEstimator.closeSegment();
+							}
+						}
+						medians[z] = medianEstimator.closeLine();
+					}
+					queue.put(new LookAheadLine(codedLines, medians));
+				}
+			}catch(InterruptedException e) {
+				//the coder has stopped
+			}catch(Throwable e) {
+				//any failure, also an Error, is handed to the coder, which would wait forever otherwise
+				failure = e;
+				try {
+					queue.put(new LookAheadLine(null, null));
+				}catch(InterruptedException ie) {
+					//the coder has stopped
+				}
+			}
+		}
+		
+		/**
+		 * Waits for the next line. If the reader has failed, its failure is thrown in the
+		 * thread of the coder.
+		 * 
+		 * @return the next line
+		 * @throws InterruptedException when the coder is interrupted while waiting
+		 */
+		LookAheadLine take() throws InterruptedException {
+			LookAheadLine line = queue.take();
+			if (line.lines == null) {
+				if (failure instanceof Error) {
+					throw (Error) failure;
+				}
+				if (failure instanceof RuntimeException) {
+					throw (RuntimeException) failure;
+				}
+				throw new Error("Unexpected exception ocurred "+failure.getMessage());
+			}
+			return line;
 		}
 	}
 	
 	private void BIAC(int M, int z, int y, int predictedLines[][][], float numbitsCurrentLine[]){
-		long SizeBitstreamBeforeCoding = ec.getNumBitsWritten();
-		for (int bit = 15; bit >= 0; bit--){
+		//without a mask all the bits are accounted as background
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		acFLW.setAccountingBucket(BG_BUCKET);
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
 		for (int x = 0; x < xSize; x ++) {
-				if (x == 0 && y == 0 && z == 0 && bit == 15) {
-					ec.init(z);
-				}
 				boolean realBit = false;
 				int context = 0;
 				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 				//context = cm.getContext(predictedLines[z], 1, x, bit);//get context
 				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-				int prob = cp.getProbability(context);//get probability for the computed context
-				cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-				ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+				acFLW.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 		}}
-		numbitsCurrentLine[y] = numbitsCurrentLine[y] + (float)(ec.getNumBitsWritten() - SizeBitstreamBeforeCoding );
+		numbitsCurrentLine[y] = numbitsCurrentLine[y] + acFLW.getAccountedBits(BG_BUCKET);
+		acFLW.resetAccountedBits();
+	}
+	
+	/**
+	 * Adds the bits accounted by the arithmetic coder for the ROI and the BG to the bits
+	 * of line y and starts a new accounting.
+	 * 
+	 * @param y the line
+	 * @param numbitsCurrentLine the bits of each line
+	 * @param numbitsCurrentLineROI the bits of the ROI of each line
+	 * @param numbitsCurrentLineBG the bits of the BG of each line
+	 */
+	private void accountLineBits(int y, float numbitsCurrentLine[], float numbitsCurrentLineROI[],  float numbitsCurrentLineBG[]){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		float ROIbits = acFLW.getAccountedBits(ROI_BUCKET);
+		float BGbits = acFLW.getAccountedBits(BG_BUCKET);
+		numbitsCurrentLineROI[y] = numbitsCurrentLineROI[y] + ROIbits;
+		numbitsCurrentLineBG[y] = numbitsCurrentLineBG[y] + BGbits;
+		numbitsCurrentLine[y] = numbitsCurrentLine[y] + ROIbits + BGbits;
+		acFLW.resetAccountedBits();
+	}
+	
+	/**
+	 * Codes the quantization steps of the ROI and the BG used in line y, so that the decoder
+	 * reads them from the stream. Each one is coded as the difference with the one of the
+	 * previous line. The first line also initializes the arithmetic coder. The bits are
+	 * attributed to the BG.
+	 * 
+	 * @param y the line
+	 * @param QstepROI the quantization step of the ROI samples
+	 * @param QstepBG the quantization step of the BG samples, 0 when the BG is not coded
+	 */
+	private void codeLineQsteps(int y, int QstepROI, int QstepBG){
+		codeLineQsteps(y, new int[]{QstepROI, QstepBG}, BG_BUCKET, false);
+	}
+	
+	/**
+	 * Codes the quantization steps used in line y as the differences with the ones of the
+	 * previous line. The first line also initializes the arithmetic coder.
+	 * 
+	 * @param y the line
+	 * @param Qsteps the quantization steps, always the same number of them
+	 * @param bucket the accounting bucket the bits are attributed to
+	 * @param codeNumQsteps indicates whether the number of quantization steps is coded before the
+	 * ones of the first line, when the decoder does not know it
+	 */
+	private void codeLineQsteps(int y, int[] Qsteps, int bucket, boolean codeNumQsteps){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		if (y == 0) {
+			ec.init(0);
+			lastQsteps = new int[Qsteps.length];
+		}
+		acFLW.setAccountingBucket(bucket);
+		if (y == 0 && codeNumQsteps) {
+			codeQstepDelta(Qsteps.length - 1);
+		}
+		for (int i = 0; i < Qsteps.length; i++) {
+			codeQstepDelta(Qsteps[i] - lastQsteps[i]);
+			lastQsteps[i] = Qsteps[i];
+		}
+	}
+	
+	/**
+	 * Codes the difference between two quantization steps with an exponential Golomb code,
+	 * so that an unchanged quantization step takes 1 bit.
+	 * 
+	 * @param delta the difference
+	 */
+	private void codeQstepDelta(int delta){
+		//zig-zag mapping of the sign, the 0 is mapped to 1 so that it has a leading 1
+		int value = ((delta << 1) ^ (delta >> 31)) + 1;
+		int numBits = 32 - Integer.numberOfLeadingZeros(value);
+		ec.encodeInteger(0, numBits - 1);
+		ec.encodeInteger(value, numBits);
+	}
+	
+	/**
+	 * Returns the number of bits of the code of the difference between two quantization steps.
+	 * 
+	 * @param delta the difference
+	 * @return the bits written by {@link #codeQstepDelta}
+	 */
+	private static int getQstepDeltaBits(int delta){
+		int value = ((delta << 1) ^ (delta >> 31)) + 1;
+		return 2 * (32 - Integer.numberOfLeadingZeros(value)) - 1;
 	}
 	
 	private float BSQupdateTargetRateValsesia(int z, List<Float> inputRate, List<Float> outputRate, float []updateQstepValues, List<Float> medianBands){
@@ -2864,19 +3677,31 @@ public class Coder {
 
 
 	private float[] updateQstep(List<Float> medianBands, List<Float> outputRate, float targetRate, int BSQ){
+		return updateQstep(medianBands, targetRate, BSQ, uq.getQuantizationStep());
+	}
+	
+	/**
+	 * Searches the qstep whose rate, estimated from the medians with the rate table, is the
+	 * closest to the target rate, starting from a given qstep.
+	 * 
+	 * @param medianBands the medians
+	 * @param targetRate the target rate
+	 * @param BSQ 1 if the medians are of the lines of a band, 0 if they are of the bands of a line
+	 * @param currentQstep the qstep where the search starts
+	 * @return the qstep and its estimated rate
+	 */
+	private float[] updateQstep(List<Float> medianBands, float targetRate, int BSQ, int currentQstep){
 		
 		
 		float [] returnedValues = new float[2];
 		
 		
-		int currentQstep =  uq.getQuantizationStep();
 		int nextQstep = currentQstep;
 		double R = 0;
 		double ROld = 0;
 		for(int index = 0; index < medianBands.size(); index++){
-			//System.out.println(medianBands.get(index)+" "+GetValesesiaRate((double)medianBands.get(index), nextQstep));
 			if(medianBands.get(index) > 0 ) {
-				R = R + GetValesesiaRate((double)medianBands.get(index), nextQstep);				
+				R = R + rateTable.getRate(medianBands.get(index), nextQstep);				
 			}
 		}
 		if(BSQ == 1) R = R / ySize;
@@ -2884,97 +3709,69 @@ public class Coder {
 		if(Double.isNaN(R)) {
 			R = this.T;
 		}
-		//System.out.print("nextQstep: "+nextQstep+" R: "+R+" ROld: "+ROld+" targetRate: "+targetRate+" "+medianBands.size());
-		//for(int i = 0; i < medianBands.size(); i++) System.out.print(" "+medianBands.get(i));
-		//System.out.println();
+		//The rate decreases as the qstep increases, so the qstep where the rate crosses the target
+		//is searched by bisection among the qsteps reached walking in steps of 2 from the current one
 		if(R >= targetRate){
-			while( (R >= targetRate) && (nextQstep < MAXQSTEP)){
-				ROld = R;
-				nextQstep = nextQstep + 2;
-				R = 0;
-				for(int index = 0; index < medianBands.size(); index++){
-					 R = R + GetValesesiaRate((double)medianBands.get(index), nextQstep);
+			//walking up stops at the first qstep with a rate lower than the target or at MAXQSTEP
+			int steps = nextQstep < MAXQSTEP ? (MAXQSTEP - nextQstep + 1) / 2 : 0;
+			if(steps > 0){
+				int low = 1;
+				int high = steps;
+				while(low < high){
+					int mid = (low + high) >>> 1;
+					if(getAverageRate(medianBands, currentQstep + 2 * mid, BSQ) >= targetRate) low = mid + 1;
+					else high = mid;
 				}
-				if(BSQ == 1) R = R / ySize;
-				else R = R / zSize;
-				//System.out.println("nextQstep: "+nextQstep+" R: "+R+" ROld: "+ROld+" targetRate: "+targetRate);
+				ROld = low == 1 ? R : getAverageRate(medianBands, currentQstep + 2 * (low - 1), BSQ);
+				nextQstep = currentQstep + 2 * low;
+				R = getAverageRate(medianBands, nextQstep, BSQ);
 			}
 			if(Math.abs(R - targetRate) > Math.abs(ROld - targetRate)){
 				nextQstep = nextQstep - 2;
 			}
 		}else{
-			while( (R <= targetRate) && (nextQstep > 1)){
-				ROld = R;
-				nextQstep = nextQstep - 2;
-				R = 0;
-				for(int index = 0; index < medianBands.size(); index++){
-					 R = R + GetValesesiaRate((double)medianBands.get(index), nextQstep);
+			//walking down stops at the first qstep with a rate greater than the target or at 1
+			int steps = nextQstep > 1 ? nextQstep / 2 : 0;
+			if(steps > 0){
+				int low = 1;
+				int high = steps;
+				while(low < high){
+					int mid = (low + high) >>> 1;
+					if(getAverageRate(medianBands, currentQstep - 2 * mid, BSQ) <= targetRate) low = mid + 1;
+					else high = mid;
 				}
-				if(BSQ == 1) R = R / ySize;
-				else R = R / zSize;
-				//System.out.println("nextQstep: "+nextQstep+" R: "+R+" ROld: "+ROld+" targetRate: "+targetRate);
+				ROld = low == 1 ? R : getAverageRate(medianBands, currentQstep - 2 * (low - 1), BSQ);
+				nextQstep = currentQstep - 2 * low;
+				R = getAverageRate(medianBands, nextQstep, BSQ);
 			}
 			if(Math.abs(R - targetRate) > Math.abs(ROld - targetRate)){
 				nextQstep = nextQstep + 2;
 			}
 			
 		}
-		//if(nextQstep == 0) nextQstep = 4;
-		//System.out.println("nextQstep: "+nextQstep+" \n");
 		returnedValues[0] = (float)nextQstep;
 		returnedValues[1] = (float)R;
 		return returnedValues;
 	}
 
 	/**
-	 * returns the median value from an Integer List of values
-	 * @param list
-	 * @return the median
+	 * Returns the rate of a qstep averaged over the medians of the bands (BI) or lines (BSQ).
+	 * 
+	 * @param medianBands the medians
+	 * @param qstep the quantization step
+	 * @param BSQ 1 if the medians are of the lines of a band, 0 if they are of the bands of a line
+	 * @return the average rate
 	 */
-	private float getMedianFromaList(List<Float> list){
-		float median = 0;
-		if(list.size() == 0) {
-			return(1);
-		}
-		if(list.size() == 1) {
-			return(1);
-		}
-		if(list.size() % 2 == 1){
-			//odd size
-			//median = (list.get((list.size())/2));
-			median = (list.get((list.size()+1)/2));
-		}else{
-			//even size
-			median = (list.get((int) (list.size()/2)-1) + list.get((list.size()/2))) / 2;
-			//median = (list.get((list.size()/2)) + list.get((list.size()/2)+1)) / 2;
+	private double getAverageRate(List<Float> medianBands, int qstep, int BSQ){
+		double R = 0;
+		for(int index = 0; index < medianBands.size(); index++){
+			R = R + rateTable.getRate(medianBands.get(index), qstep);
 		}
-		//if(median == 0) median = 1;
-		return(median);
+		if(BSQ == 1) return R / ySize;
+		else return R / zSize;
 	}
+
 	
-	/**
-	 *  Computes the rate according to the Valsessia and Magli GRSL paper
-	 * @param m is the median
-	 * @param Q is the qstep 
-	 * @return the rate
-	 */
-	private double GetValesesiaRate(double m, double Q){
-		double rate = 0;
-		double a = Math.pow(Math.E,-((Q/(2*m))));
-		double aa = 1 - a;
-		double b = Math.pow(Math.E,-(Q/m));
-		double bb = 1 - b;
-		double cc = Math.log(aa)/Math.log(2);
-		double aacc = -aa * cc;
-		double d = -(a/Math.log(2));
-		double e = (Math.log(bb/2)) + (Q/(2*m)) - (Q / (m*bb));
-		rate = aacc + d * e;
-		//return (rate / (geo[CONS.WIDTH] * geo[CONS.HEIGHT])) * 1000 / geo[CONS.BANDS]; 
-		return rate;
-		//500;
-		
-		
-	}
 	
 	
 	/**
@@ -2989,25 +3786,50 @@ public class Coder {
 				int lines[][][] = new int[geo[CONS.BANDS]][2][];
 		int predictedLines[][][] = new int[geo[CONS.BANDS]][2][geo[CONS.WIDTH]];
 
+		//With more than one processor the bands of each line are predicted in a wavefront
+		//by the other processors while this thread codes them
+		int processors = Runtime.getRuntime().availableProcessors();
+		BandWavefront wavefront = null;
+		if (processors > 1 && geo[CONS.BANDS] > 1) {
+			wavefront = new BandWavefront(predictor, uq, geo[CONS.BANDS], geo[CONS.WIDTH], processors - 1);
+		}
+
 		if(verbose || debugMode) {
 			System.out.println("Coding BI");
 		}
 		
 		try {
 			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
 			for (int y = 0; y < geo[CONS.HEIGHT]; y++) {
 				prepareLines(y, lines, it);
 				if (verbose && geo[CONS.HEIGHT] % 10 == 0) {
 					System.out.print("\rCoding rows: " + y + " to " + Math.min(y+10, geo[CONS.HEIGHT]));
 				}
 				
+				if (wavefront != null) {
+					wavefront.startLine(lines, predictedLines, y);
+					for (int z = 0; z < geo[CONS.BANDS]; z++) {
+						wavefront.awaitBand(z);
+						if (sp != null) {
+							BIACSymbols(z, y, predictedLines);
+						} else {
+							BIAC(M, z, y, predictedLines);
+						}
+					}
+					wavefront.finishLine();
+				} else {
 				for (int z = 0; z < geo[CONS.BANDS]; z++) {		
 				for (int x = 0; x < geo[CONS.WIDTH]; x++) {
 					predictedLines[z][0][x] = predictedLines[z][1][x];
 					predictedLines[z][1][x] = predictor.compress(lines, z, y, x, z, 1, uq);
 				}
-					BIAC(M, z, y, predictedLines);
+					if (sp != null) {
+						BIACSymbols(z, y, predictedLines);
+					} else {
+						BIAC(M, z, y, predictedLines);
+					}
+				}
 				}
 				
 				
@@ -3031,46 +3853,225 @@ public class Coder {
 		}catch(ClassCastException e) {
 			e.printStackTrace(System.err);
 			
+		}finally {
+			if (wavefront != null) {
+				wavefront.shutdown();
+			}
 		}
 	}
 	
 	
 
+	/**
+	 * Encodes an image in BI order splitting the lines in stripes of
+	 * STRIPE_HEIGHT lines. Each stripe is predicted and coded on its own, as
+	 * if it were an image starting at its first line, so the stripes are coded
+	 * in parallel. The segment index is written before the segments.
+	 *
+	 * @param verbose indicates whether to display information
+	 * @throws IOException if can not write information to the file
+	 */
+	private void codeBIACStripes(boolean verbose) throws IOException {
+		int stripeHeight = parameters.stripeHeight;
+		int numStripes = (ySize + stripeHeight - 1) / stripeHeight;
+		long[] stripeLengths = new long[numStripes];
+		ByteStream[] segments = new ByteStream[numStripes];
+		
+		if(verbose || debugMode) {
+			System.out.println("Coding BI in " + numStripes + " stripes");
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			RawImage image = new RawImage(inputFile, geo, originalPixelOrder, RawImage.READ);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.READ | RawImage.MAPPED, true);
+			
+			//Stripes are read in waves of as many stripes as workers, so only these are kept in memory
+			int wave = pool.getParallelism();
+			List<StripeCoder> tasks = new ArrayList<StripeCoder>(wave);
+			for (int s = 0; s < numStripes; s += wave) {
+				tasks.clear();
+				for (int i = s; i < Math.min(s + wave, numStripes); i++) {
+					int firstLine = i * stripeHeight;
+					int[][][] stripeLines = new int[Math.min(stripeHeight, ySize - firstLine)][zSize][];
+					for (int y = 0; y < stripeLines.length; y++) {
+						for (int z = 0; z < zSize; z++) {
+							stripeLines[y][z] = it.next();
+						}
+					}
+					StripeCoder task = new StripeCoder(stripeLines);
+					pool.execute(task);
+					tasks.add(task);
+				}
+				for (int i = 0; i < tasks.size(); i++) {
+					segments[s + i] = tasks.get(i).join();
+					stripeLengths[s + i] = segments[s + i].getLength();
+				}
+				if (verbose) {
+					System.out.print("\rCoding rows: " + Math.min((s + wave) * stripeHeight, ySize));
+				}
+			}
+			image.close(it);
+			
+			CoderHeader ch = new CoderHeader(fbos, debugMode, parameters);
+			ch.segmentIndex(stripeHeight, stripeLengths);
+			ch = null;
+			for (int s = 0; s < numStripes; s++) {
+				fileStream.write(segments[s].getByteStream(), 0, (int) segments[s].getLength());
+			}
+			if (verbose || debugMode) {
+				System.out.print("\rCoding image finished");
+			}
+		}catch(UnsupportedOperationException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(IndexOutOfBoundsException e) {
+			e.printStackTrace(System.err);
+			
+		}catch(ClassCastException e) {
+			e.printStackTrace(System.err);
+			
+		}finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Codes one stripe of a BI image with its own predictor, context model,
+	 * context probabilities and arithmetic coder. The result is the segment of the stripe.
+	 */
+	private class StripeCoder extends RecursiveTask<ByteStream> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Lines of the stripe, indexed by line and band, line 0 being the first line of the stripe.
+		 */
+		private final int[][][] stripeLines;
+		
+		/**
+		 * Constructor of StripeCoder.
+		 * 
+		 * @param stripeLines the lines of all bands of the stripe
+		 */
+		StripeCoder(int[][][] stripeLines) {
+			this.stripeLines = stripeLines;
+		}
+		
+		@Override
+		protected ByteStream compute() {
+			Predictor stripePredictor;
+			try {
+				stripePredictor = new Predictor(parameters, debugMode);
+			} catch (ParameterException e) {
+				throw new Error("Unexpected exception ocurred "+e.getMessage());
+			}
+			ContextModelling stripeCM = new ContextModelling(contextModel);
+			int stripeContexts = stripeCM.getNumberOfContexts(MAXBITS);
+			ContextProbability stripeCP = new ContextProbability(probabilityModel, stripeContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
+			ArithmeticCoderFLW stripeEC = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, stripeContexts);
+			stripeEC.init();
+			stripeEC.restartEncoding();
+			
+			int lines[][][] = new int[zSize][2][];
+			int predictedLines[][][] = new int[zSize][2][xSize];
+			int[] emptyLine = new int[xSize];
+			
+			for (int y = 0; y < stripeLines.length; y++) {
+				for (int z = 0; z < zSize; z++) {
+					lines[z][0] = y == 0 ? emptyLine : stripeLines[y - 1][z];
+					lines[z][1] = stripeLines[y][z];
+				}
+				for (int z = 0; z < zSize; z++) {
+					int[] recycled = predictedLines[z][0];
+					predictedLines[z][0] = predictedLines[z][1];
+					predictedLines[z][1] = recycled;
+					for (int x = 0; x < xSize; x++) {
+						predictedLines[z][1][x] = stripePredictor.compress(lines, z, y, x, z, 1, uq);
+					}
+					
+					int bitplanes = codeBitplanes(stripeEC, predictedLines[z][1], BI_BITPLANES);
+					for (int bit = bitplanes - 1; bit >= 0; bit--){
+					for (int x = 0; x < xSize; x ++) {
+						boolean realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
+						int context = stripeCM.getContext(predictedLines, z, 1, x, bit);//get context
+						int prob = stripeCP.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+						stripeEC.encodeBitProb(realBit, prob);//encode the bit using the specific probability
+					}}
+				}
+			}
+			stripeEC.terminate();
+			return stripeEC.getByteStream();
+		}
+	}
+	
 	private void BIAC(int M, int z, int y, int predictedLines[][][]){
-		for (int bit = 15; bit >= 0; bit--){
+		if (y == 0 && z == 0) {
+			ec.init(z);
+		}
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
 		for (int x = 0; x < xSize; x ++) {
-				if (x == 0 && y == 0 && z == 0 && bit == 15) {
-					ec.init(z);
-				}
 				boolean realBit = false;
 				int context = 0;
 				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 				//context = cm.getContext(predictedLines[z], 1, x, bit);//get context
 				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-				int prob = cp.getProbability(context);//get probability for the computed context
-				cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 				ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 		}}
 	}
 	
+	/**
+	 * Codes a line of a band with one symbol of {@link SymbolProbability} per sample, instead of
+	 * one bit per bitplane. The low bits given by the context, and the tail of the escaped
+	 * magnitudes, are coded after the symbol.
+	 *
+	 * @param z the band
+	 * @param y the line
+	 * @param predictedLines mapped residuals of the previous and the current line of each band
+	 */
+	private void BIACSymbols(int z, int y, int predictedLines[][][]){
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		if (y == 0 && z == 0) {
+			acFLW.init(z);
+		}
+		int[] cumulativeFrequencies = sp.getCumulativeFrequencies();
+		int[] line = predictedLines[z][1];
+		int[] previousLine = predictedLines[z][0];
+		for (int x = 0; x < xSize; x++) {
+			int context = SymbolProbability.getContext(line, previousLine, x);
+			int shift = SymbolProbability.getShift(context);
+			int magnitude = line[x] >>> shift;
+			int symbol = magnitude < SymbolProbability.ESCAPE ? magnitude : SymbolProbability.ESCAPE;
+			acFLW.encodeSymbol(symbol, cumulativeFrequencies, sp.getOffset(context), SymbolProbability.NUM_SYMBOLS);
+			sp.update(context, symbol);
+			if (symbol == SymbolProbability.ESCAPE) {
+				acFLW.encodeExpGolomb(magnitude - SymbolProbability.ESCAPE);
+			}
+			if (shift > 0) {
+				acFLW.encodeUniform(line[x] & (BIT_MASKS2[shift] - 1), shift);
+			}
+		}
+	}
+	
 	private void BIAC3(int z, int M, int i, int y, int predictedLines[][][]){
-		for (int bit = 15; bit >= 0; bit--){
+		if (y == 0 && z == 0) {
+			ec.init(z);
+		}
+		int bitplanes = codeBitplanes(ec, predictedLines[z][1], BI_BITPLANES);
+		for (int bit = bitplanes - 1; bit >= 0; bit--){
 		for (int x = 0; x < xSize; x ++) {
-				if (x == 0 && y == 0 && z == 0 && bit == 15) {
-					ec.init(z);
-				}
 				boolean realBit = false;
 				int context = 0;
 				realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 				context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-				int prob = cp.getProbability(context);//get probability for the computed context
-				cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+				int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
 				ec.encodeBitProb(realBit, prob);//encode the bit using the specific probability
 		}}	
 	}
 	
 	private double BIBinaryContextualEntropy(int y, int predictedLines[][][]){
-		double binaryEntropy = 0;
+		rateEstimator.reset();
 		for (int bit = 15; bit >= 0; bit--){
 			for (int z = 0; z < geo[CONS.BANDS]; z++) {
 			for (int x = 0; x < xSize; x ++) {
@@ -3078,28 +4079,16 @@ public class Coder {
 			int context = 0;
 			realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 			context = cm.getContext(predictedLines[z], 1, x, bit);//get context
-			int prob = cp.getProbability(context);//get probability for the computed context
-			cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-			double probq = prob / (double) (1 << numBitsPrecision);
-			
-			if(realBit){
-				probq = 1 - probq;
-			}
-			
-			assert(probq != 0);
-			assert(probq != 1);
-			
-			double symbolCost = - (Math.log10(probq) / Math.log10(2));
-			assert(symbolCost > 0);
-			binaryEntropy += symbolCost; //https://en.wikipedia.org/wiki/Arithmetic_coding
+			int prob = cp.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+			rateEstimator.addBit(realBit, prob);
 			
 		}}}	
 		
-		return(binaryEntropy);
+		return(rateEstimator.getBits());
 	}
 	
 	private double BIBinaryContextualEntropy2(int y, int predictedLines[][][]){
-		double binaryEntropy = 0;
+		rateEstimator.reset();
 		for (int bit = 15; bit >= 0; bit--){
 			for (int z = 0; z < geo[CONS.BANDS]; z++) {
 			for (int x = 0; x < geo[CONS.WIDTH]; x ++) {
@@ -3108,28 +4097,17 @@ public class Coder {
 			realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 			//context = cmRC.getContext(predictedLines[z], 1, x, bit);//get context
 			context = cmRC.getContext(predictedLines, z, 1, x, bit);//get context
-			int prob = cpRC.getProbability(context);//get probability for the computed context
-			cpRC.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-			double probq = prob / (double) (1 << numBitsPrecision);
-			if(realBit){
-				probq = 1 - probq;
-			}
-			
-			assert(probq != 0);
-			assert(probq != 1);
-			
-			double symbolCost = - (Math.log10(probq) / Math.log10(2));
-			assert(symbolCost > 0);
-			binaryEntropy += symbolCost; //https://en.wikipedia.org/wiki/Arithmetic_coding
+			int prob = cpRC.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+			rateEstimator.addBit(realBit, prob);
 			
 		}}}	
 		
-		return(binaryEntropy);
+		return(rateEstimator.getBits());
 	}
 	
 	
 	private double BIBinaryContextualEntropy3(int z, int y, int predictedLines[][][]){
-		double binaryEntropy = 0;
+		rateEstimator.reset();
 		for (int bit = 15; bit >= 0; bit--){
 			for (int x = 0; x < geo[CONS.WIDTH]; x ++) {
 			boolean realBit = false;
@@ -3137,129 +4115,15 @@ public class Coder {
 			realBit = (predictedLines[z][1][x] & BIT_MASKS2[bit]) != 0;
 			//context = cmRC.getContext(predictedLines[z], 1, x, bit);//get context
 			context = cm.getContext(predictedLines, z, 1, x, bit);//get context
-			int prob = cpRC.getProbability(context);//get probability for the computed context
-			cpRC.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
-			double probq = prob / (double) (1 << numBitsPrecision);
-			if(realBit){
-				probq = 1 - probq;
-			}
-			
-			assert(probq != 0);
-			assert(probq != 1);
-			
-			double symbolCost = - (Math.log10(probq) / Math.log10(2));
-			assert(symbolCost > 0);
-			binaryEntropy += symbolCost; //https://en.wikipedia.org/wiki/Arithmetic_coding
+			int prob = cpRC.codeAndUpdate(realBit, context);//get probability for the computed context and update the symbols coded
+			rateEstimator.addBit(realBit, prob);
 			
 		}}	
 		
-		return(binaryEntropy);
-	}
-	
-	
-	private void getSerializedPredictorCPLineObject() throws IOException, ClassNotFoundException{
-
-		//predictor
-		FileInputStream filePredictorSerIn = null;//new FileInputStream("/tmp/predictor.ser");
-		ObjectInputStream predictorSerIn = null;//new ObjectInputStream(filePredictorSerIn);
-		filePredictorSerIn = new FileInputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"predictorline.ser");
-		//filePredictorSerIn = new FileInputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"predictorline.ser");
-		predictorSerIn = new ObjectInputStream(filePredictorSerIn);
-		predictorRC = (Predictor) predictorSerIn.readObject();
-	    predictorSerIn.close();
-	    filePredictorSerIn.close();
-	    
-	    //cp
-	    FileInputStream fileCPSerIn = null;//new FileInputStream("/tmp/predictor.ser");
-	    ObjectInputStream cpSerIn = null;//new ObjectInputStream(filePredictorSerIn);
-	    fileCPSerIn = new FileInputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"cpline.ser");
-	    //fileCPSerIn = new FileInputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"cpline.ser");
-	    cpSerIn = new ObjectInputStream(fileCPSerIn);
-	    cpRC = (ContextProbability) cpSerIn.readObject();
-	    cpSerIn.close();
-	    fileCPSerIn.close();
-	    
-	 
-	}
-	
-	
-
-	private void putSerializedPredictorCPLineObject() throws IOException{
-		//predictor
-		FileOutputStream filePredictorSerOut = null;//new FileOutputStream("/tmp/predictor.ser");
-		ObjectOutputStream predictorSerOut = null;//new ObjectOutputStream(filePredictorSerOut);
-		filePredictorSerOut = new FileOutputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"predictorline.ser");
-		//filePredictorSerOut = new FileOutputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"predictorline.ser");
-		predictorSerOut = new ObjectOutputStream(filePredictorSerOut);
-		predictorSerOut.writeObject(predictorRC);
-		predictorSerOut.close();
-		filePredictorSerOut.close();
-		
-		//cp
-		FileOutputStream fileCPSerOut = null;//new FileOutputStream("/tmp/predictor.ser");
-		ObjectOutputStream cpSerOut = null;//new ObjectOutputStream(filePredictorSerOut);
-		fileCPSerOut = new FileOutputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"cpline.ser");
-		//fileCPSerOut = new FileOutputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"cpline.ser");
-		cpSerOut = new ObjectOutputStream(fileCPSerOut);
-		cpSerOut.writeObject(cpRC);
-		cpSerOut.close();
-		fileCPSerOut.close();
-		
-		
-
-	}
-	
-	private void getSerializedPredictorCPBufferObject() throws IOException, ClassNotFoundException{
-		
-		//predictor
-		FileInputStream filePredictorSerIn = null;//new FileInputStream("/tmp/predictor.ser");
-		ObjectInputStream predictorSerIn = null;//new ObjectInputStream(filePredictorSerIn);
-		filePredictorSerIn = new FileInputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"predictorbuffer.ser");
-		//filePredictorSerIn = new FileInputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"predictorbuffer.ser");
-		predictorSerIn = new ObjectInputStream(filePredictorSerIn);
-		predictorRC = (Predictor) predictorSerIn.readObject();
-	    predictorSerIn.close();
-	    filePredictorSerIn.close();
-	    
-	    //cp
-	    FileInputStream fileCPSerIn = null;//new FileInputStream("/tmp/predictor.ser");
-	    ObjectInputStream cpSerIn = null;//new ObjectInputStream(filePredictorSerIn);
-	    fileCPSerIn = new FileInputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"cpbuffer.ser");
-	    //fileCPSerIn = new FileInputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"cpbuffer.ser");
-	    cpSerIn = new ObjectInputStream(fileCPSerIn);
-	    cpRC = (ContextProbability) cpSerIn.readObject();
-	    cpSerIn.close();
-	    fileCPSerIn.close();
-	    
-	 
-	}
-
-	private void putSerializedPredictorCPBufferObject() throws IOException{
-		//predictor
-		FileOutputStream filePredictorSerOut = null;//new FileOutputStream("/tmp/predictor.ser");
-		ObjectOutputStream predictorSerOut = null;//new ObjectOutputStream(filePredictorSerOut);
-		filePredictorSerOut = new FileOutputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"predictorbuffer.ser");
-		//filePredictorSerOut = new FileOutputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"predictorbuffer.ser");
-		predictorSerOut = new ObjectOutputStream(filePredictorSerOut);
-		predictorSerOut.writeObject(predictorRC);
-		predictorSerOut.close();
-		filePredictorSerOut.close();
-		
-		//cp
-		FileOutputStream fileCPSerOut = null;//new FileOutputStream("/tmp/predictor.ser");
-		ObjectOutputStream cpSerOut = null;//new ObjectOutputStream(filePredictorSerOut);
-		fileCPSerOut = new FileOutputStream("/tmp/"+System.getProperty("user.dir").hashCode()+"cpbuffer.ser");
-		//fileCPSerOut = new FileOutputStream("/tmp/rdisk/"+System.getProperty("user.dir").hashCode()+"cpbuffer.ser");
-		cpSerOut = new ObjectOutputStream(fileCPSerOut);
-		cpSerOut.writeObject(cpRC);
-		cpSerOut.close();
-		fileCPSerOut.close();
-		
-
+		return(rateEstimator.getBits());
 	}
 	
 	
-	
 	/**
 	 * 
 	 * @param z the band to be loaded
@@ -3332,7 +4196,7 @@ public class Coder {
 	private void resetPredictorAndACFLW() throws ParameterException{
 		numBitsPrecision = 15;
 		coderWordLength = 48;
-		predictor = new Predictor(this.parameters);
+		predictor = new Predictor(this.parameters, debugMode);
 		predictor.resetMSE();
 		cm = new ContextModelling(contextModel);
 		numOfContexts = cm.getNumberOfContexts(MAXBITS);
@@ -3448,11 +4312,16 @@ public class Coder {
 	private void prepareLines(int y, int[][][] bands, RawImageIterator<int[]> it) {
 		if(y != 0) {
 			for(int i=0;i<geo[CONS.BANDS];i++) {
+				int[] recycled = bands[i][0];
 				bands[i][0] = bands[i][1];
+				bands[i][1] = recycled;
 			}
 		}
 		for(int i=0;i<geo[CONS.BANDS];i++) {
-			bands[i][1] = it.next();
+			if(bands[i][1] == null) {
+				bands[i][1] = new int[geo[CONS.WIDTH]];
+			}
+			it.next(bands[i][1]);
 			
 		}
 		
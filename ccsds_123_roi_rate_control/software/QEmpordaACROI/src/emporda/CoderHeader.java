@@ -76,6 +76,8 @@ public class CoderHeader {
 	 */
 	public void imageHeader() throws IOException {
 		int sampleType = (geo[CONS.TYPE] == 3) ? 1 : 0;
+		int bandGroupFlag = (parameters.bandGroupSize != 0) ? 1 : 0;
+		int stripeFlag = (parameters.stripeHeight != 0) ? 1 : 0;
 		int bitsWritten = 0;
 
 		if (debugMode) {
@@ -105,12 +107,14 @@ public class CoderHeader {
 					"(3 bit)");
 			System.out.println("\t entropy coder type: " + parameters.entropyCoderType + 
 					"(2 bits)");
-			System.out.println("\t free space (previously predictor metadata flag): " + 0 + 
+			System.out.println("\t band group flag (previously predictor metadata flag): " + bandGroupFlag + 
 					"(1 bit)");
-			System.out.println("\t free space (previously entropy metadata flag): " + 0 + 
+			System.out.println("\t stripe flag (previously entropy metadata flag): " + stripeFlag + 
+					"(1 bit)");
+			System.out.println("\t bitplane skipping flag: " + parameters.bitplaneSkipping + 
 					"(1 bit)");
 			System.out.println("\t free space: " + 0 + 
-					"(8 bits)");
+					"(7 bits)");
 
 		}
 		bos.write(CONS.BYTE, 0); /* User defined data */
@@ -134,9 +138,11 @@ public class CoderHeader {
 		bos.write(1, 0);
 		bos.write(3, parameters.outputWordSize % (1 << 3));
 		bos.write(2, parameters.entropyCoderType);
-		bos.write(2, 0);
-		bos.write(CONS.BYTE, 0);
-		bitsWritten += 1 + 3 + 2 + 2 + CONS.BYTE;
+		bos.write(1, bandGroupFlag);
+		bos.write(1, stripeFlag);
+		bos.write(1, parameters.bitplaneSkipping);
+		bos.write(7, 0);
+		bitsWritten += 1 + 3 + 2 + 2 + 1 + 7;
 
 		if (debugMode) {
 			System.out.println("\twritten " + (bitsWritten / 8) + " bytes "
@@ -235,6 +241,44 @@ public class CoderHeader {
 
 	}
 
+	/**
+	 * Writes the segment index, which gives the size of the band groups (BSQ) or
+	 * stripes (BI) and the length of the segment of each of them. It is written
+	 * just before the segments, once all of them have been coded.
+	 * 
+	 * @param segmentSize
+	 *            the number of bands of a band group or lines of a stripe
+	 * @param segmentLengths
+	 *            the length in bytes of each segment
+	 * @throws IOException
+	 *             if can not write information to the file
+	 */
+	public void segmentIndex(int segmentSize, long[] segmentLengths) throws IOException {
+		int bitsWritten = 0;
+
+		if (debugMode) {
+			System.out.println("Segment index");
+			System.out.println("\t segment size: " + segmentSize + 
+					"(16 bits)");
+			for (int g = 0; g < segmentLengths.length; g++) {
+				System.out.println("\t segment " + g + " length: " + segmentLengths[g] + 
+						"(32 bits)");
+			}
+		}
+		bos.write(CONS.SHORT, segmentSize);
+		bitsWritten += CONS.SHORT;
+		for (int g = 0; g < segmentLengths.length; g++) {
+			bos.write(32, (int) segmentLengths[g]);
+			bitsWritten += 32;
+		}
+		if (debugMode) {
+			System.out.println("\twritten " + (bitsWritten / 8) + " bytes "
+					+ " and " + (bitsWritten % 8) + " bits");
+		}
+		this.bitsWritten += bitsWritten;
+		bos.flush();
+	}
+
 	/**
 	 * Writes the weight initialization table to the header of the 
 	 * compressed file
@@ -28,7 +28,6 @@
 
 package emporda;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
@@ -47,10 +46,14 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 import GiciContextModel.ContextModelling;
 import GiciContextModel.ContextProbability;
+import GiciContextModel.SymbolProbability;
 import GiciEntropyCoder.EntropyBlockCoder.EntropyBlockDecoder;
 import GiciEntropyCoder.EntropyIntegerCoder.EntropyIntegerDecoder;
 import GiciEntropyCoder.Interface.EntropyCoder;
@@ -64,8 +67,6 @@ import GiciEntropyCoder.ArithmeticCoder.ProbabilityTable;
 import GiciEntropyCoder.ArithmeticCoder.SimpleProbabilityTables;
 import GiciEntropyCoder.ArithmeticCoder.StaticProbabilityTable;
 import GiciException.ParameterException;
-import GiciException.WarningException;
-import GiciFile.RawImage.LoadFile;
 import GiciFile.RawImage.OrderConverter;
 import GiciFile.RawImage.RawImage;
 import GiciFile.RawImage.RawImageIterator;
@@ -90,6 +91,12 @@ public class Decoder {
 	private EntropyCoder ec;
 	private ContextModelling cm;
 	private ContextProbability cp;
+	
+	/**
+	 * Frequencies of the symbols of the mapped residuals, only for the symbol arithmetic coder
+	 * in fixed quantization step mode.
+	 */
+	private SymbolProbability sp = null;
 	private InterleavedEntropyDecoder iec;
 	private DumbMQDecoder dmq;
 	private Parameters parameters = null;
@@ -119,6 +126,14 @@ public class Decoder {
 	private int samplePrediction = 0;
     private SamplePrediction samplePredictor = null;
     private int MAXBITS = 32;
+	/**
+	 * Number of bitplanes of the mapped residuals coded in BI order.
+	 */
+	private static final int BI_BITPLANES = 16;
+	/**
+	 * Quantization steps read from the stream for the last line.
+	 */
+	private int[] lastQsteps;
     private int sampleType = -1;
     private int RCStrategy = 0;
 	
@@ -151,7 +166,7 @@ public class Decoder {
 		
 		file = new File(inputFile);
 		fileStream = new FileInputStream(file);
-		bis = new BitInputStream( new BufferedInputStream( fileStream ) );
+		bis = new BitInputStream(fileStream);
 		this.sampleType = sampleType;
 		this.sampleOrder = sampleOrder;
 		this.debugMode = debugMode;
@@ -236,6 +251,9 @@ public class Decoder {
 	 */
 	private void startDecoder(boolean verbose) throws Exception {
 		
+		if (entropyCoderType == CONS.SYMBOL_ARITHMETIC_ENCODER_FLW && quantizationMode == 0) {
+			sp = new SymbolProbability(15, WINDOW_PROB);
+		}
 		switch(entropyCoderType)
 		{
 			case CONS.SAMPLE_ADAPTIVE_DECODER:
@@ -274,11 +292,15 @@ public class Decoder {
 					
 				break;
 			
+			case CONS.SYMBOL_ARITHMETIC_ENCODER_FLW: //The symbols are decoded with the same arithmetic decoder
 			case CONS.ARITHMETIC_ENCODER_FLW:
 				cm = new ContextModelling(contextModel);
 				int numOfContexts = cm.getNumberOfContexts(MAXBITS);
 				numBitsPrecision = 15;
 				int coderWordLength = 48;
+				if (parameters.bandGroupSize != 0 || parameters.stripeHeight != 0) {
+					break; //Band groups and stripes use their own probabilities and decoder
+				}
 				cp = new ContextProbability(probabilityModel, numOfContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
 				ec = new ArithmeticCoderFLW(coderWordLength, numBitsPrecision, numOfContexts);
 				
@@ -310,7 +332,7 @@ public class Decoder {
 				break;
 				
 		}
-		this.predictor = new Predictor(parameters);
+		this.predictor = new Predictor(parameters, debugMode);
 	}
 
 	
@@ -324,7 +346,7 @@ public class Decoder {
 		
 		int readBytes = bis.available();
 		int[] imageGeometry = parameters.getImageGeometry();
-		float[][][] maskSamples = null;
+		ROIMask mask = null;
 		
 		try {
 			startDecoder(verbose);
@@ -344,13 +366,19 @@ public class Decoder {
 		}
 		file = null;
 		*/
-		if (parameters.sampleEncodingOrder == CONS.BAND_SEQUENTIAL) {
+		if (parameters.sampleEncodingOrder == CONS.BAND_SEQUENTIAL && parameters.bandGroupSize != 0) {
+			decodeBSQBandGroups(verbose); //Fixed quantization step mode, independent band groups
+		} else if (parameters.sampleEncodingOrder == CONS.BAND_SEQUENTIAL) {
 			if (quantizationMode == 0) decodeBSQ(verbose); //Fixed quantization step mode
 			if (quantizationMode == 1) decodeBSQ(verbose); //Fixed quantization step mode
 		} else {		
 			if (quantizationMode == 0){
-				if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
+				if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW && parameters.stripeHeight != 0){
+					decodeBIACStripes(verbose); //Fixed quantization step mode, independent stripes
+				}else if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
 					decodeBIAC(verbose); //Fixed rate mode
+				}else if(entropyCoderType == CONS.SYMBOL_ARITHMETIC_ENCODER_FLW){
+					decodeBIACSymbols(verbose); //Fixed quantization step mode, one symbol per sample (the header only keeps 2 bits of the coder type)
 				}else{
 					decodeBI(verbose); //Fixed quantization step mode
 				}
@@ -364,21 +392,32 @@ public class Decoder {
 					}
 					break;
 				case 1:
-					maskSamples = getMask();
+					mask = getMask();
 					if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
-						decodeBIACRateControlROI(verbose, maskSamples); //Fixed rate mode
+						decodeBIACRateControlROI(verbose, mask); //Fixed rate mode
 					}
 					break;
 				case 2:
-					maskSamples = getMask();
+					mask = getMask();
 					if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
-						decodeBIACRateControlROI2(verbose, maskSamples); //Fixed rate mode
+						decodeBIACRateControlROI2(verbose, mask); //Fixed rate mode
 					}
 					break;
 				case 3:
-					maskSamples = getMask();
+					mask = getMask();
+					if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
+						decodeBIACRateControlROI3(verbose, mask); //Fixed rate mode
+					}
+				break;
+				case 4:
+					mask = new ROIMask(maskFile, parameters.getImageGeometry()[CONS.HEIGHT], parameters.getImageGeometry()[CONS.WIDTH], true);
 					if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
-						decodeBIACRateControlROI3(verbose, maskSamples); //Fixed rate mode
+						decodeBIACRateControlPriorities(verbose, mask); //Fixed rate mode
+					}
+				break;
+				case 5:
+					if(parameters.entropyCoderType == CONS.ARITHMETIC_ENCODER_FLW){
+						decodeBIACRateControlRD(verbose); //Fixed rate mode
 					}
 				break;
 
@@ -408,7 +447,7 @@ public class Decoder {
 	}
 	
 
-	private void decodeBIACRateControlROI(boolean verbose, float[][][] maskSamples) throws Exception {
+	private void decodeBIACRateControlROI(boolean verbose, ROIMask mask) throws Exception {
 		// TODO Auto-generated method stub
 		System.out.println("decodeBIFLWRateControl ROI");
 		int[] imageGeometry = parameters.getImageGeometry();
@@ -420,24 +459,8 @@ public class Decoder {
 		int inputQstep = uq.getQuantizationStep();
 		
 		
-		File fileROI = new File("qstepsROI.txt");
-		FileReader frROI = new FileReader(fileROI);
-		BufferedReader brROI = new BufferedReader(frROI);
-		File fileBG = new File("qstepsBG.txt");
-		FileReader frBG = new FileReader(fileBG);
-		BufferedReader brBG = new BufferedReader(frBG);
-		File fileA = new File("auxiliary.txt");
-		FileReader frA = new FileReader(fileA);
-		BufferedReader brA = new BufferedReader(frA);
 		boolean EBits = true;
 		
-		if(Integer.valueOf(brA.readLine()) == 1) {
-			EBits = true;
-		}else {
-			EBits = false;
-		}
-		
-		
 		long qsteps = ySize;//brROI.lines().count();
 		
 		
@@ -450,7 +473,8 @@ public class Decoder {
 
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			int[] bitplanes = new int[zSize];
 			int auxValue = (zSize % M == 0) ?
 					zSize / M :
 					zSize / M + 1;
@@ -459,26 +483,30 @@ public class Decoder {
 				if (verbose && ySize % 10 == 0) {
 					System.out.print("\rDecoding rows: " + y + " to " + Math.min(y+10, ySize));
 				}
-				QstepROI = Integer.valueOf(brROI.readLine());
-				QstepBG = Integer.valueOf(brBG.readLine());
+				//the quantization steps of the line are read from the stream
+				decodeLineQsteps(y);
+				QstepROI = lastQsteps[0];
+				QstepBG = lastQsteps[1];
 				
 				//max error restriction over the ROI area
 				if(QstepROI != 0 && QstepROI < inputQstep) QstepROI = inputQstep;
 				if(QstepBG != 0 && QstepBG < QstepROI) QstepROI = QstepBG;
 				
-				
+				int[] segments = mask.getSegments(y);
 				for (int i = 0; i < auxValue; i++) {
+					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
+						bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+					}
 					for (int bit = 15; bit >= 0; bit--){
 					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
-						
-					for (int x = 0; x < xSize; x++) {
+					for (int s = 0; s < segments.length - 1; s++) {
+					boolean coded = y == 0 || ROIMask.isROISegment(s) || EBits == true;
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
 						if(bit == 15) imageBands[z][1][x] = 0;
+						if (bit >= bitplanes[z]) continue;
 						
-						if (x == 0 && y == 0 && z == 0 && bit == 15) {
-							ec.restartDecoding();
-						}
 						
-						if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
+						if(coded) {
 						
 							boolean realBit = false;
 							int context = cm.getContext(imageBands, z, 1, x, bit);//get context
@@ -492,20 +520,19 @@ public class Decoder {
 						
 						
 						
-					}}}
+					}}}}
 				
 				for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
-				for (int x = 0; x < xSize; x++) {
-					if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
+				for (int s = 0; s < segments.length - 1; s++) {
+				boolean roi = ROIMask.isROISegment(s);
+				boolean coded = y == 0 || roi || EBits == true;
+				if(coded) {
+					uq.setQuantizationStep(roi ? QstepROI : QstepBG);
+				}
+				for (int x = segments[s]; x < segments[s + 1]; x++) {
+					if(coded) {
 						imageBands[z][0][x] = imageBands[z][1][x];
 						predictedImageBands[z][1][x] = imageBands[z][1][x];
-						if(maskSamples[0][y][x] == 255) {
-							
-							uq.setQuantizationStep(QstepROI);
-							
-						}else{
-							uq.setQuantizationStep(QstepBG);
-						}
 						predictedImageBands[z][1][x] = predictor.decompress(predictedImageBands, z, y, x, z, 1, uq);
 					}else {
 						imageBands[z][1][x] = 0;
@@ -513,11 +540,14 @@ public class Decoder {
 						predictedImageBands[z][1][x] = imageBands[z][1][x];
 					}
 					
-				}}
+				}}}
 					
 				}
 				prepareLines(predictedImageBands, it);
-				
+				//after the first line the stream signals if the BG is coded
+				if (y == 0) {
+					EBits = ec.decodeBit();
+				}
 			}
 			if (verbose) {
 				System.out.print("\rDecoding image finished");
@@ -532,7 +562,7 @@ public class Decoder {
 		}
 	}
 
-	private void decodeBIACRateControlROI3(boolean verbose, float[][][] maskSamples) throws Exception {
+	private void decodeBIACRateControlROI3(boolean verbose, ROIMask mask) throws Exception {
 		// TODO Auto-generated method stub
 				System.out.println("decodeBIFLWRateControl ROI");
 				int[] imageGeometry = parameters.getImageGeometry();
@@ -545,9 +575,6 @@ public class Decoder {
 				
 				
 				
-				BufferedReader brROI = new BufferedReader(new FileReader(new File("qstepsROI.txt")));
-				BufferedReader brBG = new BufferedReader(new FileReader(new File("qstepsBG.txt")));
-				
 				long qsteps = ySize;//brROI.lines().count();
 				
 				
@@ -560,7 +587,8 @@ public class Decoder {
 
 				try {
 					RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-					RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+					RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+					int[] bitplanes = new int[zSize];
 					int auxValue = (zSize % M == 0) ?
 							zSize / M :
 							zSize / M + 1;
@@ -569,8 +597,10 @@ public class Decoder {
 						if (verbose && ySize % 10 == 0) {
 							System.out.print("\rDecoding rows: " + y + " to " + Math.min(y+10, ySize));
 						}
-						QstepROI = Integer.valueOf(brROI.readLine());
-						QstepBG = Integer.valueOf(brBG.readLine());
+						//the quantization steps of the line are read from the stream
+						decodeLineQsteps(y);
+						QstepROI = lastQsteps[0];
+						QstepBG = lastQsteps[1];
 						
 						//max error restriction over the ROI area
 						if(QstepROI != 0 && QstepROI < inputQstep) QstepROI = inputQstep;
@@ -578,15 +608,16 @@ public class Decoder {
 						
 						
 						for (int i = 0; i < auxValue; i++) {
+							for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
+								bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+							}
 							for (int bit = 15; bit >= 0; bit--){
 							for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
 								
 							for (int x = 0; x < xSize; x++) {
 								if(bit == 15) imageBands[z][1][x] = 0;
+								if (bit >= bitplanes[z]) continue;
 								
-								if (x == 0 && y == 0 && z == 0 && bit == 15) {
-									ec.restartDecoding();
-								}
 								boolean realBit = false;
 								int context = cm.getContext(imageBands, z, 1, x, bit);//get context
 								int prob = cp.getProbability(context);//get probability for the computed context
@@ -595,19 +626,21 @@ public class Decoder {
 								imageBands[z][1][x] += realBit == true ?  BIT_MASKS2[bit] : 0;
 							}}}
 						
+						int[] segments = mask.getSegments(y);
 						for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
-						for (int x = 0; x < xSize; x++) {
+						for (int s = 0; s < segments.length - 1; s++) {
+							if(ROIMask.isROISegment(s)) {
+								uq.setQuantizationStep(inputQstep);
+							}else{
+								uq.setQuantizationStep(QstepBG);
+							}
+						for (int x = segments[s]; x < segments[s + 1]; x++) {
 								imageBands[z][0][x] = imageBands[z][1][x];
 								predictedImageBands[z][1][x] = imageBands[z][1][x];
-								if(maskSamples[0][y][x] == 255) {
-									uq.setQuantizationStep(inputQstep);
-								}else{
-									uq.setQuantizationStep(QstepBG);
-								}
 								predictedImageBands[z][1][x] = predictor.decompress(predictedImageBands, z, y, x, z, 1, uq);
 							
 							
-						}}
+						}}}
 							
 						}
 						
@@ -628,7 +661,85 @@ public class Decoder {
 				}
 	}
 	
-	private void decodeBIACRateControlROI2(boolean verbose, float[][][] maskSamples) throws Exception {
+	/**
+	 * Decodes an image coded with a priority mask. The quantization step of each class of the
+	 * mask is read from the stream for each line.
+	 *
+	 * @param verbose indicates if the progress must be shown
+	 * @param mask the priority mask
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	private void decodeBIACRateControlPriorities(boolean verbose, ROIMask mask) throws Exception {
+		int[] imageGeometry = parameters.getImageGeometry();
+		int zSize = imageGeometry[CONS.BANDS];
+		int ySize = imageGeometry[CONS.HEIGHT];
+		int xSize = imageGeometry[CONS.WIDTH];
+		int numClasses = mask.getNumClasses();
+		
+		int M = parameters.subframeInterleavingDepth;
+		int imageBands[][][] = new int[zSize][2][xSize];
+		int predictedImageBands[][][] = new int[zSize][2][xSize];
+
+		try {
+			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			int[] bitplanes = new int[zSize];
+			int auxValue = (zSize % M == 0) ?
+					zSize / M :
+					zSize / M + 1;
+			
+			for (int y = 0; y < ySize; y++) {
+				if (verbose && ySize % 10 == 0) {
+					System.out.print("\rDecoding rows: " + y + " to " + Math.min(y+10, ySize));
+				}
+				//the quantization steps of the classes in the line are read from the stream
+				decodeLineQsteps(y, numClasses);
+				int[] segments = mask.getSegments(y);
+				byte[] classes = mask.getSegmentClasses(y);
+				
+				for (int i = 0; i < auxValue; i++) {
+					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
+						bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+					}
+					for (int bit = 15; bit >= 0; bit--){
+					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
+					for (int x = 0; x < xSize; x++) {
+						if(bit == 15) imageBands[z][1][x] = 0;
+						if (bit >= bitplanes[z]) continue;
+						
+						int context = cm.getContext(imageBands, z, 1, x, bit);//get context
+						int prob = cp.getProbability(context);//get probability for the computed context
+						boolean realBit = ec.decodeBitProb(prob);//decode the bit using the specific probability
+						cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability	
+						imageBands[z][1][x] += realBit == true ?  BIT_MASKS2[bit] : 0;
+					}}}
+					
+					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
+					for (int s = 0; s < classes.length; s++) {
+						uq.setQuantizationStep(lastQsteps[classes[s] & 0xff]);
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
+						imageBands[z][0][x] = imageBands[z][1][x];
+						predictedImageBands[z][1][x] = imageBands[z][1][x];
+						predictedImageBands[z][1][x] = predictor.decompress(predictedImageBands, z, y, x, z, 1, uq);
+					}}}
+				}
+				
+				prepareLines(predictedImageBands, it);
+			}
+			if (verbose) {
+				System.out.print("\rDecoding image finished");
+			}
+			image.close(it);
+		}catch(UnsupportedOperationException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(IndexOutOfBoundsException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(ClassCastException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}
+	}
+	
+	private void decodeBIACRateControlROI2(boolean verbose, ROIMask mask) throws Exception {
 		// TODO Auto-generated method stub
 		int[] imageGeometry = parameters.getImageGeometry();
 		int zSize = imageGeometry[CONS.BANDS];
@@ -641,18 +752,8 @@ public class Decoder {
 		
 		
 		
-		BufferedReader brROI = new BufferedReader(new FileReader(new File("qstepsROI.txt")));
-		BufferedReader brBG = new BufferedReader(new FileReader(new File("qstepsBG.txt")));
-		BufferedReader brA = new BufferedReader(new FileReader(new File("auxiliary.txt")));
 		boolean EBits = true;
 		
-		if(Integer.valueOf(brA.readLine()) == 1) {
-			EBits = true;
-		}else {
-			EBits = false;
-		}
-		
-		
 		long qsteps = ySize;//brROI.lines().count();
 		
 		
@@ -665,7 +766,8 @@ public class Decoder {
 
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			int[] bitplanes = new int[zSize];
 			int auxValue = (zSize % M == 0) ?
 					zSize / M :
 					zSize / M + 1;
@@ -674,30 +776,36 @@ public class Decoder {
 				if (verbose && ySize % 10 == 0) {
 					System.out.print("\rDecoding rows: " + y + " to " + Math.min(y+10, ySize));
 				}
-				QstepROI = Integer.valueOf(brROI.readLine());
-				QstepBG = Integer.valueOf(brBG.readLine());
+				//the quantization steps of the line and if the BG is coded are read from the stream
+				decodeLineQsteps(y);
+				QstepROI = lastQsteps[0];
+				QstepBG = lastQsteps[1];
+				if (y == 0) {
+					EBits = ec.decodeBit();
+				}
 				
 				//max error restriction over the ROI area
 				if(QstepROI != 0 && QstepROI < inputQstep) QstepROI = inputQstep;
 				if(QstepBG != 0 && QstepBG < QstepROI) QstepROI = QstepBG;
 				
-				
+				int[] segments = mask.getSegments(y);
+				if(yROIFirst == -1 && mask.getROISamplesLine(y) > 0) yROIFirst = y;
 				for (int i = 0; i < auxValue; i++) {
+					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
+						bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+					}
 					for (int bit = 15; bit >= 0; bit--){
 					for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
 					predictor.canBeInizialized = true;	
-					for (int x = 0; x < xSize; x++) {
-						if(maskSamples[0][y][x] == 255) {
-							if(yROIFirst == -1) yROIFirst = y;
-						}
+					for (int s = 0; s < segments.length - 1; s++) {
+					//if(y == 0 || (y > 0 && roi) || EBits == true) {
+					boolean coded = ROIMask.isROISegment(s) || EBits == true;
+					for (int x = segments[s]; x < segments[s + 1]; x++) {
 						if(bit == 15) imageBands[z][1][x] = 0;
+						if (bit >= bitplanes[z]) continue;
 						
-						if (x == 0 && y == 0 && z == 0 && bit == 15) {
-							ec.restartDecoding();
-						}
 						
-						//if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
-						if(maskSamples[0][y][x] == 255 || EBits == true) {
+						if(coded) {
 						
 							boolean realBit = false;
 							int context = cm.getContext(imageBands, z, 1, x, bit);//get context
@@ -711,19 +819,20 @@ public class Decoder {
 						
 						
 						
-					}}}
+					}}}}
 				
 				for (int z = i * M; z < Math.min((i+1) * M, zSize); z++) {
-				for (int x = 0; x < xSize; x++) {
-					//if(y == 0 || (y > 0 && maskSamples[0][y][x] == 255 ) || EBits == true) {
-					if(maskSamples[0][y][x] == 255 || EBits == true) {
+				for (int s = 0; s < segments.length - 1; s++) {
+				boolean roi = ROIMask.isROISegment(s);
+				//if(y == 0 || (y > 0 && roi) || EBits == true) {
+				boolean coded = roi || EBits == true;
+				if(coded) {
+					uq.setQuantizationStep(roi ? QstepROI : QstepBG);
+				}
+				for (int x = segments[s]; x < segments[s + 1]; x++) {
+					if(coded) {
 						imageBands[z][0][x] = imageBands[z][1][x];
 						predictedImageBands[z][1][x] = imageBands[z][1][x];
-						if(maskSamples[0][y][x] == 255) {
-							uq.setQuantizationStep(QstepROI);
-						}else{
-							uq.setQuantizationStep(QstepBG);
-						}
 						predictedImageBands[z][1][x] = predictor.decompressROI(predictedImageBands, z, y, x, z, 1, uq, yROIFirst);
 					}else {
 						imageBands[z][1][x] = 0;
@@ -731,7 +840,7 @@ public class Decoder {
 						predictedImageBands[z][1][x] = imageBands[z][1][x];
 					}
 					
-				}}
+				}}}
 					
 				}
 				prepareLines(predictedImageBands, it);
@@ -741,9 +850,6 @@ public class Decoder {
 				System.out.print("\rDecoding image finished");
 			}
 			image.close(it);
-			brROI.close();
-			brBG.close();
-			brA.close();
 		}catch(UnsupportedOperationException e) {
 			throw new Error("Unexpected exception ocurred "+e.getMessage());
 		}catch(IndexOutOfBoundsException e) {
@@ -775,7 +881,7 @@ public class Decoder {
 		
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
 			int auxValue = (bands % M == 0) ?
 					bands / M :
 					bands / M + 1;
@@ -823,12 +929,96 @@ public class Decoder {
 	}
 
 
+	/**
+	 * Decodes the number of bitplanes of a line or band of samples when BITPLANE_SKIPPING is
+	 * enabled. The bitplanes above it are 0 and are not coded.
+	 *
+	 * @param coder the arithmetic decoder of the line or band
+	 * @param maxBitplanes number of bitplanes coded without bitplane skipping
+	 * @return the number of bitplanes to decode
+	 */
+	private int decodeBitplanes(EntropyCoder coder, int maxBitplanes){
+		if (parameters.bitplaneSkipping == 0) {
+			return maxBitplanes;
+		}
+		return coder.decodeInteger(32 - Integer.numberOfLeadingZeros(maxBitplanes));
+	}
+
+	/**
+	 * Decodes the quantization steps of the ROI and the BG used in line y and leaves them in
+	 * <code>lastQsteps</code>. The first line also restarts the arithmetic decoder.
+	 *
+	 * @param y the line
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	private void decodeLineQsteps(int y) throws Exception{
+		decodeLineQsteps(y, 2);
+	}
+
+	/**
+	 * Decodes the quantization steps used in line y and leaves them in <code>lastQsteps</code>.
+	 * The first line also restarts the arithmetic decoder.
+	 *
+	 * @param y the line
+	 * @param numQsteps the number of quantization steps of each line
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	private void decodeLineQsteps(int y, int numQsteps) throws Exception{
+		if (y == 0) {
+			ec.restartDecoding();
+			lastQsteps = new int[numQsteps];
+		}
+		for (int i = 0; i < numQsteps; i++) {
+			lastQsteps[i] += decodeQstepDelta();
+		}
+	}
+
+	/**
+	 * Decodes the number of quantization steps of each line, coded before the quantization steps of
+	 * the first line, and the quantization steps of the first line, which are left in
+	 * <code>lastQsteps</code>. It also restarts the arithmetic decoder.
+	 *
+	 * @param maxQsteps the largest valid number of quantization steps
+	 * @return the number of quantization steps of each line
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	private int decodeFirstLineQsteps(int maxQsteps) throws Exception{
+		ec.restartDecoding();
+		int numQsteps = decodeQstepDelta() + 1;
+		if (numQsteps < 1 || numQsteps > maxQsteps) {
+			throw new Exception("Invalid number of quantization steps in the stream");
+		}
+		lastQsteps = new int[numQsteps];
+		for (int i = 0; i < numQsteps; i++) {
+			lastQsteps[i] += decodeQstepDelta();
+		}
+		return(numQsteps);
+	}
+
+	/**
+	 * Decodes the difference between two quantization steps coded with an exponential Golomb code.
+	 *
+	 * @return the difference
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	private int decodeQstepDelta() throws Exception{
+		int numBits = 1;
+		while (!ec.decodeBit()) {
+			if (++numBits > 32) {
+				throw new Exception("Invalid quantization step in the stream");
+			}
+		}
+		int value = ((1 << (numBits - 1)) | ec.decodeInteger(numBits - 1)) - 1;
+		return (value >>> 1) ^ -(value & 1);
+	}
+
 	private void entropyDecoder(int imageBands[][][] ,int Previous1[][], int Previous2[][], int z) throws Exception{
 		int height = imageBands[parameters.numberPredictionBands].length;
 		int width = imageBands[parameters.numberPredictionBands][0].length;
 		int bands = parameters.getImageGeometry()[CONS.BANDS];
 		cp.reset();
-			for (int bit = MAXBITS-1; bit >= 0; bit--){
+			int bitplanes = decodeBitplanes(ec, MAXBITS);
+			for (int bit = bitplanes - 1; bit >= 0; bit--){
 			for (int y = 0; y < height; y ++) {
 			for (int x = 0; x < width; x ++) {
 				boolean realBit = false;
@@ -906,7 +1096,7 @@ public class Decoder {
 		
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
 			
 			for (int bit = MAXBITS-1; bit >= 0; bit--){
 				for (int z = 0; z < components; z ++) {
@@ -1032,7 +1222,7 @@ public class Decoder {
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
 			
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
 			
 			switch(samplePrediction){
 			case 2:
@@ -1179,6 +1369,165 @@ public class Decoder {
 	
 
 	
+	/**
+	 * Decodes an image in BSQ order coded in independent band groups. The
+	 * groups are decoded in parallel and written in order.
+	 * @throws Exception 
+	 *
+	 * @param verbose indicates whether to display information
+	 */
+	private void decodeBSQBandGroups(boolean verbose) throws Exception {
+		int[] imageGeometry = parameters.getImageGeometry();
+		int bands = imageGeometry[CONS.BANDS];
+		int groupSize = parameters.bandGroupSize;
+		long[] bandGroupLengths = parameters.getSegmentLengths();
+		int numGroups = bandGroupLengths.length;
+		//The sampleType is forced to be of the commandline not the stored in the headers. This must be modfied for a final product.
+		parameters.getImageGeometry()[CONS.TYPE] = sampleType;
+		
+		//segments follow the 19 bytes of the headers and the band group index
+		long[] bandGroupOffsets = new long[numGroups];
+		long offset = 19 + (CONS.SHORT + 32 * numGroups) / 8;
+		for (int g = 0; g < numGroups; g++) {
+			bandGroupOffsets[g] = offset;
+			offset += bandGroupLengths[g];
+		}
+		
+		FileInputStream segmentsStream = new FileInputStream(file);
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
+			
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			
+			//Groups are decoded in waves of as many groups as workers, so only these are kept in memory
+			int wave = pool.getParallelism();
+			List<BandGroupDecoder> tasks = new ArrayList<BandGroupDecoder>(wave);
+			for (int g = 0; g < numGroups; g += wave) {
+				tasks.clear();
+				for (int i = g; i < Math.min(g + wave, numGroups); i++) {
+					ByteStream segment = new ByteStream(segmentsStream.getChannel());
+					segment.putFileSegment(bandGroupOffsets[i], bandGroupLengths[i]);
+					BandGroupDecoder task = new BandGroupDecoder(segment, Math.min(groupSize, bands - i * groupSize));
+					pool.execute(task);
+					tasks.add(task);
+				}
+				for (int i = 0; i < tasks.size(); i++) {
+					int[][][] groupBands = tasks.get(i).join();
+					for (int z = 0; z < groupBands.length; z++) {
+						writeBand(groupBands[z], it);
+					}
+				}
+				if (verbose) {
+					System.out.print("\rDecoding band: " + Math.min((g + wave) * groupSize, bands));
+				}
+			}
+			
+			image.close(it);
+			if (verbose) {
+				System.out.print("\rDecoding image finished");
+			}
+		}catch(UnsupportedOperationException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(IndexOutOfBoundsException e) {
+			e.printStackTrace();
+		}catch(ClassCastException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}finally {
+			pool.shutdown();
+			segmentsStream.close();
+		}
+	}
+	
+	/**
+	 * Decodes one band group of a BSQ image with its own predictor, context model,
+	 * context probabilities and arithmetic decoder. The result is the bands of the group.
+	 */
+	private class BandGroupDecoder extends RecursiveTask<int[][][]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Segment of the group in the compressed file.
+		 */
+		private final ByteStream segment;
+		
+		/**
+		 * Number of bands of the group.
+		 */
+		private final int numBands;
+		
+		/**
+		 * Constructor of BandGroupDecoder.
+		 * 
+		 * @param segment the segment of the group
+		 * @param numBands the number of bands of the group
+		 */
+		BandGroupDecoder(ByteStream segment, int numBands) {
+			this.segment = segment;
+			this.numBands = numBands;
+		}
+		
+		@Override
+		protected int[][][] compute() {
+			int height = parameters.getImageGeometry()[CONS.HEIGHT];
+			int width = parameters.getImageGeometry()[CONS.WIDTH];
+			int groupBands[][][] = new int[numBands][height][width];
+			int residuals[][] = new int[height][width];
+			int Previous1[][] = new int[height][width];
+			int Previous2[][] = new int[height][width];
+			
+			try {
+				Predictor groupPredictor = new Predictor(parameters, debugMode);
+				ContextModelling groupCM = new ContextModelling(contextModel);
+				int groupContexts = groupCM.getNumberOfContexts(MAXBITS);
+				ContextProbability groupCP = new ContextProbability(probabilityModel, groupContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
+				ArithmeticCoderFLW groupEC = new ArithmeticCoderFLW(48, numBitsPrecision, groupContexts);
+				groupEC.changeStream(segment);
+				groupEC.restartDecoding();
+				groupEC.reset();
+				
+				for (int z = 0; z < numBands; z ++) {
+					groupCP.reset();
+					for (int y = 0; y < height; y ++) {
+						Arrays.fill(residuals[y], 0);
+					}
+					int bitplanes = decodeBitplanes(groupEC, MAXBITS);
+					for (int bit = bitplanes - 1; bit >= 0; bit--){
+					for (int y = 0; y < height; y ++) {
+					for (int x = 0; x < width; x ++) {
+						int context = groupCM.getContext(residuals, Previous1, Previous2, z, y, x, bit);//get context
+						int prob = groupCP.getProbability(context);//get probability for the computed context
+						boolean realBit = groupEC.decodeBitProb(prob);//decode the bit using the specific probability
+						groupCP.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability
+						residuals[y][x] += realBit == true ?  BIT_MASKS2[bit] : 0;
+					}}}
+					
+					for (int y = 0; y < height; y ++) {
+					for (int x = 0; x < width; x ++) {
+						groupBands[z][y][x] = residuals[y][x];
+						if (samplePrediction == 1) {
+							groupBands[z][y][x] = groupPredictor.decompress(groupBands, z, y, x, z, y, uq);
+						}
+					}}
+					
+					//When 3D contexts are used we need to copy the predicted into temporal structures
+					if(contextModel == 13){
+						int[][] tmp = Previous2;
+						Previous2 = Previous1;
+						Previous1 = tmp;
+						for (int y = 0; y < height; y ++) {
+							System.arraycopy(residuals[y], 0, Previous1[y], 0, width);
+						}
+					}
+				}
+			} catch (Exception e) {
+				throw new Error("Unexpected exception ocurred "+e.getMessage());
+			}
+			return groupBands;
+		}
+	}
+	
 	/**
 	 * Write the next band of the image.
 	 * @param it the BSQ iterator over the image
@@ -1236,7 +1585,7 @@ public class Decoder {
 		
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
 			int auxValue = (bands % M == 0) ?
 					bands / M :
 					bands / M + 1;
@@ -1300,7 +1649,7 @@ public class Decoder {
 
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
 			int auxValue = (bands % M == 0) ?
 					bands / M :
 					bands / M + 1;
@@ -1358,7 +1707,8 @@ public class Decoder {
 
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			int[] bitplanes = new int[bands];
 			int auxValue = (bands % M == 0) ?
 					bands / M :
 					bands / M + 1;
@@ -1369,14 +1719,18 @@ public class Decoder {
 				}
 				
 				
+				for (int z = 0; z < bands; z++) {
+					if (y == 0 && z == 0) {
+						ec.restartDecoding();
+					}
+					bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+				}
 				for (int bit = 15; bit >= 0; bit--){
 				for (int z = 0; z < bands; z++) {
 				for (int x = 0; x < width; x++) {
 				
-					if (x == 0 && y == 0 && z == 0 && bit == 15) {
-						ec.restartDecoding();
-					}
 					if(bit == 15) imageBands[z][1][x] = 0;
+					if (bit >= bitplanes[z]) continue;
 					
 					
 					boolean realBit = false;
@@ -1413,6 +1767,225 @@ public class Decoder {
 		}
 	}
 	
+	/**
+	 * Decodes an image in BI order coded with one symbol of {@link SymbolProbability} per sample.
+	 * @throws Exception 
+	 *
+	 * @param verbose indicates whether to display information
+	 */
+	private void decodeBIACSymbols(boolean verbose) throws Exception {
+		int[] imageGeometry = parameters.getImageGeometry();
+		int bands = imageGeometry[CONS.BANDS];
+		int height = imageGeometry[CONS.HEIGHT];
+		int width = imageGeometry[CONS.WIDTH];
+		int imageBands[][][] = new int[bands][2][width];
+		int predictedImageBands[][][] = new int[bands][2][width];
+		ArithmeticCoderFLW acFLW = (ArithmeticCoderFLW) ec;
+		int[] cumulativeFrequencies = sp.getCumulativeFrequencies();
+
+		try {
+			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			
+			for (int y = 0; y < height; y++) {
+				if (verbose && height % 10 == 0) {
+					System.out.print("\rDecoding rows: " + y + " to " + Math.min(y+10, height));
+				}
+				
+				for (int z = 0; z < bands; z++) {
+					if (y == 0 && z == 0) {
+						acFLW.restartDecoding();
+					}
+					int[] line = imageBands[z][1];
+					int[] previousLine = imageBands[z][0];
+					for (int x = 0; x < width; x++) {
+						int context = SymbolProbability.getContext(line, previousLine, x);
+						int shift = SymbolProbability.getShift(context);
+						int magnitude = acFLW.decodeSymbol(cumulativeFrequencies, sp.getOffset(context), SymbolProbability.NUM_SYMBOLS);
+						sp.update(context, magnitude);
+						if (magnitude == SymbolProbability.ESCAPE) {
+							magnitude += acFLW.decodeExpGolomb();
+						}
+						line[x] = shift > 0 ? (magnitude << shift) | acFLW.decodeUniform(shift) : magnitude;
+					}
+				}
+				
+				for (int z = 0; z < bands; z++) {
+				for (int x = 0; x < width; x++) {
+					imageBands[z][0][x] = imageBands[z][1][x];
+					predictedImageBands[z][1][x] = imageBands[z][1][x];
+					predictedImageBands[z][1][x] = predictor.decompress(predictedImageBands, z, y, x, z, 1, uq);
+				}}
+				
+				prepareLines(predictedImageBands, it);
+				
+			}
+			if (verbose) {
+				System.out.print("\rDecoding image finished");
+			}
+			image.close(it);
+		}catch(UnsupportedOperationException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(IndexOutOfBoundsException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(ClassCastException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Decodes an image in BI order coded in independent stripes. The stripes
+	 * are decoded in parallel and written in order.
+	 * @throws Exception 
+	 *
+	 * @param verbose indicates whether to display information
+	 */
+	private void decodeBIACStripes(boolean verbose) throws Exception {
+		int[] imageGeometry = parameters.getImageGeometry();
+		int bands = imageGeometry[CONS.BANDS];
+		int height = imageGeometry[CONS.HEIGHT];
+		int stripeHeight = parameters.stripeHeight;
+		long[] stripeLengths = parameters.getSegmentLengths();
+		int numStripes = stripeLengths.length;
+		
+		//segments follow the 19 bytes of the headers and the segment index
+		long[] stripeOffsets = new long[numStripes];
+		long offset = 19 + (CONS.SHORT + 32 * numStripes) / 8;
+		for (int s = 0; s < numStripes; s++) {
+			stripeOffsets[s] = offset;
+			offset += stripeLengths[s];
+		}
+		
+		FileInputStream segmentsStream = new FileInputStream(file);
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			
+			//Stripes are decoded in waves of as many stripes as workers, so only these are kept in memory
+			int wave = pool.getParallelism();
+			List<StripeDecoder> tasks = new ArrayList<StripeDecoder>(wave);
+			for (int s = 0; s < numStripes; s += wave) {
+				tasks.clear();
+				for (int i = s; i < Math.min(s + wave, numStripes); i++) {
+					ByteStream segment = new ByteStream(segmentsStream.getChannel());
+					segment.putFileSegment(stripeOffsets[i], stripeLengths[i]);
+					StripeDecoder task = new StripeDecoder(segment, Math.min(stripeHeight, height - i * stripeHeight));
+					pool.execute(task);
+					tasks.add(task);
+				}
+				for (int i = 0; i < tasks.size(); i++) {
+					int[][][] stripeLines = tasks.get(i).join();
+					for (int y = 0; y < stripeLines.length; y++) {
+						for (int z = 0; z < bands; z++) {
+							it.next();
+							it.set(stripeLines[y][z]);
+						}
+					}
+				}
+				if (verbose) {
+					System.out.print("\rDecoding rows: " + Math.min((s + wave) * stripeHeight, height));
+				}
+			}
+			if (verbose) {
+				System.out.print("\rDecoding image finished");
+			}
+			image.close(it);
+		}catch(UnsupportedOperationException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(IndexOutOfBoundsException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(ClassCastException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}finally {
+			pool.shutdown();
+			segmentsStream.close();
+		}
+	}
+	
+	/**
+	 * Decodes one stripe of a BI image with its own predictor, context model,
+	 * context probabilities and arithmetic decoder. The result is the lines of the
+	 * stripe, indexed by line and band.
+	 */
+	private class StripeDecoder extends RecursiveTask<int[][][]> {
+		
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * Segment of the stripe in the compressed file.
+		 */
+		private final ByteStream segment;
+		
+		/**
+		 * Number of lines of the stripe.
+		 */
+		private final int numLines;
+		
+		/**
+		 * Constructor of StripeDecoder.
+		 * 
+		 * @param segment the segment of the stripe
+		 * @param numLines the number of lines of the stripe
+		 */
+		StripeDecoder(ByteStream segment, int numLines) {
+			this.segment = segment;
+			this.numLines = numLines;
+		}
+		
+		@Override
+		protected int[][][] compute() {
+			int bands = parameters.getImageGeometry()[CONS.BANDS];
+			int width = parameters.getImageGeometry()[CONS.WIDTH];
+			int stripeLines[][][] = new int[numLines][bands][width];
+			int lines[][][] = new int[bands][2][];
+			int predictedLines[][][] = new int[bands][2][width];
+			int[] emptyLine = new int[width];
+			
+			try {
+				Predictor stripePredictor = new Predictor(parameters, debugMode);
+				ContextModelling stripeCM = new ContextModelling(contextModel);
+				int stripeContexts = stripeCM.getNumberOfContexts(MAXBITS);
+				ContextProbability stripeCP = new ContextProbability(probabilityModel, stripeContexts, numBitsPrecision, quantizerProbabilityLUT, parameters.entropyCoderType, WINDOW_PROB, UPDATE_PROB0);
+				ArithmeticCoderFLW stripeEC = new ArithmeticCoderFLW(48, numBitsPrecision, stripeContexts);
+				stripeEC.changeStream(segment);
+				stripeEC.restartDecoding();
+				stripeEC.reset();
+				
+				for (int y = 0; y < numLines; y++) {
+					for (int z = 0; z < bands; z++) {
+						lines[z][0] = y == 0 ? emptyLine : stripeLines[y - 1][z];
+						lines[z][1] = stripeLines[y][z];
+					}
+					for (int z = 0; z < bands; z++) {
+						int[] recycled = predictedLines[z][0];
+						predictedLines[z][0] = predictedLines[z][1];
+						predictedLines[z][1] = recycled;
+						Arrays.fill(predictedLines[z][1], 0);
+						
+						int bitplanes = decodeBitplanes(stripeEC, BI_BITPLANES);
+						for (int bit = bitplanes - 1; bit >= 0; bit--){
+						for (int x = 0; x < width; x++) {
+							int context = stripeCM.getContext(predictedLines, z, 1, x, bit);//get context
+							int prob = stripeCP.getProbability(context);//get probability for the computed context
+							boolean realBit = stripeEC.decodeBitProb(prob);//decode the bit using the specific probability
+							stripeCP.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability	
+							predictedLines[z][1][x] += realBit == true ?  BIT_MASKS2[bit] : 0;
+						}}
+						
+						for (int x = 0; x < width; x++) {
+							lines[z][1][x] = predictedLines[z][1][x];
+							lines[z][1][x] = stripePredictor.decompress(lines, z, y, x, z, 1, uq);
+						}
+					}
+				}
+			} catch (Exception e) {
+				throw new Error("Unexpected exception ocurred "+e.getMessage());
+			}
+			return stripeLines;
+		}
+	}
+	
 	/**
 	 * Decodes an image in BI order
 	 * @throws Exception 
@@ -1448,7 +2021,8 @@ public class Decoder {
 
 		try {
 			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
-			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE, true);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			int[] bitplanes = new int[bands];
 			int auxValue = (bands % M == 0) ?
 					bands / M :
 					bands / M + 1;
@@ -1464,6 +2038,12 @@ public class Decoder {
 				
 				
 				for (int i = 0; i < auxValue; i++) {
+					for (int z = i * M; z < Math.min((i+1) * M, bands); z++) {
+						if (y == 0 && z == 0) {
+							ec.restartDecoding();
+						}
+						bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+					}
 					for (int bit = 15; bit >= 0; bit--){
 					for (int z = i * M; z < Math.min((i+1) * M, bands); z++) {
 						if(qsteps != height && bit == 15){
@@ -1472,10 +2052,8 @@ public class Decoder {
 						}
 					for (int x = 0; x < width; x++) {
 					
-						if (x == 0 && y == 0 && z == 0 && bit == 15) {
-							ec.restartDecoding();
-						}
 						if(bit == 15) imageBands[z][1][x] = 0;
+						if (bit >= bitplanes[z]) continue;
 						
 						
 						boolean realBit = false;
@@ -1510,6 +2088,83 @@ public class Decoder {
 		}
 	}
 	
+	/**
+	 * Decodes an image in BI order coded with the rate-distortion rate control, reading the
+	 * number of groups of bands and the qsteps of the groups of each line from the stream.
+	 *
+	 * @param verbose indicates whether to display information
+	 * @throws Exception when some problem manipulating the stream occurs
+	 */
+	private void decodeBIACRateControlRD(boolean verbose) throws Exception {
+		int[] imageGeometry = parameters.getImageGeometry();
+		int bands = imageGeometry[CONS.BANDS];
+		int height = imageGeometry[CONS.HEIGHT];
+		int width = imageGeometry[CONS.WIDTH];
+		
+		int M = parameters.subframeInterleavingDepth;
+		int imageBands[][][] = new int[bands][2][width];
+		int predictedImageBands[][][] = new int[bands][2][width];
+		int groups = 0;
+		int[] bandGroups = null;
+
+		try {
+			RawImage image = new RawImage(outputFile, parameters.getImageGeometry(), savedPixelOrder, RawImage.WRITE);
+			RawImageIterator<int[]> it = (RawImageIterator<int[]>) image.getIterator(new int[0], pixelOrderTransformation, RawImage.WRITE | RawImage.MAPPED, true);
+			int[] bitplanes = new int[bands];
+			int auxValue = (bands % M == 0) ?
+					bands / M :
+					bands / M + 1;
+			
+			for (int y = 0; y < height; y++) {
+				if (verbose && height % 10 == 0) {
+					System.out.print("\rDecoding rows: " + y + " to " + Math.min(y+10, height));
+				}
+				if (y == 0) {
+					//the number of groups of bands is coded before the qsteps of the first line
+					groups = decodeFirstLineQsteps(bands);
+					bandGroups = Coder.getBandGroups(bands, groups);
+				} else {
+					decodeLineQsteps(y, groups);
+				}
+				
+				for (int i = 0; i < auxValue; i++) {
+					for (int z = i * M; z < Math.min((i+1) * M, bands); z++) {
+						bitplanes[z] = decodeBitplanes(ec, BI_BITPLANES);
+					}
+					for (int bit = 15; bit >= 0; bit--){
+					for (int z = i * M; z < Math.min((i+1) * M, bands); z++) {
+					for (int x = 0; x < width; x++) {
+						if(bit == 15) imageBands[z][1][x] = 0;
+						if (bit >= bitplanes[z]) continue;
+						int context = cm.getContext(imageBands, z, 1, x, bit);//get context
+						int prob = cp.getProbability(context);//get probability for the computed context
+						boolean realBit = ec.decodeBitProb(prob);//decode the bit using the specific probability
+						cp.updateSymbols(realBit, context);//updates the symbols decoded to properly compute the probability	
+						imageBands[z][1][x] += realBit == true ?  BIT_MASKS2[bit] : 0;
+					}}}
+				for (int z = i * M; z < Math.min((i+1) * M, bands); z++) {
+				uq.setQuantizationStep(lastQsteps[bandGroups[z]]);
+				for (int x = 0; x < width; x++) {
+					imageBands[z][0][x] = imageBands[z][1][x];
+					predictedImageBands[z][1][x] = imageBands[z][1][x];
+					predictedImageBands[z][1][x] = predictor.decompress(predictedImageBands, z, y, x, z, 1, uq);
+				}}
+				}
+				prepareLines(predictedImageBands, it);
+			}
+			if (verbose) {
+				System.out.print("\rDecoding image finished");
+			}
+			image.close(it);
+		}catch(UnsupportedOperationException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(IndexOutOfBoundsException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}catch(ClassCastException e) {
+			throw new Error("Unexpected exception ocurred "+e.getMessage());
+		}
+	}
+	
 	
 	
 	/**
@@ -1546,19 +2201,8 @@ public class Decoder {
 		}	
 	}
 	
-	private float[][][] getMask() {
-		float[][][] maskSamples = null;
-		if(maskFile != null){
-			LoadFile mask = null;
-			try {
-				LoadFile.isRaw(maskFile);
-				mask = new LoadFile(maskFile, 1, parameters.getImageGeometry()[CONS.HEIGHT], parameters.getImageGeometry()[CONS.WIDTH], 1, 0, false);
-				maskSamples = mask.getImage();
-			} catch (WarningException e) {
-				e.printStackTrace();
-			}
-		}
-		return maskSamples;
+	private ROIMask getMask() throws IOException {
+		return new ROIMask(maskFile, parameters.getImageGeometry()[CONS.HEIGHT], parameters.getImageGeometry()[CONS.WIDTH]);
 	}
 	
 }
@@ -48,6 +48,8 @@ public class DecoderHeader {
 	private boolean debugMode = false;
 	private Parameters params = null;
 	private int bitsRead = 0;
+	private int bandGroupFlag = 0;
+	private int stripeFlag = 0;
 
 	/**
 	 * Constructor of DecoderHeader. It receives the BitIntputStream, that
@@ -72,6 +74,15 @@ public class DecoderHeader {
 		imageHeader();
 		predictorMetadata();
 		entropyCoderMetadata();
+		params.bandGroupSize = 0;
+		params.stripeHeight = 0;
+		params.setSegmentLengths(null);
+		if (bandGroupFlag == 1) {
+			params.bandGroupSize = segmentIndex(params.getImageGeometry()[CONS.BANDS]);
+		}
+		if (stripeFlag == 1) {
+			params.stripeHeight = segmentIndex(params.getImageGeometry()[CONS.HEIGHT]);
+		}
 	}
 	/**
 	 * Reads the header relative to image information.
@@ -124,12 +135,13 @@ public class DecoderHeader {
 		params.outputWordSize = bis.read(3);
 		params.outputWordSize = (params.outputWordSize == 0) ? (1 << 3) : params.outputWordSize;        
 		params.entropyCoderType = bis.read(2);
-		bis.read(1);  // this reads the deprecated predictor metadata flag
-		bis.read(1);  // this reads the deprecated entropy coder metadata flag 
+		bandGroupFlag = bis.read(1);  // band group flag, previously the predictor metadata flag
+		stripeFlag = bis.read(1);  // stripe flag, previously the entropy coder metadata flag
 		bitsRead += 1 + 3 + 2 + 1 + 1;
+		params.bitplaneSkipping = bis.read(1);
 		/*Reserved*/
-		bis.read(CONS.BYTE);
-		bitsRead += CONS.BYTE;
+		bis.read(7);
+		bitsRead += 1 + 7;
 
 		if(debugMode) {
 			System.out.println("Image Header");
@@ -155,12 +167,14 @@ public class DecoderHeader {
 					+ params.outputWordSize + "(3 bit)");
 			System.out.println("\t entropy coder type: " + params.entropyCoderType
 					+ "(2 bits)");
-			System.out.println("\t free space (previously predictor metadata flag): " + 0
+			System.out.println("\t band group flag (previously predictor metadata flag): " + bandGroupFlag
 			                                      					+ "(1 bit)");
-			System.out.println("\t free space (previously entropy metadata flag): " + 0
+			System.out.println("\t stripe flag (previously entropy metadata flag): " + stripeFlag
+  					+ "(1 bit)");
+			System.out.println("\t bitplane skipping flag: " + params.bitplaneSkipping
   					+ "(1 bit)");
 			System.out.println("\t free space: " + 0
-  					+ "(8 bits)");
+  					+ "(7 bits)");
 			System.out.println("\tread " + (bitsRead/8) + " bytes " + " and " + (bitsRead % 8) + " bits");
 		}
 		this.bitsRead += bitsRead;
@@ -247,6 +261,39 @@ public class DecoderHeader {
 	}
 
 
+	/**
+	 * Reads the segment index, which gives the size of the band groups (BSQ) or
+	 * stripes (BI) and the length of the segment of each of them.
+	 *
+	 * @param length the number of bands (BSQ) or lines (BI) of the image
+	 * @return the number of bands of a band group or lines of a stripe
+	 * @throws IOException when something goes wrong and writing must be stopped
+	 */
+	public int segmentIndex(int length) throws IOException {
+		int bitsRead = 0;
+
+		int segmentSize = bis.read(CONS.SHORT);
+		bitsRead += CONS.SHORT;
+		int numSegments = (length + segmentSize - 1) / segmentSize;
+		long[] segmentLengths = new long[numSegments];
+		for (int g = 0; g < numSegments; g++) {
+			segmentLengths[g] = bis.read(32) & 0xFFFFFFFFL;
+			bitsRead += 32;
+		}
+		params.setSegmentLengths(segmentLengths);
+
+		if(debugMode) {
+			System.out.println("Segment index");
+			System.out.println("\t segment size: " + segmentSize + "(16 bits)");
+			for (int g = 0; g < numSegments; g++) {
+				System.out.println("\t segment " + g + " length: " + segmentLengths[g] + "(32 bits)");
+			}
+			System.out.println("\tread " + (bitsRead/8) + " bytes " + " and " + (bitsRead % 8) + " bits");
+		}
+		this.bitsRead += bitsRead;
+		return segmentSize;
+	}
+
 	/**
 	 * Reads the header relative to initialization table.
 	 *
@@ -0,0 +1,372 @@
+/*
+ * EMPORDA Software - More than an implementation of MHDC Recommendation for Image Data Compression
+ * Copyright (C) 2011  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * http://sourceforge.net/projects/emporda
+ * gici-info@deic.uab.es
+ */
+
+package emporda;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class estimates the median of the mapped residuals used by the Valsesia
+ * rate control. The residuals are split in segments, the median of each segment
+ * is computed when the segment is closed and the median of these medians is
+ * computed when the line is closed.
+ * <p>
+ * The values are kept in primitive arrays that are reused from one segment and
+ * line to the next, and the medians are found with a selection instead of
+ * sorting. The medians are the same as the ones of sorting the values.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class MedianEstimator {
+
+	/**
+	 * Residuals of the current segment.
+	 */
+	private int[] segment;
+	private int segmentSize = 0;
+
+	/**
+	 * Medians of the segments of the current line.
+	 */
+	private float[] segmentMedians;
+	private int numSegments = 0;
+
+	/**
+	 * Constructor of MedianEstimator.
+	 *
+	 * @param segmentLength the number of residuals of a segment
+	 */
+	public MedianEstimator(int segmentLength) {
+		segment = new int[2 * segmentLength];
+		segmentMedians = new float[16];
+	}
+
+	/**
+	 * Adds a residual to the current segment.
+	 *
+	 * @param value the mapped residual
+	 */
+	public void add(int value) {
+		if (segmentSize == segment.length) {
+			segment = Arrays.copyOf(segment, segment.length << 1);
+		}
+		segment[segmentSize++] = value;
+	}
+
+	/**
+	 * Computes the median of the current segment and starts a new one.
+	 */
+	public void closeSegment() {
+		if (numSegments == segmentMedians.length) {
+			segmentMedians = Arrays.copyOf(segmentMedians, segmentMedians.length << 1);
+		}
+		segmentMedians[numSegments++] = median(segment, segmentSize);
+		segmentSize = 0;
+	}
+
+	/**
+	 * Computes the median of the medians of the segments of the current line and
+	 * starts a new line. The residuals of a segment that has not been closed are
+	 * kept for the next line.
+	 *
+	 * @return the median of the line
+	 */
+	public float closeLine() {
+		float median = median(segmentMedians, numSegments);
+		numSegments = 0;
+		return median;
+	}
+
+	/**
+	 * Computes the median of the current line and starts a new one, as closeLine, but
+	 * when less than two segments have been closed in the line, the current segment is
+	 * closed as well and a single segment gives its own median. It is meant for the
+	 * residuals of a class, which may not fill two segments of a line.
+	 *
+	 * @return the median of the line
+	 */
+	float closeShortLine() {
+		if (numSegments < 2 && segmentSize != 0) {
+			closeSegment();
+		}
+		if (numSegments == 1) {
+			numSegments = 0;
+			return segmentMedians[0];
+		}
+		return closeLine();
+	}
+
+	/**
+	 * Returns the median of the first values of an array, reordering them. As the
+	 * original implementation, it returns 1 for less than 2 values, the value over
+	 * the middle one for an odd number of values and the mean of the two middle
+	 * values for an even number of values.
+	 *
+	 * @param values the values
+	 * @param size the number of values
+	 * @return the median
+	 */
+	public static float median(int[] values, int size) {
+		if (size < 2) {
+			return 1;
+		}
+		int k = (size + 1) / 2;
+		if (size % 2 == 1) {
+			return select(values, size, k);
+		}
+		k = size / 2;
+		float upper = select(values, size, k);
+		//after the selection the values before k are the lower ones
+		int lower = values[0];
+		for (int i = 1; i < k; i++) {
+			if (values[i] > lower) lower = values[i];
+		}
+		return ((float) lower + upper) / 2;
+	}
+
+	/**
+	 * Float version of {@link #median(int[], int)}.
+	 *
+	 * @param values the values
+	 * @param size the number of values
+	 * @return the median
+	 */
+	public static float median(float[] values, int size) {
+		if (size < 2) {
+			return 1;
+		}
+		int k = (size + 1) / 2;
+		if (size % 2 == 1) {
+			return select(values, size, k);
+		}
+		k = size / 2;
+		float upper = select(values, size, k);
+		//after the selection the values before k are the lower ones
+		float lower = values[0];
+		for (int i = 1; i < k; i++) {
+			if (values[i] > lower) lower = values[i];
+		}
+		return (lower + upper) / 2;
+	}
+
+	/**
+	 * Finds the value that would be in position k if the first values of the array
+	 * were sorted. The array is reordered so that the values before k are not greater
+	 * and the values after k are not lower.
+	 *
+	 * @param values the values
+	 * @param size the number of values
+	 * @param k the position
+	 * @return the value in position k
+	 */
+	private static int select(int[] values, int size, int k) {
+		int left = 0;
+		int right = size - 1;
+		while (left < right) {
+			int pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot) i++;
+				while (values[j] > pivot) j--;
+				if (i <= j) {
+					int tmp = values[i];
+					values[i] = values[j];
+					values[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				break;
+			}
+		}
+		return values[k];
+	}
+
+	/**
+	 * Float version of {@link #select(int[], int, int)}.
+	 *
+	 * @param values the values
+	 * @param size the number of values
+	 * @param k the position
+	 * @return the value in position k
+	 */
+	private static float select(float[] values, int size, int k) {
+		int left = 0;
+		int right = size - 1;
+		while (left < right) {
+			float pivot = values[(left + right) >>> 1];
+			int i = left;
+			int j = right;
+			while (i <= j) {
+				while (values[i] < pivot) i++;
+				while (values[j] > pivot) j--;
+				if (i <= j) {
+					float tmp = values[i];
+					values[i] = values[j];
+					values[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) {
+				right = j;
+			} else if (k >= i) {
+				left = i;
+			} else {
+				break;
+			}
+		}
+		return values[k];
+	}
+
+	/**
+	 * Median estimators of all the residuals and of the residuals inside and outside
+	 * the region of interest.
+	 */
+	public static class Regions {
+
+		public final MedianEstimator all;
+		public final MedianEstimator roi;
+		public final MedianEstimator bg;
+
+		/**
+		 * Constructor of Regions.
+		 *
+		 * @param segmentLength the number of residuals of a segment
+		 */
+		public Regions(int segmentLength) {
+			all = new MedianEstimator(segmentLength);
+			roi = new MedianEstimator(segmentLength);
+			bg = new MedianEstimator(segmentLength);
+		}
+
+		/**
+		 * Adds a residual to the current segment of all the residuals and of its region.
+		 *
+		 * @param value the mapped residual
+		 * @param inROI true if the residual is inside the region of interest
+		 */
+		public void add(int value, boolean inROI) {
+			all.add(value);
+			if (inROI) roi.add(value);
+			else bg.add(value);
+		}
+
+		/**
+		 * Computes the medians of the current segments and starts new ones.
+		 */
+		public void closeSegment() {
+			all.closeSegment();
+			roi.closeSegment();
+			bg.closeSegment();
+		}
+
+		/**
+		 * Computes the medians of the current line and appends them to the lists.
+		 *
+		 * @param medians the medians of all the residuals
+		 * @param mediansROI the medians of the residuals inside the region of interest
+		 * @param mediansBG the medians of the residuals outside the region of interest
+		 */
+		public void closeLine(List<Float> medians, List<Float> mediansROI, List<Float> mediansBG) {
+			medians.add(all.closeLine());
+			mediansROI.add(roi.closeLine());
+			mediansBG.add(bg.closeLine());
+		}
+	}
+
+	/**
+	 * Median estimators of the residuals of each class of a priority mask. The
+	 * segments without residuals of a class are not closed for that class, so the
+	 * medians of a class are not biased by the samples of the other classes. The
+	 * last segment of a class with few samples in a line is closed with the line,
+	 * so that its median is not left to the default of the empty lines.
+	 */
+	public static class Classes {
+
+		private final MedianEstimator[] classes;
+		private final int[] segmentSizes;
+
+		/**
+		 * Constructor of Classes.
+		 *
+		 * @param numClasses the number of classes
+		 * @param segmentLength the number of residuals of a segment
+		 */
+		public Classes(int numClasses, int segmentLength) {
+			classes = new MedianEstimator[numClasses];
+			segmentSizes = new int[numClasses];
+			for (int c = 0; c < numClasses; c++) {
+				classes[c] = new MedianEstimator(segmentLength);
+			}
+		}
+
+		/**
+		 * Adds a residual to the current segment of its class.
+		 *
+		 * @param value the mapped residual
+		 * @param c the class of the residual
+		 */
+		public void add(int value, int c) {
+			classes[c].add(value);
+			segmentSizes[c]++;
+		}
+
+		/**
+		 * Computes the medians of the current segments that have residuals and starts new ones.
+		 */
+		public void closeSegment() {
+			for (int c = 0; c < classes.length; c++) {
+				if (segmentSizes[c] != 0) {
+					classes[c].closeSegment();
+					segmentSizes[c] = 0;
+				}
+			}
+		}
+
+		/**
+		 * Computes the medians of the current line and appends them to the lists.
+		 *
+		 * @param medians the medians of the residuals of each class
+		 */
+		public void closeLine(List<List<Float>> medians) {
+			for (int c = 0; c < classes.length; c++) {
+				medians.get(c).add(classes[c].closeShortLine());
+				segmentSizes[c] = classes[c].segmentSize;
+			}
+		}
+	}
+}
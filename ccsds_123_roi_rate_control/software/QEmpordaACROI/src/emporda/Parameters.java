@@ -62,6 +62,21 @@ public class Parameters implements Serializable{
     public int outputWordSize;
     public int entropyCoderType;
     public int AC_option;
+    
+    /**
+     * Number of bands of each independently coded band group in BSQ order, and number of
+     * lines of each independently coded stripe in BI order. 0 codes the whole image as a
+     * single group or stripe.
+     */
+    public int bandGroupSize;
+    public int stripeHeight;
+    private long[] segmentLengths = null;
+    
+    /**
+     * 1 signals the number of bitplanes of each line (BI) or band (BSQ) in the arithmetic
+     * coder stream so that the empty most significant bitplanes are not coded, 0 otherwise.
+     */
+    public int bitplaneSkipping;
    
 
     //public static final int predictorMetadataFlag;      //deprecated
@@ -115,6 +130,9 @@ public class Parameters implements Serializable{
 	private static final String OUTPUT_WORD_SIZE = "OUTPUT_WORD_SIZE";
 	private static final String ENTROPY_CODER_TYPE = "ENTROPY_CODER_TYPE";
 	private static final String PROB_TABLES_CREATION = "PROB_TABLES_CREATION";
+	private static final String BAND_GROUP_SIZE = "BAND_GROUP_SIZE";
+	private static final String STRIPE_HEIGHT = "STRIPE_HEIGHT";
+	private static final String BITPLANE_SKIPPING = "BITPLANE_SKIPPING";
 	
 // TODO: New variable to control decoder must be created. Possible values of the variable must be checked as well as "ENTROPY_CODER_TYPE"
 
@@ -264,6 +282,9 @@ public class Parameters implements Serializable{
 
 		infoSet.add(ENTROPY_CODER_TYPE);
 		infoSet.add(PROB_TABLES_CREATION);
+		infoSet.add(BAND_GROUP_SIZE);
+		infoSet.add(STRIPE_HEIGHT);
+		infoSet.add(BITPLANE_SKIPPING);
 
 		//		deprecated options 
 		//
@@ -320,6 +341,12 @@ public class Parameters implements Serializable{
 				ENTROPY_CODER_TYPE, Integer.toString(encoderType)));
         AC_option = Integer.parseInt(property.getProperty(
         		PROB_TABLES_CREATION, Integer.toString(PT_options)));
+        bandGroupSize = Integer.parseInt(property.getProperty(
+        		BAND_GROUP_SIZE, "0"));
+        stripeHeight = Integer.parseInt(property.getProperty(
+        		STRIPE_HEIGHT, "0"));
+        bitplaneSkipping = Integer.parseInt(property.getProperty(
+        		BITPLANE_SKIPPING, "0"));
         
 //      Deprecated options
 //  
@@ -365,6 +392,26 @@ public class Parameters implements Serializable{
 					+ "\t 6 -> Dual Arithmetic coder with codewords of fixed length.\n"
 					+ "\t 7 -> Symbol Arithmetic coder with codewords of fixed length.\n");
 		}
+		if (bandGroupSize < 0 || bandGroupSize > 65535) {
+			throw new ParameterException("PARAMS ERROR: BAND_GROUP_SIZE must be"
+					+ " in range 0 <= BAND_GROUP_SIZE <= 65535");
+		}
+		if (bandGroupSize != 0 && sampleEncodingOrder != CONS.BAND_SEQUENTIAL) {
+			throw new ParameterException("PARAMS ERROR: BAND_GROUP_SIZE must be 0"
+					+ " for BI encoding");
+		}
+		if (stripeHeight < 0 || stripeHeight > 65535) {
+			throw new ParameterException("PARAMS ERROR: STRIPE_HEIGHT must be"
+					+ " in range 0 <= STRIPE_HEIGHT <= 65535");
+		}
+		if (stripeHeight != 0 && sampleEncodingOrder != CONS.BAND_INTERLEAVE) {
+			throw new ParameterException("PARAMS ERROR: STRIPE_HEIGHT must be 0"
+					+ " for BSQ encoding");
+		}
+		if (bitplaneSkipping < 0 || bitplaneSkipping > 1) {
+			throw new ParameterException("PARAMS ERROR: BITPLANE_SKIPPING must be"
+					+ " 0 or 1");
+		}
                
         /*
         Conditions for the deprecated options
@@ -485,6 +532,10 @@ public class Parameters implements Serializable{
 			throw new ParameterException("PARAMS ERROR: WEIGHT_INITIALIZATION_RESOLUTION must be in range " 
 					+ "3 <= Q <= omega + 3 for custom weight initialization");
 		}
+		if (weightInitMethod == 1 && (bandGroupSize != 0 || stripeHeight != 0)) {
+			throw new ParameterException("PARAMS ERROR: WEIGHT_INITIALIZATION_METHOD must be 0 "
+					+ "if BAND_GROUP_SIZE or STRIPE_HEIGHT are not 0");
+		}
 		if (registerSize < dynamicRange + weightComponentResolution + 2) {
 			throw new ParameterException("PARAMS ERROR: REGISTER_SIZE must be "
 					+ "at least DYNAMIC_RANGE + WEIGHT_COMPONENT_RESOLUTION + 2");
@@ -695,6 +746,24 @@ public class Parameters implements Serializable{
 		return accInitTable;
 	}
 
+	/**
+	 * gets segmentLengths.
+	 *
+	 * @return segmentLengths the length in bytes of the segment of each band group or stripe
+	 */
+	public long[] getSegmentLengths() {
+		return segmentLengths;
+	}
+
+	/**
+	 * sets segmentLengths.
+	 *
+	 * @param segmentLengths the length in bytes of the segment of each band group or stripe
+	 */
+	public void setSegmentLengths(long[] segmentLengths) {
+		this.segmentLengths = segmentLengths;
+	}
+
 	/**
 	 * get imageGeometry.
 	 *
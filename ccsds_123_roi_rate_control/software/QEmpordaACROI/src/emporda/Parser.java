@@ -91,7 +91,8 @@ public class Parser extends BaseArgumentsParser {
 				"sets the option file for the compression process"
 			},
 			{"-dbg", "--debug-mode", "", "", "0", "1", 
-				"sets debug mode, in which the program outputs useful information for debugging tasks"
+				"sets debug mode, in which the program outputs useful information for debugging tasks "
+				+ "and checks that the weight updates of the predictor are the same as the standard ones"
 			},
 			{"-qm", "--quantization-mode", "{int}", "", "1", "1",
 				"The quantization mode to be used. \n"
@@ -132,7 +133,7 @@ public class Parser extends BaseArgumentsParser {
 				+ "4.- Dumb MQ Coder. DECODER DOES NOT WORK. LOOKS LIKE AN ERROR IN THE INPUTSTREAM\n"
 				+ "5.- Computes the binary entropy. Decoder side is not useful. This is only for research analitic purposes.\n"
 				+ "6.- Dual Arithmetic coder with codewords of fixed length..\n"
-				+ "7.- Symbol Arithmetic coder with codewords of fixed length..\n"
+				+ "7.- Symbol Arithmetic coder with codewords of fixed length. In BI order with a fixed quantization step it codes one symbol per sample.\n"
 				+ " This value is 0 by default. "
 			},
 			{"-cm", "--context model", "{int}", "", "0", "1",
@@ -154,7 +155,8 @@ public class Parser extends BaseArgumentsParser {
 				+ "0.- The probability is estimated using a full division operation.\n"
 				+ "1.- The probability is estimated using a division implemented through a quantized Look Up Table. This option must be used with -qlut option.\n"
 				+ "2.- The probability is estimated using only bitwise operators and witout division. When this option is used -wp and -up parameters must be the same value of form 2^X."
-				+ "3.- The probability is estimated using a full division operation in a symbol-by-symbol fashion. Before to encode the symbol the probabilty is updated with the division, then the window is updated."
+				+ "3.- The probability is estimated using a full division operation in a symbol-by-symbol fashion. Before to encode the symbol the probabilty is updated with the division, then the window is updated.\n"
+				+ "4.- The probability is estimated with a state machine updated after each symbol, without divisions. The -wp parameter sets the number of symbols the estimation adapts to.\n"
 			},
 			{"-wp", "--windowProbability", "{int}", "", "0", "1",
 				"Indicates the maximum number of symbols within the variable-size sliding window that are employed for the Entropy Coder to compute the probability of the context. Must be of the form 2^X. This value is 8 by default.\n"
@@ -170,7 +172,8 @@ public class Parser extends BaseArgumentsParser {
 				+ "0.- Strategy 0 (Valsesia & Magli 2016)\n"
 				+ "1.- Strategy 1 (Proposal 1 - process one buffer then the rate is adapted according to the target bit-rate)\n"
 				+ "2.- Strategy 2 (Proposal 2 - process buffer-by-buffer). The quality trys to be constant for all lines.\n"
-				+ "4.- Strategy 4 (Proposal 4 - process buffer-by-buffer). The quality trys to be constant for all lines but achives the target during the coding process.\n"
+				+ "4.- Strategy 4 (Priorities). The mask (-mk) is a priority mask where each grey value is a class. Each class has its own target rate (-ctr) and minimum quantization step (-qs).\n"
+				+ "5.- Strategy 5 (Rate-distortion). The quantization step of each line minimizes the estimated distortion plus lambda times the estimated rate, with the same lambda for all the lines, corrected to achieve the target bit-rate.\n"
 				+ "8.- Strategy 8 (Proposal 8 - process buffer-by-buffer). The quality trys to be constant for all lines but achives the target during the coding process. The rate and the error are estimate instead of comuted to reduce de computational resources\n"
 				+ "3.- Strategy 3 (Proposal 3 - process buffer-by-buffer). The quality trys to be constant for all lines and spectrum.\n"
 				+ "6.- Strategy 3 (Proposal 3 - process buffer-by-buffer). The quality trys to be constant for all lines and spectrum achives the target during the coding process.\n"
@@ -188,7 +191,20 @@ public class Parser extends BaseArgumentsParser {
 			"File of the mask. It must be in RAW format, 8 bpp. " +
                         "The mask must have the same xSize, ySize than the image to compress but with zSize = 1." +
                         "The same 2D region will be considered for all the bands. " +
-                        "ROI will be those samples that are white (sample value = 255) and BG those that are black (sample value = 0).\n"
+                        "ROI will be those samples that are white (sample value = 255) and BG those that are black (sample value = 0). " +
+                        "With -rcs 4 each grey value is a class, ranked from the lowest grey value (class 0) to the highest one.\n"
+			},
+			{"-ctr", "--class-target-rates", "[float]", "", "0", "1",
+				"Target rate of each class of the priority mask for -rcs 4, starting from class 0. A target rate of 0 codes the class with its minimum quantization step (PAE restriction), "
+				+ "which is taken from -qs in the same order (the last value is used for the remaining classes). By default the last class is coded with its minimum quantization step and the other ones with the target rate (-tr).\n"
+			},
+			{"-la", "--look-ahead", "{int}", "", "0", "1",
+				"Number of lines after the current one whose rate is estimated before choosing the quantization step of the current line with -rcs 0. "
+				+ "The estimation of these lines runs in a second thread while the current line is coded. This value is 0 by default, meaning that the quantization step is chosen from the previous line only.\n"
+			},
+			{"-qg", "--qstep-groups", "{int}", "", "0", "1",
+				"Number of groups of contiguous bands with their own quantization step in each line with -rcs 5. The quantization step of each group minimizes its own estimated distortion plus lambda times its estimated rate, "
+				+ "so the noisy bands are quantized harder than the clean ones. The number of groups and the quantization steps are coded in the stream, so the decoder does not need this option. This value is 1 by default, meaning that all the bands of a line have the same quantization step. The other rate control strategies ignore it.\n"
 			},
 			{"-h", "--help", "", "", "0", "1",
 				"Displays help and exits program."
@@ -226,6 +242,9 @@ public class Parser extends BaseArgumentsParser {
 	private int probabilityModel = 0;
 	private int quantizerProbabilityLUT = 0;
 	private int RCStrategy = 0;//rateControl Strategy
+	private float[] classTargetRates = null;//target rates of the classes of the priority mask
+	private int lookAhead = 0;//lines estimated ahead by the rate control
+	private int qstepGroups = 1;//groups of bands with their own qstep in each line
 	private int windowsize = 256;
 	private int bufferSize = 1;
 	private int samplePrediction = 0;// Type of spatial sample prediction
@@ -423,7 +442,22 @@ public class Parser extends BaseArgumentsParser {
 			maskFile = parseString(options);
 			break;
 		
-    		case 26: //-h  --help
+		case 26: //-ctr  --class-target-rates
+			classTargetRates = parseFloatArray(options);
+			break;
+		
+		case 27: //-la  --look-ahead
+			lookAhead = parseIntegerPositive(options);
+			break;
+		
+		case 28: //-qg  --qstep-groups
+			qstepGroups = parseIntegerPositive(options);
+			if(qstepGroups < 1){
+				throw new ParameterException("qstepGroups must be at least 1");
+			}
+			break;
+		
+    		case 29: //-h  --help
 			System.out.println("Emporda");
 			showArgsInfo();
 			System.exit(0);
@@ -724,6 +758,36 @@ public class Parser extends BaseArgumentsParser {
 		return RCStrategy;
 	}
 	
+	/**
+	 * get the target rates of the classes of the priority mask.
+	 * 
+	 * @return the target rates, null if they have not been set
+	 */
+	public float[] getClassTargetRates() {
+		
+		return classTargetRates;
+	}
+	
+	/**
+	 * get the number of lines estimated ahead by the rate control.
+	 * 
+	 * @return the number of lines
+	 */
+	public int getLookAhead() {
+		
+		return lookAhead;
+	}
+	
+	/**
+	 * get the number of groups of bands with their own qstep in each line.
+	 * 
+	 * @return the number of groups
+	 */
+	public int getQstepGroups() {
+		
+		return qstepGroups;
+	}
+	
 	/**
 	 * get AC_option
 	 * 
@@ -29,6 +29,7 @@
 package emporda;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import GiciException.ParameterException;
 import GiciMath.IntegerMath;
@@ -65,13 +66,41 @@ public class Predictor implements Cloneable, Serializable{
 	 * compression process
 	 */
 	private int[] sample;
-	private long[][] weightVector;
-	private long[][] diffVector;
 	private int[][] initializationTable;
 	private int[] weightResolution;
 	private int[] vectorsSize;
 	public boolean canBeInizialized = true;
 	
+	/**
+	 * The weight and local difference vectors of all the bands. The vector of band z
+	 * starts at z * vectorsStride and has vectorsSize[z] components.
+	 */
+	private long[] weightVector;
+	private long[] diffVector;
+	private int vectorsStride;
+	
+	/**
+	 * The scaling exponent of the weight update stops changing once the sample index
+	 * reaches saturationIndex, and from there on it is saturatedExponent. Before, the
+	 * exponent of the sample index t is scalingExponents[t >> tinc].
+	 */
+	private int saturationIndex;
+	private int saturatedExponent;
+	private int[] scalingExponents;
+	
+	/**
+	 * When it is enabled the predictor also computes every weight update with the
+	 * standard update and throws an error if they differ.
+	 */
+	private final boolean weightUpdateCheck;
+	
+	/**
+	 * Scratch vectors for the standard update, only for the predictors that compare the
+	 * weight updates. They have the same layout as weightVector so that each band uses
+	 * its own part.
+	 */
+	private long[] checkVector = null;
+	
 	/**
 	 * It stores all the parameters set by the user
 	 */
@@ -95,17 +124,33 @@ public class Predictor implements Cloneable, Serializable{
 	private int num_samples = 0;
 	private double lambda_normalized = 0;
 	
+	/**
+	 * Indicates whether MSE and PAE are accumulated while compressing. It is disabled by
+	 * default since only some rate control modes read these statistics.
+	 */
+	private boolean distortionTracking = false;
+	
+	/**
+	 * Scratch arrays in which calculatePrediction returns the scaled predicted sample
+	 * and the predicted sample value. They are fields to avoid allocating them for every
+	 * sample, and there is one per band so that different bands can be predicted by
+	 * different threads.
+	 */
+	private final int[][] returnValues;
+	
 	/**
 	 * Constructor of Predictor. It receives the parameters needed for the 
 	 * headers
 	 *
 	 * @param parameters all the information about the compression process
+	 * @param weightUpdateCheck true to compare every weight update with the standard one
 	 * 
 	 * @throws ParameterException when an invalid parameter is detected
 	 */
-	public Predictor(Parameters parameters) throws ParameterException {
+	public Predictor(Parameters parameters, boolean weightUpdateCheck) throws ParameterException {
 
 		this.parameters = parameters;
+		this.weightUpdateCheck = weightUpdateCheck;
 		sample = new int[3];
 		weightResolution = new int[2];
 		geo = parameters.getImageGeometry();
@@ -123,9 +168,13 @@ public class Predictor implements Cloneable, Serializable{
 			sample[MAX] = (1 << parameters.dynamicRange - 1) - 1;			
 			sample[MID] = 0;
 		}
-		weightVector = new long[geo[CONS.BANDS]][];
-		diffVector = new long[geo[CONS.BANDS]][];
+		vectorsStride = parameters.numberPredictionBands + 3;
+		weightVector = new long[geo[CONS.BANDS] * vectorsStride];
+		diffVector = new long[geo[CONS.BANDS] * vectorsStride];
 		vectorsSize = new int[geo[CONS.BANDS]];
+		initScalingExponent();
+		if (weightUpdateCheck) checkVector = new long[weightVector.length];
+		returnValues = new int[geo[CONS.BANDS]][2];
 		initializationTable = parameters.getWeightInitTable();
 	}
 	
@@ -152,46 +201,60 @@ public class Predictor implements Cloneable, Serializable{
 			sample[MAX] = (1 << parameters.dynamicRange - 1) - 1;			
 			sample[MID] = 0;
 		}
-		weightVector = new long[geo[CONS.BANDS]][];
-		diffVector = new long[geo[CONS.BANDS]][];
+		vectorsStride = parameters.numberPredictionBands + 3;
+		weightVector = new long[geo[CONS.BANDS] * vectorsStride];
+		diffVector = new long[geo[CONS.BANDS] * vectorsStride];
 		vectorsSize = new int[geo[CONS.BANDS]];
+		initScalingExponent();
+		if (weightUpdateCheck) checkVector = new long[weightVector.length];
 		initializationTable = parameters.getWeightInitTable();
 	}
 	
 	
 	/**
-	 * Copies another Predictor to this Predictor by copying the state of the predictor
+	 * Builds a Predictor with the same parameters and state as another one.
+	 * 
+	 * @param another is the Predictor to copy from
+	 */
+	private Predictor(Predictor another) {
+		this.parameters = another.parameters;
+		this.geo = another.geo;
+		this.initializationTable = another.initializationTable;
+		this.distortionTracking = another.distortionTracking;
+		sample = new int[3];
+		weightResolution = new int[2];
+		vectorsStride = another.vectorsStride;
+		weightVector = new long[another.weightVector.length];
+		diffVector = new long[another.diffVector.length];
+		vectorsSize = new int[another.vectorsSize.length];
+		saturationIndex = another.saturationIndex;
+		saturatedExponent = another.saturatedExponent;
+		scalingExponents = another.scalingExponents;
+		weightUpdateCheck = another.weightUpdateCheck;
+		if (another.checkVector != null) checkVector = new long[weightVector.length];
+		returnValues = new int[another.returnValues.length][2];
+		copy(another);
+	}
+	
+	/**
+	 * Copies another Predictor to this Predictor by copying the state of the predictor.
 	 * 
 	 * @param another is the Predictor to copy from
 	 */
 	public void copy(Predictor another){
 		
-		for (int i = 0; i < 3; i++){
-			this.sample[i] = another.sample[i];
-		}
+		System.arraycopy(another.sample, 0, this.sample, 0, 3);
 		
 		this.weightResolution[0] = another.weightResolution[0];
 		this.weightResolution[1] = another.weightResolution[1];
 		
-		for (int i = 0; i < vectorsSize.length; i++){
-			this.vectorsSize[i] = another.vectorsSize[i];
-		}
+		System.arraycopy(another.vectorsSize, 0, this.vectorsSize, 0, vectorsSize.length);
 		
-		for (int z = 0; z < weightVector.length; z++){
-			if (another.weightVector[z] != null){
-				for (int y = 0; y < weightVector[z].length; y++){
-					this.weightVector[z][y] = another.weightVector[z][y];
-				}
-			}else this.weightVector[z] = null;
-		}
-		for (int z = 0; z < diffVector.length; z++){
-			if (another.diffVector[z] != null){
-				for (int y = 0; y < diffVector[z].length; y++){
-					this.diffVector[z][y] = another.diffVector[z][y];
-				}
-			}else this.diffVector[z] = null;
-		}
-
+		System.arraycopy(another.weightVector, 0, this.weightVector, 0, weightVector.length);
+		System.arraycopy(another.diffVector, 0, this.diffVector, 0, diffVector.length);
+		this.canBeInizialized = another.canBeInizialized;
+		this.MSE = another.MSE;
+		this.PAE = another.PAE;
 	}
 
 	/**
@@ -206,25 +269,26 @@ public class Predictor implements Cloneable, Serializable{
 			vectorsSize[z] += 3;
 		}
 		
-		diffVector[z] = new long[vectorsSize[z]];
-		weightVector[z] = new long[vectorsSize[z]];
+		int offset = z * vectorsStride;
+		Arrays.fill(diffVector, offset, offset + vectorsStride, 0);
+		Arrays.fill(weightVector, offset, offset + vectorsStride, 0);
 
 		//weight initialization
 		if (parameters.weightInitMethod == CONS.DEFAULT_WEIGHT_INIT) {
 
 			int i = 0;
 			if (parameters.predictionMode == CONS.FULL_PRED_MODE) {
-				weightVector[z][N] = 0;
-				weightVector[z][W] = 0;
-				weightVector[z][NW] = 0;
+				weightVector[offset + N] = 0;
+				weightVector[offset + W] = 0;
+				weightVector[offset + NW] = 0;
 				i += 3;
 			}
 			if (i < vectorsSize[z]) {
-				weightVector[z][i] = 7 * (1 << parameters.weightComponentResolution - 3);
+				weightVector[offset + i] = 7 * (1 << parameters.weightComponentResolution - 3);
 				i++;
 			}
 			for (; i < vectorsSize[z]; i++) {
-				weightVector[z][i] = weightVector[z][i - 1] >> 3;
+				weightVector[offset + i] = weightVector[offset + i - 1] >> 3;
 			}
 
 		} else {
@@ -233,7 +297,7 @@ public class Predictor implements Cloneable, Serializable{
 			int constantSum = exponent < 0 ? 0 : (1 << exponent) - 1;
 			int constantProd = 1 << exponent + 1;
 			for (int i = 0; i < vectorsSize[z]; i++) {
-				weightVector[z][i] = constantProd * initializationTable[z][i] + constantSum;
+				weightVector[offset + i] = constantProd * initializationTable[z][i] + constantSum;
 			}
 		}
 	}
@@ -313,8 +377,9 @@ public class Predictor implements Cloneable, Serializable{
 	 * @param lineOffset is the position of line y in s
 	 */
 	private void reducedDiffVector(int s[][][], int z, int y, int x, int bandOffset, int lineOffset) {
+		int offset = z * vectorsStride;
 		for (int i = 0; i < vectorsSize[z]; i++) {
-			diffVector[z][i] = (s[bandOffset - i - 1][lineOffset][x] << 2) - getLocalSum(s[bandOffset - i - 1], y, x, lineOffset);
+			diffVector[offset + i] = (s[bandOffset - i - 1][lineOffset][x] << 2) - getLocalSum(s[bandOffset - i - 1], y, x, lineOffset);
 		}
 	}
 
@@ -331,23 +396,24 @@ public class Predictor implements Cloneable, Serializable{
 	 * @param lineOffset is the position of line y in s
 	 */
 	private void fullDiffVector(int s[][][], int z, int y, int x, int bandOffset, int lineOffset) {
+		int offset = z * vectorsStride;
 		if (y == 0) {
-			diffVector[z][0] = 0;
-			diffVector[z][1] = 0;
-			diffVector[z][2] = 0;
+			diffVector[offset] = 0;
+			diffVector[offset + 1] = 0;
+			diffVector[offset + 2] = 0;
 		} else {
 			int localSum = getLocalSum(s[bandOffset], y, x, lineOffset);
-			diffVector[z][0] = (s[bandOffset][lineOffset - 1][x] << 2) - localSum;
+			diffVector[offset] = (s[bandOffset][lineOffset - 1][x] << 2) - localSum;
 			if (x == 0) {
-				diffVector[z][1] = diffVector[z][0];
-				diffVector[z][2] = diffVector[z][0];
+				diffVector[offset + 1] = diffVector[offset];
+				diffVector[offset + 2] = diffVector[offset];
 			} else {
-				diffVector[z][1] = (s[bandOffset][lineOffset][x - 1] << 2) - localSum;
-				diffVector[z][2] = (s[bandOffset][lineOffset - 1][x - 1] << 2) - localSum;
+				diffVector[offset + 1] = (s[bandOffset][lineOffset][x - 1] << 2) - localSum;
+				diffVector[offset + 2] = (s[bandOffset][lineOffset - 1][x - 1] << 2) - localSum;
 			}
 		}
 		for (int i = 0; i < vectorsSize[z] - 3; i++) {
-			diffVector[z][i + 3] = (s[bandOffset - i - 1][lineOffset][x] << 2) - getLocalSum(s[bandOffset - i - 1], y, x, lineOffset);
+			diffVector[offset + i + 3] = (s[bandOffset - i - 1][lineOffset][x] << 2) - getLocalSum(s[bandOffset - i - 1], y, x, lineOffset);
 		}
 	}
 
@@ -370,6 +436,71 @@ public class Predictor implements Cloneable, Serializable{
 		}
 	}
 
+	/**
+	 * Calculates the local difference vector and returns the local sum of the sample 
+	 * s[z][y][x] when it is not in the first row, the first column or the last column.
+	 * For these samples all the neighbours exist, so the edge handling of getLocalSum
+	 * is skipped.
+	 * 
+	 * @param s is the image
+	 * @param z is the band of the sample
+	 * @param x is the column of the sample
+	 * @param bandOffset is the position of band z in s
+	 * @param lineOffset is the position of line y in s
+	 * @return the local sum of the sample s[z][y][x]
+	 */
+	private int calculateInteriorLocalDifference(int s[][][], int z, int x, int bandOffset, int lineOffset) {
+		boolean neighborOriented = parameters.localSumMode == CONS.NEIGHBOR_ORIENTED_SUM;
+		long[] diff = diffVector;
+		int offset = z * vectorsStride;
+		int[] current = s[bandOffset][lineOffset];
+		int[] previous = s[bandOffset][lineOffset - 1];
+		int localSum = neighborOriented
+				? current[x - 1] + previous[x - 1] + previous[x] + previous[x + 1]
+				: previous[x] << 2;
+		int i = 0;
+		
+		if (parameters.predictionMode == CONS.FULL_PRED_MODE) {
+			diff[offset] = (previous[x] << 2) - localSum;
+			diff[offset + 1] = (current[x - 1] << 2) - localSum;
+			diff[offset + 2] = (previous[x - 1] << 2) - localSum;
+			i = 3;
+		}
+		for (int band = bandOffset - 1; i < vectorsSize[z]; i++, band--) {
+			current = s[band][lineOffset];
+			previous = s[band][lineOffset - 1];
+			diff[offset + i] = neighborOriented
+					? (current[x] << 2) - (current[x - 1] + previous[x - 1] + previous[x] + previous[x + 1])
+					: (current[x] << 2) - (previous[x] << 2);
+		}
+		return localSum;
+	}
+	
+	/**
+	 * Calculates the local difference vector and the prediction values of the sample 
+	 * s[z][y][x], leaving the latter in returnValues[z]. Interior samples are handled by 
+	 * calculateInteriorLocalDifference and the samples in the borders of the band by 
+	 * the general functions.
+	 * x and y cannot both be 0
+	 * 
+	 * @param s is the image
+	 * @param z is the band of the sample
+	 * @param y is the row of the sample
+	 * @param x is the column of the sample
+	 * @param bandOffset is the position of band z in s
+	 * @param lineOffset is the position of line y in s
+	 */
+	private void predict(int s[][][], int z, int y, int x, int bandOffset, int lineOffset) {
+		if (y > 0 && x > 0 && x < geo[CONS.WIDTH] - 1) {
+			int s_scaled = getScaledPrediction(z, calculateInteriorLocalDifference(s, z, x, bandOffset, lineOffset));
+			returnValues[z][SPS] = s_scaled;
+			returnValues[z][PSV] = s_scaled >> 1;
+		} else {
+			calculateLocalDifference(s, z, y, x, bandOffset, lineOffset);
+			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues[z]);
+		}
+	}
+
 	/**
 	 * Calculates the prediction values.
 	 * 
@@ -396,30 +527,44 @@ public class Predictor implements Cloneable, Serializable{
 			}
 				
 		} else {						
-			long d_aprox = 0;
-			for (int i = 0; i < vectorsSize[z]; i++) {
-				d_aprox += weightVector[z][i]*diffVector[z][i];
-			}
 			localSum = getLocalSum(s[bandOffset], y, x, lineOffset);
-			/***************************************************************/
-			/* this code is very sensitive to changes, it probably can be optimized, but be careful */
-			long tmpValue = (localSum - (sample[MID] << 2));
-			boolean sgn = tmpValue < 0;
-			tmpValue = Math.abs(tmpValue) << parameters.weightComponentResolution;
-			tmpValue = sgn ? -tmpValue : tmpValue;
-			long tmp = IntegerMath.mod_R(d_aprox + tmpValue, parameters.registerSize);
-
-			/*****************************************************************/
-			
-			tmp >>= parameters.weightComponentResolution + 1;
-			tmp += (sample[MID] << 1) + 1;
-			s_scaled = IntegerMath.clip(tmp, sample[MIN] << 1, (sample[MAX] << 1) + 1);
+			s_scaled = getScaledPrediction(z, localSum);
 		}
 		s_aprox = s_scaled >> 1;
 		returnValues[SPS] = s_scaled;
 		returnValues[PSV] = s_aprox;
 	}
 
+	/**
+	 * Returns the scaled predicted sample value from the local sum and the current
+	 * local difference and weight vectors of the band.
+	 * 
+	 * @param z is the band of the sample
+	 * @param localSum is the local sum of the sample
+	 * @return the scaled predicted sample value
+	 */
+	private int getScaledPrediction(int z, int localSum) {
+		long[] weight = weightVector;
+		long[] diff = diffVector;
+		long d_aprox = 0;
+		for (int i = z * vectorsStride, end = i + vectorsSize[z]; i < end; i++) {
+			d_aprox += weight[i]*diff[i];
+		}
+		/***************************************************************/
+		/* this code is very sensitive to changes, it probably can be optimized, but be careful */
+		long tmpValue = (localSum - (sample[MID] << 2));
+		boolean sgn = tmpValue < 0;
+		tmpValue = Math.abs(tmpValue) << parameters.weightComponentResolution;
+		tmpValue = sgn ? -tmpValue : tmpValue;
+		long tmp = IntegerMath.mod_R(d_aprox + tmpValue, parameters.registerSize);
+
+		/*****************************************************************/
+		
+		tmp >>= parameters.weightComponentResolution + 1;
+		tmp += (sample[MID] << 1) + 1;
+		return IntegerMath.clip(tmp, sample[MIN] << 1, (sample[MAX] << 1) + 1);
+	}
+
 
 	/*
 	 * IN THEORY THIS IS THE FUNCTION COMPLIANT WITH THE NEXT VERSION OF THE STANDARD
@@ -448,6 +593,32 @@ public class Predictor implements Cloneable, Serializable{
 		returnValues[PSV] = s_aprox;
 	}
 */
+	/**
+	 * Computes the scaling exponents of the weight update up to where they saturate.
+	 */
+	private void initScalingExponent() {
+		saturationIndex = parameters.vmax - parameters.vmin << parameters.tinc;
+		saturatedExponent = parameters.vmax + parameters.dynamicRange - parameters.weightComponentResolution;
+		scalingExponents = new int[parameters.vmax - parameters.vmin + 1];
+		for (int i = 0; i < scalingExponents.length; i++) {
+			scalingExponents[i] = parameters.vmin + i + parameters.dynamicRange - parameters.weightComponentResolution;
+		}
+	}
+	
+	/**
+	 * Returns the scaling exponent of the weight update of a sample.
+	 * 
+	 * @param t is the index of the sample in the band, x + (y - 1) * width
+	 * @return the scaling exponent
+	 */
+	private int getScalingExponent(int t) {
+		if (t >= saturationIndex) {
+			return saturatedExponent;
+		}
+		//the samples of the first line have a negative index and the exponent of index 0
+		return scalingExponents[t < 0 ? 0 : t >> parameters.tinc];
+	}
+	
 	/**
 	 * Update the weight vector.
 	 * x and y cannot both be 0 and in the reduced prediction mode
@@ -462,26 +633,117 @@ public class Predictor implements Cloneable, Serializable{
 	 * @param s_scaled is the scaled predicted sample value
 	 */
 	private void updateWeightVector(int[][][] s, int z, int y, int x, int s_scaled, int bandOffset, int lineOffset) {
-		long scaled_error, scaling_exponent;
+		long scaled_error = (s[bandOffset][lineOffset][x] << 1) - s_scaled;
+		int t = x + (y - 1) * geo[CONS.WIDTH];
+		int offset = z * vectorsStride;
 		
-		scaled_error = (s[bandOffset][lineOffset][x] << 1) - s_scaled;
+		if (checkVector != null) {
+			System.arraycopy(weightVector, offset, checkVector, offset, vectorsSize[z]);
+			updateWeightVectorStandard(checkVector, z, t, scaled_error);
+			updateWeightVectorFast(z, getScalingExponent(t), scaled_error < 0);
+			for (int i = offset; i < offset + vectorsSize[z]; i++) {
+				if (checkVector[i] != weightVector[i]) {
+					throw new Error("Unexpected exception ocurred the weight update of band " + z + " differs from the standard one at sample " + t);
+				}
+			}
+		} else {
+			updateWeightVectorFast(z, getScalingExponent(t), scaled_error < 0);
+		}
+	}
+	
+	/**
+	 * Updates the weight vector of a band with the standard formulas, computing the
+	 * scaling exponent and clipping each weight with IntegerMath.
+	 * 
+	 * @param weights is the vector of all the weights where the ones of the band are updated
+	 * @param z is the band of the sample
+	 * @param t is the index of the sample in the band, x + (y - 1) * width
+	 * @param scaled_error is the scaled prediction error
+	 */
+	private void updateWeightVectorStandard(long[] weights, int z, int t, long scaled_error) {
+		long scaling_exponent;
 		
-		long tmp = ((x + (y - 1) * geo[CONS.WIDTH]) >> parameters.tinc);
+		long tmp = t >> parameters.tinc;
 		scaling_exponent = IntegerMath.clip(parameters.vmin + tmp, 
 				parameters.vmin, 
 				parameters.vmax);
 		scaling_exponent += parameters.dynamicRange - parameters.weightComponentResolution;
 		
+		int offset = z * vectorsStride;
 		for (int i = 0; i < vectorsSize[z]; i++) {
 			tmp = (scaling_exponent < 0)
-					? IntegerMath.positive_sign(scaled_error) * diffVector[z][i] << -scaling_exponent
-					: IntegerMath.positive_sign(scaled_error) * diffVector[z][i] >> scaling_exponent;
+					? IntegerMath.positive_sign(scaled_error) * diffVector[offset + i] << -scaling_exponent
+					: IntegerMath.positive_sign(scaled_error) * diffVector[offset + i] >> scaling_exponent;
 			tmp = tmp + 1 >> 1;
-			weightVector[z][i] = IntegerMath.clip(weightVector[z][i] + tmp, 
+			weights[offset + i] = IntegerMath.clip(weights[offset + i] + tmp, 
 					weightResolution[MIN], 
 					weightResolution[MAX]);
 		}
 	}
+	
+	/**
+	 * Updates the weight vector of a band with the scaling exponent already computed.
+	 * The sign of the error is applied by negating the differences and the exponent is
+	 * split in a left and a right shift, one of them 0, so that both signs of the exponent
+	 * share the same code. The vector sizes of 3 prediction bands, the default, are unrolled.
+	 * 
+	 * @param z is the band of the sample
+	 * @param exponent is the scaling exponent
+	 * @param negative is true when the scaled prediction error is negative
+	 */
+	private void updateWeightVectorFast(int z, int exponent, boolean negative) {
+		int offset = z * vectorsStride;
+		int left = exponent < 0 ? -exponent : 0;
+		int right = exponent < 0 ? 0 : exponent;
+		long[] weight = weightVector;
+		long[] diff = diffVector;
+		switch (vectorsSize[z]) {
+		case 3: //reduced prediction mode with 3 prediction bands
+			weight[offset] = updateWeight(weight[offset], diff[offset], left, right, negative);
+			weight[offset + 1] = updateWeight(weight[offset + 1], diff[offset + 1], left, right, negative);
+			weight[offset + 2] = updateWeight(weight[offset + 2], diff[offset + 2], left, right, negative);
+			break;
+		case 6: //full prediction mode with 3 prediction bands
+			weight[offset] = updateWeight(weight[offset], diff[offset], left, right, negative);
+			weight[offset + 1] = updateWeight(weight[offset + 1], diff[offset + 1], left, right, negative);
+			weight[offset + 2] = updateWeight(weight[offset + 2], diff[offset + 2], left, right, negative);
+			weight[offset + 3] = updateWeight(weight[offset + 3], diff[offset + 3], left, right, negative);
+			weight[offset + 4] = updateWeight(weight[offset + 4], diff[offset + 4], left, right, negative);
+			weight[offset + 5] = updateWeight(weight[offset + 5], diff[offset + 5], left, right, negative);
+			break;
+		default:
+			for (int i = offset, end = offset + vectorsSize[z]; i < end; i++) {
+				weight[i] = updateWeight(weight[i], diff[i], left, right, negative);
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Returns an updated weight.
+	 * 
+	 * @param weight is the weight
+	 * @param diff is the local difference of the weight
+	 * @param left is the opposite of the scaling exponent when it is negative, 0 otherwise
+	 * @param right is the scaling exponent when it is not negative, 0 otherwise
+	 * @param negative is true when the scaled prediction error is negative
+	 * @return the updated weight
+	 */
+	private long updateWeight(long weight, long diff, int left, int right, boolean negative) {
+		return clipWeight(weight + (((negative ? -diff : diff) << left >> right) + 1 >> 1));
+	}
+	
+	/**
+	 * Clips a weight to the range of the weight resolution.
+	 * 
+	 * @param weight is the weight
+	 * @return the clipped weight
+	 */
+	private long clipWeight(long weight) {
+		if (weight < weightResolution[MIN]) return weightResolution[MIN];
+		if (weight > weightResolution[MAX]) return weightResolution[MAX];
+		return weight;
+	}
 
 	/**
 	 * Return the mapped residual of the sample s[z][y][x].
@@ -562,19 +824,17 @@ public class Predictor implements Cloneable, Serializable{
 	 */
 	public int compressROI(int s[][][], int z, int y, int x, int bandOffset, int lineOffset, Quantizer uq, int yROIFirst) {
 		int s_scaled, s_aprox, q_residual, residual;
-		int[] returnValues = new int[2];
 		//if(y == 0 && x == 0) {
 		if(canBeInizialized) {
 		//if((y == 0 && x == 0) || (yROIFirst == y) && canBeInizialized) {
 			canBeInizialized = false;
 			init(z);
-			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues); 
-			s_scaled = returnValues[0];
-			s_aprox = returnValues[1];
+			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues[z]); 
+			s_scaled = returnValues[z][0];
+			s_aprox = returnValues[z][1];
 			q_residual=getQResidual(s[bandOffset][lineOffset][x], s_aprox, s_scaled, uq, y*geo[CONS.WIDTH] + x);
 			residual= uq.dequantize(q_residual);
-			if(PAE < Math.abs(s[bandOffset][lineOffset][x]-(residual + s_aprox)) ) PAE = Math.abs(s[bandOffset][lineOffset][x]-(residual + s_aprox));
-			MSE += Math.pow(s[bandOffset][lineOffset][x]-(residual + s_aprox), 2);
+			if(distortionTracking) updateDistortion(s[bandOffset][lineOffset][x] - (residual + s_aprox));
 			//Update s value to include the quantization error
 			s[bandOffset][lineOffset][x]=residual+s_aprox;
 			return getMappedResidual(s_aprox, s_scaled, q_residual);
@@ -583,20 +843,17 @@ public class Predictor implements Cloneable, Serializable{
 			vectorsSize[0] = 0;
 			q_residual=getQResidual(s[bandOffset][lineOffset][x], 0, 0, uq, y*geo[CONS.WIDTH] + x);
 			residual= uq.dequantize(q_residual);
-			if(PAE < Math.abs(s[bandOffset][lineOffset][x] - residual) ) PAE = Math.abs(s[bandOffset][lineOffset][x] - residual);
-			MSE += Math.pow(s[bandOffset][lineOffset][x] - residual , 2);
+			if(distortionTracking) updateDistortion(s[bandOffset][lineOffset][x] - residual);
 			//Update s value to include the quantization error
 			s[bandOffset][lineOffset][x]=residual;
 			return getMappedResidual(0, 0, q_residual);
 		}
-		calculateLocalDifference(s, z, y, x, bandOffset, lineOffset);
-		calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues);
-		s_scaled = returnValues[0];
-		s_aprox = returnValues[1];
+		predict(s, z, y, x, bandOffset, lineOffset);
+		s_scaled = returnValues[z][0];
+		s_aprox = returnValues[z][1];
 		q_residual = getQResidual(s[bandOffset][lineOffset][x], s_aprox, s_scaled, uq, y*geo[CONS.WIDTH] + x);
 		residual = uq.dequantize(q_residual);
-		if(PAE < Math.abs(s[bandOffset][lineOffset][x] -(residual + s_aprox)) ) PAE = Math.abs(s[bandOffset][lineOffset][x] -(residual + s_aprox));
-		MSE += Math.pow(s[bandOffset][lineOffset][x]-(residual + s_aprox), 2);
+		if(distortionTracking) updateDistortion(s[bandOffset][lineOffset][x] - (residual + s_aprox));
 		//Update s value to include the quantization error
 		s[bandOffset][lineOffset][x]=residual+s_aprox;
 		updateWeightVector(s, z, y, x, s_scaled, bandOffset, lineOffset);
@@ -617,16 +874,14 @@ public class Predictor implements Cloneable, Serializable{
 	 */
 	public int compress(int s[][][], int z, int y, int x, int bandOffset, int lineOffset, Quantizer uq) {
 		int s_scaled, s_aprox, q_residual, residual;
-		int[] returnValues = new int[2];
 		if(y == 0 && x == 0) {
 			init(z);
-			calculatePrediction(s, z, 0, 0, bandOffset, lineOffset, returnValues); 
-			s_scaled = returnValues[0];
-			s_aprox = returnValues[1];
+			calculatePrediction(s, z, 0, 0, bandOffset, lineOffset, returnValues[z]); 
+			s_scaled = returnValues[z][0];
+			s_aprox = returnValues[z][1];
 			q_residual=getQResidual(s[bandOffset][lineOffset][0], s_aprox, s_scaled, uq, y*geo[CONS.WIDTH] + x);
 			residual= uq.dequantize(q_residual);
-			if(PAE < Math.abs(s[bandOffset][lineOffset][0]-(residual + s_aprox)) ) PAE = Math.abs(s[bandOffset][lineOffset][0]-(residual + s_aprox));
-			MSE += Math.pow(s[bandOffset][lineOffset][0]-(residual + s_aprox), 2);
+			if(distortionTracking) updateDistortion(s[bandOffset][lineOffset][0] - (residual + s_aprox));
 			//Update s value to include the quantization error
 			s[bandOffset][lineOffset][0]=residual+s_aprox;
 			return getMappedResidual(s_aprox, s_scaled, q_residual);
@@ -635,20 +890,17 @@ public class Predictor implements Cloneable, Serializable{
 			vectorsSize[0] = 0;
 			q_residual=getQResidual(s[bandOffset][lineOffset][x], 0, 0, uq, y*geo[CONS.WIDTH] + x);
 			residual= uq.dequantize(q_residual);
-			if(PAE < Math.abs(s[bandOffset][lineOffset][x] - residual) ) PAE = Math.abs(s[bandOffset][lineOffset][x] - residual);
-			MSE += Math.pow(s[bandOffset][lineOffset][x] - residual , 2);
+			if(distortionTracking) updateDistortion(s[bandOffset][lineOffset][x] - residual);
 			//Update s value to include the quantization error
 			s[bandOffset][lineOffset][x]=residual;
 			return getMappedResidual(0, 0, q_residual);
 		}
-		calculateLocalDifference(s, z, y, x, bandOffset, lineOffset);
-		calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues);
-		s_scaled = returnValues[0];
-		s_aprox = returnValues[1];
+		predict(s, z, y, x, bandOffset, lineOffset);
+		s_scaled = returnValues[z][0];
+		s_aprox = returnValues[z][1];
 		q_residual = getQResidual(s[bandOffset][lineOffset][x], s_aprox, s_scaled, uq, y*geo[CONS.WIDTH] + x);
 		residual = uq.dequantize(q_residual);
-		if(PAE < Math.abs(s[bandOffset][lineOffset][x] -(residual + s_aprox)) ) PAE = Math.abs(s[bandOffset][lineOffset][x] -(residual + s_aprox));
-		MSE += Math.pow(s[bandOffset][lineOffset][x]-(residual + s_aprox), 2);
+		if(distortionTracking) updateDistortion(s[bandOffset][lineOffset][x] - (residual + s_aprox));
 		//Update s value to include the quantization error
 		s[bandOffset][lineOffset][x]=residual+s_aprox;
 		updateWeightVector(s, z, y, x, s_scaled, bandOffset, lineOffset);
@@ -669,16 +921,15 @@ public class Predictor implements Cloneable, Serializable{
 	 */
 	public int decompressROI(int s[][][], int z, int y, int x, int bandOffset, int lineOffset, Quantizer uq, int yROIFirst) {
 		int s_scaled, s_aprox;
-		int[] returnValues = new int[2];
 		
 		//if(y == 0 && x == 0) {
 		if(canBeInizialized) {
 		//if((y == 0 && x == 0) || (y == yROIFirst) && canBeInizialized ) {
 			canBeInizialized = false;
 			init(z);
-			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues);
-			s_scaled = returnValues[0];
-			s_aprox = returnValues[1];	
+			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues[z]);
+			s_scaled = returnValues[z][0];
+			s_aprox = returnValues[z][1];	
 			s[bandOffset][lineOffset][x] = getSample(s[bandOffset][lineOffset][x], s_aprox, s_scaled, uq); 
 			return s[bandOffset][lineOffset][x]; 
 		}
@@ -686,10 +937,9 @@ public class Predictor implements Cloneable, Serializable{
 			vectorsSize[z] = 0;
 			return getSample(s[bandOffset][lineOffset][x], 0, 0, uq);
 		} else {
-			calculateLocalDifference(s, z, y, x, bandOffset, lineOffset);
-			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues);
-			s_scaled = returnValues[0];
-			s_aprox = returnValues[1];
+			predict(s, z, y, x, bandOffset, lineOffset);
+			s_scaled = returnValues[z][0];
+			s_aprox = returnValues[z][1];
 			s[bandOffset][lineOffset][x] = getSample(s[bandOffset][lineOffset][x], s_aprox, s_scaled, uq);
 			updateWeightVector(s, z, y, x, s_scaled, bandOffset, lineOffset);
 			return s[bandOffset][lineOffset][x];
@@ -711,13 +961,12 @@ public class Predictor implements Cloneable, Serializable{
 	 */
 	public int decompress(int s[][][], int z, int y, int x, int bandOffset, int lineOffset, Quantizer uq) {
 		int s_scaled, s_aprox;
-		int[] returnValues = new int[2];
 		
 		if(y == 0 && x == 0) {
 			init(z);
-			calculatePrediction(s, z, 0, 0, bandOffset, lineOffset, returnValues);
-			s_scaled = returnValues[0];
-			s_aprox = returnValues[1];	
+			calculatePrediction(s, z, 0, 0, bandOffset, lineOffset, returnValues[z]);
+			s_scaled = returnValues[z][0];
+			s_aprox = returnValues[z][1];	
 			s[bandOffset][lineOffset][x] = getSample(s[bandOffset][lineOffset][0], s_aprox, s_scaled, uq); 
 			return s[bandOffset][lineOffset][x]; 
 		}
@@ -725,16 +974,35 @@ public class Predictor implements Cloneable, Serializable{
 			vectorsSize[z] = 0;
 			return getSample(s[bandOffset][lineOffset][x], 0, 0, uq);
 		} else {
-			calculateLocalDifference(s, z, y, x, bandOffset, lineOffset);
-			calculatePrediction(s, z, y, x, bandOffset, lineOffset, returnValues);
-			s_scaled = returnValues[0];
-			s_aprox = returnValues[1];
+			predict(s, z, y, x, bandOffset, lineOffset);
+			s_scaled = returnValues[z][0];
+			s_aprox = returnValues[z][1];
 			s[bandOffset][lineOffset][x] = getSample(s[bandOffset][lineOffset][x], s_aprox, s_scaled, uq);
 			updateWeightVector(s, z, y, x, s_scaled, bandOffset, lineOffset);
 			return s[bandOffset][lineOffset][x];
 		}
 	}
 	
+	/**
+	 * Enables or disables the accumulation of MSE and PAE in the compression functions.
+	 * 
+	 * @param distortionTracking true if MSE and PAE have to be computed
+	 */
+	public void setDistortionTracking(boolean distortionTracking) {
+		this.distortionTracking = distortionTracking;
+	}
+	
+	/**
+	 * Accumulates the error of a reconstructed sample in MSE and PAE.
+	 * 
+	 * @param error is the difference between the original and the reconstructed sample
+	 */
+	private void updateDistortion(int error) {
+		int absError = error < 0 ? -error : error;
+		if(PAE < absError) PAE = absError;
+		MSE += (double) error * error;
+	}
+	
 	/**
 	 * Return the MSE value. This function should be combined with resetMSE();
 	 * 
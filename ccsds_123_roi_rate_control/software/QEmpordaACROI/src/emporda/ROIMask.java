@@ -0,0 +1,354 @@
+/*
+ * EMPORDA Software - More than an implementation of MHDC Recommendation for Image Data Compression
+ * Copyright (C) 2011  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * http://sourceforge.net/projects/emporda
+ * gici-info@deic.uab.es
+ */
+
+package emporda;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * This class keeps the ROI mask used by the ROI rate control. The mask is a raw
+ * file of one byte per sample where the ROI samples are 255. It is read line by
+ * line and each line is kept as the run-length list of its segments, so the mask
+ * samples are never kept in memory.
+ * <p>
+ * The segments of a line alternate between BG and ROI samples starting with a BG
+ * segment, which may be empty. Segment s covers the samples from
+ * <code>segments[s]</code> to <code>segments[s + 1] - 1</code>, so the coding loops
+ * can process whole runs of ROI or BG samples instead of testing each sample.
+ * <p>
+ * The mask can also be read as a priority mask, where each grey value present in
+ * the mask is a class. The classes are ranked by their grey value, so class 0 has
+ * the lowest grey value (the lowest priority) and the last class has the highest
+ * one. The segments of a line are then runs of samples of the same class and
+ * their classes are given by {@link #getSegmentClasses(int)}.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class ROIMask {
+
+	/**
+	 * Value of the ROI samples in the mask file.
+	 */
+	private static final int ROI_VALUE = 255;
+
+	/**
+	 * Segments of each line.
+	 */
+	private final int[][] lines;
+
+	/**
+	 * Number of ROI samples of each line, computed when they are first needed.
+	 */
+	private int[] ROISamplesLine = null;
+
+	/**
+	 * Class of each segment of each line, only for the priority masks.
+	 */
+	private final byte[][] lineClasses;
+
+	/**
+	 * Grey value of each class, only for the priority masks.
+	 */
+	private final int[] classLevels;
+
+	/**
+	 * Number of samples of each class in a band, only for the priority masks.
+	 */
+	private final int[] classSamples;
+
+	/**
+	 * Constructor of ROIMask.
+	 *
+	 * @param maskFile the raw mask file
+	 * @param height the number of lines of the mask
+	 * @param width the number of samples of a line of the mask
+	 * @throws IOException when the mask file cannot be read
+	 */
+	public ROIMask(String maskFile, int height, int width) throws IOException {
+		this(maskFile, height, width, false);
+	}
+
+	/**
+	 * Constructor of ROIMask.
+	 *
+	 * @param maskFile the raw mask file
+	 * @param height the number of lines of the mask
+	 * @param width the number of samples of a line of the mask
+	 * @param priorities true to read the mask as a priority mask with a class for each grey value,
+	 * false to read it as a ROI mask
+	 * @throws IOException when the mask file cannot be read
+	 */
+	public ROIMask(String maskFile, int height, int width, boolean priorities) throws IOException {
+		lines = new int[height][];
+		if (priorities) {
+			lineClasses = new byte[height][];
+			classLevels = readLevels(maskFile, height, width);
+			classSamples = new int[classLevels.length];
+			readClasses(maskFile, height, width);
+			return;
+		}
+		lineClasses = null;
+		classLevels = null;
+		classSamples = null;
+		//the lines without ROI samples share their segments
+		int[] BGLine = {0, width};
+		byte[] line = new byte[width];
+		int[] segments = new int[width + 2];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(maskFile)));
+		try {
+			for (int y = 0; y < height; y++) {
+				in.readFully(line);
+				int numSegments = 1;
+				boolean roi = false;
+				segments[0] = 0;
+				for (int x = 0; x < width; x++) {
+					if (((line[x] & 0xff) == ROI_VALUE) != roi) {
+						roi = !roi;
+						segments[numSegments++] = x;
+					}
+				}
+				segments[numSegments++] = width;
+				if (numSegments == 2) {
+					lines[y] = BGLine;
+				} else {
+					lines[y] = new int[numSegments];
+					System.arraycopy(segments, 0, lines[y], 0, numSegments);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Finds the grey values present in the mask.
+	 *
+	 * @param maskFile the raw mask file
+	 * @param height the number of lines of the mask
+	 * @param width the number of samples of a line of the mask
+	 * @return the grey values in increasing order
+	 * @throws IOException when the mask file cannot be read
+	 */
+	private static int[] readLevels(String maskFile, int height, int width) throws IOException {
+		boolean[] present = new boolean[256];
+		int numLevels = 0;
+		byte[] line = new byte[width];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(maskFile)));
+		try {
+			for (int y = 0; y < height; y++) {
+				in.readFully(line);
+				for (int x = 0; x < width; x++) {
+					if (!present[line[x] & 0xff]) {
+						present[line[x] & 0xff] = true;
+						numLevels++;
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+		int[] levels = new int[numLevels];
+		for (int level = 0, c = 0; level < present.length; level++) {
+			if (present[level]) levels[c++] = level;
+		}
+		return levels;
+	}
+
+	/**
+	 * Reads the segments of the priority mask and their classes.
+	 *
+	 * @param maskFile the raw mask file
+	 * @param height the number of lines of the mask
+	 * @param width the number of samples of a line of the mask
+	 * @throws IOException when the mask file cannot be read
+	 */
+	private void readClasses(String maskFile, int height, int width) throws IOException {
+		int[] classOf = new int[256];
+		for (int c = 0; c < classLevels.length; c++) {
+			classOf[classLevels[c]] = c;
+		}
+		//the lines with a single class share their segments
+		int[] fullLine = {0, width};
+		byte[][] fullLineClasses = new byte[classLevels.length][];
+		byte[] line = new byte[width];
+		int[] segments = new int[width + 1];
+		byte[] classes = new byte[width];
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(maskFile)));
+		try {
+			for (int y = 0; y < height; y++) {
+				in.readFully(line);
+				int numSegments = 0;
+				int c = -1;
+				for (int x = 0; x < width; x++) {
+					int xClass = classOf[line[x] & 0xff];
+					if (xClass != c) {
+						c = xClass;
+						segments[numSegments] = x;
+						classes[numSegments++] = (byte) c;
+					}
+					classSamples[c]++;
+				}
+				segments[numSegments] = width;
+				if (numSegments == 1) {
+					if (fullLineClasses[c] == null) {
+						fullLineClasses[c] = new byte[]{(byte) c};
+					}
+					lines[y] = fullLine;
+					lineClasses[y] = fullLineClasses[c];
+				} else {
+					lines[y] = new int[numSegments + 1];
+					System.arraycopy(segments, 0, lines[y], 0, numSegments + 1);
+					lineClasses[y] = new byte[numSegments];
+					System.arraycopy(classes, 0, lineClasses[y], 0, numSegments);
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the segments of a line. Segment s covers the samples from
+	 * <code>segments[s]</code> to <code>segments[s + 1] - 1</code> and it is a ROI
+	 * segment when {@link #isROISegment(int)} is true.
+	 *
+	 * @param y the line
+	 * @return the segments of the line, the array must not be modified
+	 */
+	public int[] getSegments(int y) {
+		return lines[y];
+	}
+
+	/**
+	 * Tells if a segment of a line contains ROI samples.
+	 *
+	 * @param segment the index of the segment
+	 * @return true for the ROI segments and false for the BG segments
+	 */
+	public static boolean isROISegment(int segment) {
+		return (segment & 1) == 1;
+	}
+
+	/**
+	 * Tells if a sample belongs to the ROI.
+	 *
+	 * @param y the line of the sample
+	 * @param x the position of the sample in the line
+	 * @return true if the sample belongs to the ROI
+	 */
+	public boolean isROI(int y, int x) {
+		int[] segments = lines[y];
+		int low = 0;
+		int high = segments.length - 1;
+		while (high - low > 1) {
+			int mid = (low + high) >>> 1;
+			if (segments[mid] <= x) {
+				low = mid;
+			} else {
+				high = mid;
+			}
+		}
+		return isROISegment(low);
+	}
+
+	/**
+	 * Returns the number of ROI samples of a line.
+	 *
+	 * @param y the line
+	 * @return the number of ROI samples
+	 */
+	public int getROISamplesLine(int y) {
+		if (ROISamplesLine == null) {
+			ROISamplesLine = new int[lines.length];
+			for (int i = 0; i < lines.length; i++) {
+				int[] segments = lines[i];
+				for (int s = 1; s < segments.length - 1; s += 2) {
+					ROISamplesLine[i] += segments[s + 1] - segments[s];
+				}
+			}
+		}
+		return ROISamplesLine[y];
+	}
+
+	/**
+	 * Returns the number of ROI samples of the mask.
+	 *
+	 * @return the number of ROI samples
+	 */
+	public int getROISamples() {
+		int ROISamples = 0;
+		for (int y = 0; y < lines.length; y++) {
+			ROISamples += getROISamplesLine(y);
+		}
+		return ROISamples;
+	}
+
+	/**
+	 * Returns the classes of the segments of a line of a priority mask. The class of
+	 * segment s is <code>classes[s] & 0xff</code>.
+	 *
+	 * @param y the line
+	 * @return the classes of the segments of the line, the array must not be modified
+	 */
+	public byte[] getSegmentClasses(int y) {
+		return lineClasses[y];
+	}
+
+	/**
+	 * Returns the number of classes of a priority mask.
+	 *
+	 * @return the number of classes
+	 */
+	public int getNumClasses() {
+		return classLevels.length;
+	}
+
+	/**
+	 * Returns the grey value of a class of a priority mask.
+	 *
+	 * @param c the class
+	 * @return the grey value of the samples of the class in the mask file
+	 */
+	public int getClassLevel(int c) {
+		return classLevels[c];
+	}
+
+	/**
+	 * Returns the number of samples of a class of a priority mask.
+	 *
+	 * @param c the class
+	 * @return the number of samples of the class in the mask
+	 */
+	public int getClassSamples(int c) {
+		return classSamples[c];
+	}
+}
@@ -0,0 +1,152 @@
+/*
+ * EMPORDA Software - More than an implementation of MHDC Recommendation for Image Data Compression
+ * Copyright (C) 2011  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * http://sourceforge.net/projects/emporda
+ * gici-info@deic.uab.es
+ */
+
+package emporda;
+
+/**
+ * This class estimates the number of bits that the arithmetic coder produces for a
+ * sequence of bits without coding them. The probabilities are those given by
+ * ContextProbability, quantized with precisionBits bits, so the cost -log2(p) of every
+ * probability is kept in a table. Costs are accumulated in fixed point with
+ * FRACTION_BITS fractional bits.<br>
+ *
+ * Multithreading support: the tables are shared among all the objects built with the
+ * same precision, but the accumulated cost belongs to each object.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class RateEstimator {
+
+	/**
+	 * Number of fractional bits of the costs.
+	 */
+	public static final int FRACTION_BITS = 16;
+
+	/**
+	 * Cost tables already built, indexed by the precision of the probabilities.
+	 */
+	private static final int[][] COST_TABLES = new int[32][];
+
+	/**
+	 * -log2(p / 2^precisionBits) for each probability p, with FRACTION_BITS fractional bits.
+	 */
+	private final int[] costs;
+
+	/**
+	 * Probability represented by 1 with precisionBits bits.
+	 */
+	private final int probOne;
+
+	/**
+	 * Cost accumulated since the last reset, with FRACTION_BITS fractional bits.
+	 */
+	private long cost = 0;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param precisionBits number of bits of the probabilities given by ContextProbability
+	 */
+	public RateEstimator(int precisionBits){
+		assert(precisionBits > 0 && precisionBits < COST_TABLES.length);
+		costs = getCostTable(precisionBits);
+		probOne = 1 << precisionBits;
+	}
+
+	/**
+	 * Returns the cost table of the given precision, building it the first time.
+	 *
+	 * @param precisionBits number of bits of the probabilities
+	 * @return the table with the cost of each probability
+	 */
+	private static synchronized int[] getCostTable(int precisionBits){
+		if(COST_TABLES[precisionBits] == null){
+			int[] table = new int[1 << precisionBits];
+			//a probability of 0 is never used, it is given the cost of the smallest one
+			for(int p = 1; p < table.length; p++){
+				table[p] = (int) Math.round(-(Math.log(p / (double) table.length) / Math.log(2)) * (1 << FRACTION_BITS));
+			}
+			table[0] = table.length > 1 ? table[1] : 0;
+			COST_TABLES[precisionBits] = table;
+		}
+		return(COST_TABLES[precisionBits]);
+	}
+
+	/**
+	 * Adds the cost of a bit.
+	 *
+	 * @param realBit the bit
+	 * @param prob0 probability of the bit being 0, as returned by ContextProbability.getProbability
+	 */
+	public void addBit(boolean realBit, int prob0){
+		cost += bitCost(realBit, prob0);
+	}
+
+	/**
+	 * Adds the cost of a symbol.
+	 *
+	 * @param prob probability of the symbol, with precisionBits bits
+	 */
+	public void addSymbol(int prob){
+		cost += costs[prob];
+	}
+
+	/**
+	 * Returns the cost of a bit without accumulating it.
+	 *
+	 * @param realBit the bit
+	 * @param prob0 probability of the bit being 0, as returned by ContextProbability.getProbability
+	 * @return the cost of the bit, with FRACTION_BITS fractional bits
+	 */
+	public int bitCost(boolean realBit, int prob0){
+		assert(prob0 > 0 && prob0 < probOne);
+		return(costs[realBit ? probOne - prob0 : prob0]);
+	}
+
+	/**
+	 * @return the cost accumulated since the last reset, with FRACTION_BITS fractional bits
+	 */
+	public long getCost(){
+		return(cost);
+	}
+
+	/**
+	 * @return the number of bits accumulated since the last reset
+	 */
+	public double getBits(){
+		return(cost / (double) (1 << FRACTION_BITS));
+	}
+
+	/**
+	 * Sets the accumulated cost to 0.
+	 */
+	public void reset(){
+		cost = 0;
+	}
+}
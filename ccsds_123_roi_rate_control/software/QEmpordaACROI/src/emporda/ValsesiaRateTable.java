@@ -0,0 +1,171 @@
+/*
+ * EMPORDA Software - More than an implementation of MHDC Recommendation for Image Data Compression
+ * Copyright (C) 2011  Group on Interactive Coding of Images (GICI)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Group on Interactive Coding of Images (GICI)
+ * Department of Information and Communication Engineering
+ * Autonomous University of Barcelona
+ * 08193 - Bellaterra - Cerdanyola del Valles (Barcelona)
+ * Spain
+ *
+ * http://gici.uab.es
+ * http://sourceforge.net/projects/emporda
+ * gici-info@deic.uab.es
+ */
+
+package emporda;
+
+import java.util.Arrays;
+
+/**
+ * This class keeps the rates of the Valsesia and Magli model for the medians and
+ * quantization steps used by the rate control. The medians of the mapped residuals
+ * are multiples of 1/RESOLUTION, so each median has a row with the rates of all
+ * the quantization steps. A row is computed the first time its median is used and
+ * kept for the rest of the run. The rates of other medians and quantization steps
+ * are computed each time. The distortions of the same model are kept in the same way.
+ *
+ * @author Group on Interactive Coding of Images (GICI)
+ * @version 1.0
+ */
+public class ValsesiaRateTable {
+
+	/**
+	 * The medians kept in the table are multiples of 1/RESOLUTION.
+	 */
+	private static final int RESOLUTION = 4;
+
+	/**
+	 * Maximum number of rows of the table.
+	 */
+	private static final int MAX_ROWS = 1 << 20;
+
+	/**
+	 * Rates of each median (row) and quantization step (column).
+	 */
+	private double[][] rows = new double[RESOLUTION * 64][];
+
+	/**
+	 * Distortions of each median (row) and quantization step (column).
+	 */
+	private double[][] distortionRows = new double[RESOLUTION * 64][];
+
+	/**
+	 * Number of quantization steps of a row.
+	 */
+	private final int numQsteps;
+
+	/**
+	 * Constructor of ValsesiaRateTable.
+	 *
+	 * @param maxQstep the maximum quantization step kept in the table
+	 */
+	public ValsesiaRateTable(int maxQstep) {
+		numQsteps = maxQstep + 1;
+	}
+
+	/**
+	 * Returns the rate of a median for a quantization step.
+	 *
+	 * @param median the median of the mapped residuals
+	 * @param qstep the quantization step
+	 * @return the rate, the same as {@link #rate(double, double)}
+	 */
+	public double getRate(float median, int qstep) {
+		float scaled = median * RESOLUTION;
+		int key = (int) scaled;
+		if (key != scaled || key < 0 || key >= MAX_ROWS || qstep < 0 || qstep >= numQsteps) {
+			return rate(median, qstep);
+		}
+		if (key >= rows.length) {
+			rows = Arrays.copyOf(rows, Math.min(MAX_ROWS, Math.max(key + 1, rows.length << 1)));
+		}
+		double[] row = rows[key];
+		if (row == null) {
+			row = new double[numQsteps];
+			for (int q = 0; q < numQsteps; q++) {
+				row[q] = rate(median, q);
+			}
+			rows[key] = row;
+		}
+		return row[qstep];
+	}
+
+	/**
+	 * Returns the distortion of a median for a quantization step.
+	 *
+	 * @param median the median of the mapped residuals
+	 * @param qstep the quantization step
+	 * @return the distortion, the same as {@link #distortion(double, double)}
+	 */
+	public double getDistortion(float median, int qstep) {
+		float scaled = median * RESOLUTION;
+		int key = (int) scaled;
+		if (key != scaled || key < 0 || key >= MAX_ROWS || qstep < 0 || qstep >= numQsteps) {
+			return distortion(median, qstep);
+		}
+		if (key >= distortionRows.length) {
+			distortionRows = Arrays.copyOf(distortionRows, Math.min(MAX_ROWS, Math.max(key + 1, distortionRows.length << 1)));
+		}
+		double[] row = distortionRows[key];
+		if (row == null) {
+			row = new double[numQsteps];
+			for (int q = 0; q < numQsteps; q++) {
+				row[q] = distortion(median, q);
+			}
+			distortionRows[key] = row;
+		}
+		return row[qstep];
+	}
+
+	/**
+	 * Computes the mean squared error of quantizing with a uniform quantizer the
+	 * laplacian residuals of the rate model of {@link #rate(double, double)}. The
+	 * exponentials are arranged so that none of them overflows for large qsteps.
+	 * @param m is the median
+	 * @param Q is the qstep
+	 * @return the distortion
+	 */
+	public static double distortion(double m, double Q){
+		double h = Q / 2;
+		double a = Math.exp(-h / m);
+		double r = a * a;
+		//integrals of e^2 * exp(-e/m) over the zero bin and over a bin centered in the reconstruction of the next bins
+		double zeroBin = 2 * m * m * m - m * a * (h * h + 2 * m * h + 2 * m * m);
+		double nextBins = m * a * (h * h - 2 * m * h + 2 * m * m) - m * a * r * (h * h + 2 * m * h + 2 * m * m);
+		return (zeroBin + nextBins / (1 - r)) / m;
+	}
+
+	/**
+	 * Computes the rate according to the Valsessia and Magli GRSL paper
+	 * @param m is the median
+	 * @param Q is the qstep 
+	 * @return the rate
+	 */
+	public static double rate(double m, double Q){
+		double rate = 0;
+		double a = Math.pow(Math.E,-((Q/(2*m))));
+		double aa = 1 - a;
+		double b = Math.pow(Math.E,-(Q/m));
+		double bb = 1 - b;
+		double cc = Math.log(aa)/Math.log(2);
+		double aacc = -aa * cc;
+		double d = -(a/Math.log(2));
+		double e = (Math.log(bb/2)) + (Q/(2*m)) - (Q / (m*bb));
+		rate = aacc + d * e;
+		return rate;
+	}
+}